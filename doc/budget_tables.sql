@@ -0,0 +1,157 @@
+database time_oltp;
+
+-- running totals of the locked and consumed amounts of the challenges of a billing account,
+-- updated in the same transaction as the project_challenge_budget entries
+create table project_budget_total (
+    project_id INTEGER not null,
+    total_locked DECIMAL(12,2) default 0 not null,
+    total_consumed DECIMAL(12,2) default 0 not null
+)
+lock mode row;
+
+alter table project_budget_total add constraint primary key (project_id) constraint project_budget_total_pk;
+
+-- backfill the totals of the existing billing accounts, the totals missing at runtime are created on first use
+insert into project_budget_total (project_id, total_locked, total_consumed)
+select project_id, NVL(SUM(locked_amount), 0), NVL(SUM(consumed_amount), 0)
+    from project_challenge_budget
+    group by project_id;
+
+-- completed lock and consume amount requests by Idempotency-Key, only used when idempotencyDatabaseEnabled is set,
+-- the rows older than idempotencyExpirySeconds are not used anymore and can be purged
+create table budget_idempotency_key (
+    idempotency_key VARCHAR(255) not null,
+    challenge_id VARCHAR(255) not null,
+    amount DECIMAL(12,2) not null,
+    create_date DATETIME YEAR TO SECOND not null
+)
+lock mode row;
+
+alter table budget_idempotency_key add constraint primary key (idempotency_key) constraint budget_idempotency_key_pk;
+
+-- append-only ledger of the changes of the locked and consumed amounts of the challenges, written in the same
+-- transaction as the project_challenge_budget entries; the entry_type is LOCK, CONSUME or RELEASE, or OPENING for
+-- the backfill
+create table budget_ledger_entry (
+    ledger_entry_id SERIAL8 not null,
+    project_id INTEGER not null,
+    challenge_id VARCHAR(255) not null,
+    entry_type VARCHAR(16) not null,
+    locked_delta DECIMAL(12,2) not null,
+    consumed_delta DECIMAL(12,2) not null,
+    create_date DATETIME YEAR TO SECOND not null
+)
+lock mode row;
+
+alter table budget_ledger_entry add constraint primary key (ledger_entry_id) constraint budget_ledger_entry_pk;
+create index budget_ledger_entry_project_idx on budget_ledger_entry (project_id, ledger_entry_id);
+
+-- totals of the ledger entries of a billing account up to last_entry_id, written periodically by the service
+create table budget_snapshot (
+    project_id INTEGER not null,
+    last_entry_id INT8 not null,
+    total_locked DECIMAL(12,2) not null,
+    total_consumed DECIMAL(12,2) not null,
+    create_date DATETIME YEAR TO SECOND not null
+)
+lock mode row;
+
+alter table budget_snapshot add constraint primary key (project_id, last_entry_id) constraint budget_snapshot_pk;
+
+-- backfill the ledger with the current entries of the challenges
+insert into budget_ledger_entry (project_id, challenge_id, entry_type, locked_delta, consumed_delta, create_date)
+select project_id, challenge_id, 'OPENING', NVL(locked_amount, 0), NVL(consumed_amount, 0), CURRENT
+    from project_challenge_budget;
+
+-- rebuild the entries of the challenges from the ledger, if ever needed
+-- merge into project_challenge_budget as pcb
+-- using (select project_id, challenge_id, SUM(locked_delta) as locked_amount, SUM(consumed_delta) as consumed_amount
+--          from budget_ledger_entry
+--         group by project_id, challenge_id) as ledger
+-- on pcb.project_id = ledger.project_id and pcb.challenge_id = ledger.challenge_id
+-- when matched then update set locked_amount = ledger.locked_amount, consumed_amount = ledger.consumed_amount
+-- when not matched then insert (project_id, challenge_id, locked_amount, consumed_amount)
+--     values (ledger.project_id, ledger.challenge_id, ledger.locked_amount, ledger.consumed_amount);
+
+-- expiry time of the locks taken with a ttlSeconds, the expired locks are released by the service in batches
+-- ordered by expiry_date; the row is removed when the challenge is locked again without ttl or consumed
+create table budget_lock_expiry (
+    project_id INTEGER not null,
+    challenge_id VARCHAR(255) not null,
+    expiry_date DATETIME YEAR TO SECOND not null
+)
+lock mode row;
+
+alter table budget_lock_expiry add constraint primary key (project_id, challenge_id) constraint budget_lock_expiry_pk;
+create index budget_lock_expiry_date_idx on budget_lock_expiry (expiry_date);
+
+-- consume amount requests accepted asynchronously, applied one at a time per project in operation_seq order;
+-- a worker claims an operation with a lease, a RUNNING operation whose lease expired is taken over by another worker
+create table budget_operation (
+    operation_seq SERIAL8 not null,
+    operation_id VARCHAR(36) not null,
+    project_id INTEGER not null,
+    challenge_id VARCHAR(255) not null,
+    amount DECIMAL(12,2) not null,
+    markup FLOAT,
+    idempotency_key VARCHAR(255),
+    status VARCHAR(16) not null,
+    status_code INTEGER,
+    message VARCHAR(255),
+    attempts INTEGER default 0 not null,
+    create_date DATETIME YEAR TO SECOND not null,
+    update_date DATETIME YEAR TO SECOND not null,
+    lease_owner VARCHAR(36),
+    lease_expiry DATETIME YEAR TO SECOND
+)
+lock mode row;
+
+alter table budget_operation add constraint primary key (operation_id) constraint budget_operation_pk;
+create index budget_operation_status_idx on budget_operation (status, operation_seq);
+create index budget_operation_key_idx on budget_operation (project_id, idempotency_key);
+create index budget_operation_project_idx on budget_operation (project_id, operation_seq, status);
+
+-- row versions of the budget entries, incremented by every write of the entry; the batch lock and consume amounts
+-- and the release of the expired locks only apply their updates if the versions they read are unchanged
+alter table project_challenge_budget add version INT8 default 0 not null;
+alter table project_budget_total add version INT8 default 0 not null;
+
+-- anomalies of the budgets found by the reconciler of the service, which walks the billing accounts in project_id
+-- order; the issues of a billing account are replaced each time it is reconciled. The issue_type is DUPLICATE_ENTRY
+-- (several entries for a challenge), OVER_COMMIT (locked and consumed amounts above the budget), TOTAL_DRIFT
+-- (project_budget_total differs from the entries) or LEDGER_DRIFT (the ledger balance differs from the entries)
+create table budget_reconciliation_issue (
+    issue_id SERIAL8 not null,
+    project_id INTEGER not null,
+    challenge_id VARCHAR(255),
+    issue_type VARCHAR(16) not null,
+    expected_amount DECIMAL(12,2),
+    actual_amount DECIMAL(12,2),
+    detail VARCHAR(255),
+    create_date DATETIME YEAR TO SECOND not null
+)
+lock mode row;
+
+alter table budget_reconciliation_issue add constraint primary key (issue_id) constraint budget_reconciliation_issue_pk;
+create index budget_reconciliation_issue_project_idx on budget_reconciliation_issue (project_id);
+
+-- challenge-ba-consumed events written in the transaction of the consume amounts, published in event_id order by the
+-- relay of the service which sets sent_date once the Lambda function accepted them (at-least-once delivery); a relay
+-- claims the rows it sends with lease_owner until lease_expiry, attempts counts the failed publications and failed_date
+-- is set once they reach outboxMaxAttempts (dead letters, not sent anymore until failed_date is cleared), the sent rows
+-- older than outboxRetentionHours are purged by the relay
+create table budget_event_outbox (
+    event_id SERIAL8 not null,
+    project_id INTEGER not null,
+    payload LVARCHAR(4096) not null,
+    attempts INTEGER default 0 not null,
+    create_date DATETIME YEAR TO SECOND not null,
+    sent_date DATETIME YEAR TO SECOND,
+    failed_date DATETIME YEAR TO SECOND,
+    lease_owner VARCHAR(36),
+    lease_expiry DATETIME YEAR TO SECOND
+)
+lock mode row;
+
+alter table budget_event_outbox add constraint primary key (event_id) constraint budget_event_outbox_pk;
+create index budget_event_outbox_sent_idx on budget_event_outbox (sent_date, event_id);
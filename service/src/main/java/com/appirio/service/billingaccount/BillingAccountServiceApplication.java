@@ -4,21 +4,32 @@
 package com.appirio.service.billingaccount;
 
 import com.appirio.service.BaseApplication;
+import com.appirio.service.billingaccount.api.CircuitBreaker;
 import com.appirio.service.billingaccount.api.HarmonyPublisher;
+import com.appirio.service.billingaccount.api.HarmonyPublisherHealthCheck;
 import com.appirio.service.billingaccount.dao.BillingAccountDAO;
 import com.appirio.service.billingaccount.dao.ClientDAO;
 import com.appirio.service.billingaccount.dao.SequenceDAO;
 import com.appirio.service.billingaccount.manager.BillingAccountManager;
+import com.appirio.service.billingaccount.manager.BudgetReconciler;
+import com.appirio.service.billingaccount.manager.BudgetSnapshotter;
 import com.appirio.service.billingaccount.manager.ClientManager;
+import com.appirio.service.billingaccount.manager.ConsumeOperationWorker;
+import com.appirio.service.billingaccount.manager.IdempotencyStore;
+import com.appirio.service.billingaccount.manager.LockReleaseScheduler;
+import com.appirio.service.billingaccount.manager.OutboxRelay;
 import com.appirio.service.billingaccount.resources.BillingAccountResource;
 import com.appirio.service.billingaccount.resources.ClientResource;
 import com.appirio.service.supply.resources.SupplyDatasourceFactory;
 import com.appirio.supply.DAOFactory;
 import com.appirio.supply.dataaccess.db.IdGenerator;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.setup.Environment;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Starting point of the micro-service.
@@ -82,13 +93,56 @@ public class BillingAccountServiceApplication extends BaseApplication<BillingAcc
      */
     @Override
     protected void registerResources(BillingAccountServiceConfiguration config, Environment env) throws Exception {
+        long start = System.nanoTime();
+        long phaseStart = start;
+        BillingAccountDAO billingAccountDAO = DAOFactory.getInstance().createDAO(BillingAccountDAO.class);
+        phaseStart = recordStartupPhase(env.metrics(), "dao", phaseStart);
+
+        // the publisher of the consumed amount events, managed first so it's stopped last on shutdown
+        HarmonyPublisher harmonyPublisher = new HarmonyPublisher(config.getPublisherMaxPayloadBytes(),
+                new CircuitBreaker(config.getPublisherBreakerFailureThreshold(), config.getPublisherBreakerOpenMillis()));
+        harmonyPublisher.registerMetrics(env.metrics());
+        env.lifecycle().manage(harmonyPublisher);
+        env.healthChecks().register("harmony-publisher", new HarmonyPublisherHealthCheck(harmonyPublisher));
+        phaseStart = recordStartupPhase(env.metrics(), "publisher", phaseStart);
+
+        // publish the events written to the outbox by the budget writes
+        OutboxRelay outboxRelay = new OutboxRelay(billingAccountDAO, harmonyPublisher,
+                config.getOutboxRelayThreads(), config.getOutboxRelayIntervalMillis(), config.getOutboxBatchSize(),
+                config.getOutboxLeaseSeconds(), config.getOutboxMaxAttempts(), config.getOutboxRetentionHours());
+        outboxRelay.registerMetrics(env.metrics());
+        env.lifecycle().manage(outboxRelay);
+        phaseStart = recordStartupPhase(env.metrics(), "outbox-relay", phaseStart);
+
         // initialize the Billing account manager.
     	BillingAccountManager billingAccountManager = 
-        		new BillingAccountManager(DAOFactory.getInstance().createDAO(BillingAccountDAO.class),
+        		new BillingAccountManager(billingAccountDAO,
         				IdGenerator.getInstance("com.topcoder.timetracker.ProjectManager"),
         				IdGenerator.getInstance("com.topcoder.timetracker.user.User"),
         				DAOFactory.getInstance().createDAO(SequenceDAO.class),
-        				new HarmonyPublisher());
+        				new IdempotencyStore(config.getIdempotencyCacheSize(), config.getIdempotencyExpirySeconds(),
+        						config.isIdempotencyDatabaseEnabled()));
+    	billingAccountManager.registerMetrics(env.metrics());
+    	phaseStart = recordStartupPhase(env.metrics(), "billing-account-manager", phaseStart);
+
+    	// snapshot the budget ledgers periodically
+    	env.lifecycle().manage(new BudgetSnapshotter(billingAccountDAO, config.getBudgetSnapshotIntervalSeconds()));
+
+    	// release the expired locks periodically
+    	env.lifecycle().manage(new LockReleaseScheduler(billingAccountManager, config.getLockReleaseIntervalSeconds(),
+    			config.getLockReleaseBatchSize()));
+
+    	// apply the queued consume amount requests
+    	ConsumeOperationWorker consumeOperationWorker = new ConsumeOperationWorker(billingAccountManager,
+    			config.getConsumeWorkerThreads(), config.getConsumePollIntervalMillis(),
+    			config.getConsumeOperationLeaseSeconds(), config.getConsumeOperationMaxAttempts());
+    	consumeOperationWorker.registerMetrics(env.metrics());
+    	env.lifecycle().manage(consumeOperationWorker);
+
+    	// reconcile the budgets of the billing accounts in the background
+    	env.lifecycle().manage(new BudgetReconciler(billingAccountDAO, config.getReconcileIntervalSeconds(),
+    			config.getReconcileChunkSize(), config.getReconcileChunkDelayMillis()));
+    	phaseStart = recordStartupPhase(env.metrics(), "background-jobs", phaseStart);
 
     	// initialize the client manager
         ClientManager clientManager = new ClientManager(DAOFactory.getInstance().createDAO(ClientDAO.class),
@@ -98,10 +152,29 @@ public class BillingAccountServiceApplication extends BaseApplication<BillingAcc
         // register the resources.
         env.jersey().register(new BillingAccountResource(billingAccountManager));
         env.jersey().register(new ClientResource(clientManager));
+        recordStartupPhase(env.metrics(), "resources", phaseStart);
+        recordStartupPhase(env.metrics(), "total", start);
 
         logger.info("Services registered");
     }
 
+    /**
+     * Record the duration of a phase of registerResources as the startup gauge of the phase, in milliseconds
+     *
+     * @param registry the metric registry
+     * @param phase the phase name
+     * @param phaseStart the start time of the phase, in nanoseconds
+     * @return the end time of the phase, in nanoseconds
+     */
+    private static long recordStartupPhase(MetricRegistry registry, String phase, long phaseStart) {
+        long end = System.nanoTime();
+        long millis = TimeUnit.NANOSECONDS.toMillis(end - phaseStart);
+        registry.register(MetricRegistry.name(BillingAccountServiceApplication.class, "startup", phase),
+                (Gauge<Long>) () -> millis);
+        logger.info("Startup phase " + phase + " took " + millis + " ms");
+        return end;
+    }
+
     /**
      * Gives the subclasses an opportunity to prepare to run, for instance, to setup databases
      * @param config configuration
@@ -4,6 +4,14 @@
 package com.appirio.service.billingaccount;
 
 import com.appirio.service.BaseAppConfiguration;
+import com.appirio.service.billingaccount.api.CircuitBreaker;
+import com.appirio.service.billingaccount.api.HarmonyPublisher;
+import com.appirio.service.billingaccount.manager.BudgetReconciler;
+import com.appirio.service.billingaccount.manager.BudgetSnapshotter;
+import com.appirio.service.billingaccount.manager.ConsumeOperationWorker;
+import com.appirio.service.billingaccount.manager.IdempotencyStore;
+import com.appirio.service.billingaccount.manager.LockReleaseScheduler;
+import com.appirio.service.billingaccount.manager.OutboxRelay;
 import com.appirio.service.supply.resources.SupplyDatasourceFactory;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
@@ -33,4 +41,334 @@ public class BillingAccountServiceConfiguration extends BaseAppConfiguration {
 	public SupplyDatasourceFactory getDatabase() {
 		return database;
 	}
+
+	/**
+	 * The maximum number of completed requests kept in process by Idempotency-Key
+	 */
+	@JsonProperty
+	private int idempotencyCacheSize = IdempotencyStore.DEFAULT_MAX_SIZE;
+
+	/**
+	 * The expiry of the completed requests kept by Idempotency-Key, in seconds
+	 */
+	@JsonProperty
+	private int idempotencyExpirySeconds = IdempotencyStore.DEFAULT_EXPIRY_SECONDS;
+
+	/**
+	 * Whether the completed requests are also saved in the database, to detect the retries sent to another node
+	 */
+	@JsonProperty
+	private boolean idempotencyDatabaseEnabled;
+
+	/**
+	 * The interval between the snapshots of the budget ledgers, in seconds, 0 to disable the snapshots
+	 */
+	@JsonProperty
+	private int budgetSnapshotIntervalSeconds = BudgetSnapshotter.DEFAULT_INTERVAL_SECONDS;
+
+	/**
+	 * The interval between the releases of the expired locks, in seconds, 0 to disable the releases
+	 */
+	@JsonProperty
+	private int lockReleaseIntervalSeconds = LockReleaseScheduler.DEFAULT_INTERVAL_SECONDS;
+
+	/**
+	 * The number of expired locks released per batch
+	 */
+	@JsonProperty
+	private int lockReleaseBatchSize = LockReleaseScheduler.DEFAULT_BATCH_SIZE;
+
+	/**
+	 * The number of threads applying the queued consume amount requests, 0 to disable them
+	 */
+	@JsonProperty
+	private int consumeWorkerThreads = ConsumeOperationWorker.DEFAULT_THREADS;
+
+	/**
+	 * The interval between the polls of the queued consume amount requests, in milliseconds
+	 */
+	@JsonProperty
+	private int consumePollIntervalMillis = ConsumeOperationWorker.DEFAULT_POLL_INTERVAL_MILLIS;
+
+	/**
+	 * The time after which a running consume amount request is taken over by another worker, in seconds
+	 */
+	@JsonProperty
+	private int consumeOperationLeaseSeconds = ConsumeOperationWorker.DEFAULT_LEASE_SECONDS;
+
+	/**
+	 * The maximum number of attempts of a queued consume amount request failing with an unexpected error
+	 */
+	@JsonProperty
+	private int consumeOperationMaxAttempts = ConsumeOperationWorker.DEFAULT_MAX_ATTEMPTS;
+
+	/**
+	 * The interval between two walks of the budget reconciliation, in seconds, 0 to disable the reconciliation
+	 */
+	@JsonProperty
+	private int reconcileIntervalSeconds = BudgetReconciler.DEFAULT_INTERVAL_SECONDS;
+
+	/**
+	 * The number of billing accounts reconciled per chunk
+	 */
+	@JsonProperty
+	private int reconcileChunkSize = BudgetReconciler.DEFAULT_CHUNK_SIZE;
+
+	/**
+	 * The pause between two chunks of the budget reconciliation, in milliseconds
+	 */
+	@JsonProperty
+	private int reconcileChunkDelayMillis = BudgetReconciler.DEFAULT_CHUNK_DELAY_MILLIS;
+
+	/**
+	 * The maximum size of a payload of the publisher, in bytes
+	 */
+	@JsonProperty
+	private int publisherMaxPayloadBytes = HarmonyPublisher.DEFAULT_MAX_PAYLOAD_BYTES;
+
+	/**
+	 * The number of consecutive failed invocations opening the circuit of the publisher
+	 */
+	@JsonProperty
+	private int publisherBreakerFailureThreshold = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+
+	/**
+	 * The time the circuit of the publisher stays open before a trial invocation, in milliseconds
+	 */
+	@JsonProperty
+	private int publisherBreakerOpenMillis = CircuitBreaker.DEFAULT_OPEN_MILLIS;
+
+	/**
+	 * The number of threads of the relay of the outbox events
+	 */
+	@JsonProperty
+	private int outboxRelayThreads = OutboxRelay.DEFAULT_THREADS;
+
+	/**
+	 * The interval between the runs of the relay of the outbox events, in milliseconds, 0 to disable the relay
+	 */
+	@JsonProperty
+	private int outboxRelayIntervalMillis = OutboxRelay.DEFAULT_INTERVAL_MILLIS;
+
+	/**
+	 * The number of outbox events published per batch
+	 */
+	@JsonProperty
+	private int outboxBatchSize = OutboxRelay.DEFAULT_BATCH_SIZE;
+
+	/**
+	 * The time after which the outbox events claimed by a relay are claimed by another relay, in seconds
+	 */
+	@JsonProperty
+	private int outboxLeaseSeconds = OutboxRelay.DEFAULT_LEASE_SECONDS;
+
+	/**
+	 * The number of attempts of an outbox event before it's moved to the dead letters
+	 */
+	@JsonProperty
+	private int outboxMaxAttempts = OutboxRelay.DEFAULT_MAX_ATTEMPTS;
+
+	/**
+	 * The retention of the sent outbox events, in hours
+	 */
+	@JsonProperty
+	private int outboxRetentionHours = OutboxRelay.DEFAULT_RETENTION_HOURS;
+
+	/**
+	 * Get the maximum number of completed requests kept in process by Idempotency-Key
+	 *
+	 * @return the maximum size
+	 */
+	public int getIdempotencyCacheSize() {
+		return idempotencyCacheSize;
+	}
+
+	/**
+	 * Get the expiry of the completed requests kept by Idempotency-Key
+	 *
+	 * @return the expiry, in seconds
+	 */
+	public int getIdempotencyExpirySeconds() {
+		return idempotencyExpirySeconds;
+	}
+
+	/**
+	 * Whether the completed requests are also saved in the database
+	 *
+	 * @return true if the database is used
+	 */
+	public boolean isIdempotencyDatabaseEnabled() {
+		return idempotencyDatabaseEnabled;
+	}
+
+	/**
+	 * Get the interval between the snapshots of the budget ledgers
+	 *
+	 * @return the interval, in seconds
+	 */
+	public int getBudgetSnapshotIntervalSeconds() {
+		return budgetSnapshotIntervalSeconds;
+	}
+
+	/**
+	 * Get the interval between the releases of the expired locks
+	 *
+	 * @return the interval, in seconds
+	 */
+	public int getLockReleaseIntervalSeconds() {
+		return lockReleaseIntervalSeconds;
+	}
+
+	/**
+	 * Get the number of expired locks released per batch
+	 *
+	 * @return the batch size
+	 */
+	public int getLockReleaseBatchSize() {
+		return lockReleaseBatchSize;
+	}
+
+	/**
+	 * Get the number of threads applying the queued consume amount requests
+	 *
+	 * @return the number of threads
+	 */
+	public int getConsumeWorkerThreads() {
+		return consumeWorkerThreads;
+	}
+
+	/**
+	 * Get the interval between the polls of the queued consume amount requests
+	 *
+	 * @return the interval, in milliseconds
+	 */
+	public int getConsumePollIntervalMillis() {
+		return consumePollIntervalMillis;
+	}
+
+	/**
+	 * Get the time after which a running consume amount request is taken over by another worker
+	 *
+	 * @return the lease, in seconds
+	 */
+	public int getConsumeOperationLeaseSeconds() {
+		return consumeOperationLeaseSeconds;
+	}
+
+	/**
+	 * Get the maximum number of attempts of a queued consume amount request
+	 *
+	 * @return the maximum number of attempts
+	 */
+	public int getConsumeOperationMaxAttempts() {
+		return consumeOperationMaxAttempts;
+	}
+
+	/**
+	 * Get the interval between two walks of the budget reconciliation
+	 *
+	 * @return the interval, in seconds
+	 */
+	public int getReconcileIntervalSeconds() {
+		return reconcileIntervalSeconds;
+	}
+
+	/**
+	 * Get the number of billing accounts reconciled per chunk
+	 *
+	 * @return the chunk size
+	 */
+	public int getReconcileChunkSize() {
+		return reconcileChunkSize;
+	}
+
+	/**
+	 * Get the pause between two chunks of the budget reconciliation
+	 *
+	 * @return the pause, in milliseconds
+	 */
+	public int getReconcileChunkDelayMillis() {
+		return reconcileChunkDelayMillis;
+	}
+
+	/**
+	 * Get the maximum size of a payload of the publisher
+	 *
+	 * @return the maximum size, in bytes
+	 */
+	public int getPublisherMaxPayloadBytes() {
+		return publisherMaxPayloadBytes;
+	}
+
+	/**
+	 * Get the number of consecutive failed invocations opening the circuit of the publisher
+	 *
+	 * @return the failure threshold
+	 */
+	public int getPublisherBreakerFailureThreshold() {
+		return publisherBreakerFailureThreshold;
+	}
+
+	/**
+	 * Get the time the circuit of the publisher stays open before a trial invocation
+	 *
+	 * @return the open time, in milliseconds
+	 */
+	public int getPublisherBreakerOpenMillis() {
+		return publisherBreakerOpenMillis;
+	}
+
+	/**
+	 * Get the number of threads of the relay of the outbox events
+	 *
+	 * @return the number of threads
+	 */
+	public int getOutboxRelayThreads() {
+		return outboxRelayThreads;
+	}
+
+	/**
+	 * Get the interval between the runs of the relay of the outbox events
+	 *
+	 * @return the interval, in milliseconds
+	 */
+	public int getOutboxRelayIntervalMillis() {
+		return outboxRelayIntervalMillis;
+	}
+
+	/**
+	 * Get the number of outbox events published per batch
+	 *
+	 * @return the batch size
+	 */
+	public int getOutboxBatchSize() {
+		return outboxBatchSize;
+	}
+
+	/**
+	 * Get the time after which the outbox events claimed by a relay are claimed by another relay
+	 *
+	 * @return the lease, in seconds
+	 */
+	public int getOutboxLeaseSeconds() {
+		return outboxLeaseSeconds;
+	}
+
+	/**
+	 * Get the number of attempts of an outbox event before it's moved to the dead letters
+	 *
+	 * @return the maximum number of attempts
+	 */
+	public int getOutboxMaxAttempts() {
+		return outboxMaxAttempts;
+	}
+
+	/**
+	 * Get the retention of the sent outbox events
+	 *
+	 * @return the retention, in hours
+	 */
+	public int getOutboxRetentionHours() {
+		return outboxRetentionHours;
+	}
 }
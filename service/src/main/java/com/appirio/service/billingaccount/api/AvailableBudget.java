@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * DTO for the budget figures of a billing account: the budget, the locked and consumed amounts of all the challenges
+ * and the available budget.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+public class AvailableBudget {
+
+    /**
+     * The billing account id.
+     */
+    @Getter
+    @Setter
+    private Long billingAccountId;
+
+    /**
+     * The budget amount, in cents.
+     */
+    @Getter
+    @Setter
+    @JsonProperty("budgetAmount")
+    @JsonSerialize(using = Cents.Serializer.class)
+    @JsonDeserialize(using = Cents.Deserializer.class)
+    private long budgetCents;
+
+    /**
+     * The total locked amount, in cents.
+     */
+    @Getter
+    @Setter
+    @JsonProperty("lockedAmount")
+    @JsonSerialize(using = Cents.Serializer.class)
+    @JsonDeserialize(using = Cents.Deserializer.class)
+    private long lockedCents;
+
+    /**
+     * The total consumed amount, in cents.
+     */
+    @Getter
+    @Setter
+    @JsonProperty("consumedAmount")
+    @JsonSerialize(using = Cents.Serializer.class)
+    @JsonDeserialize(using = Cents.Deserializer.class)
+    private long consumedCents;
+
+    /**
+     * The available budget, in cents.
+     */
+    @Getter
+    @Setter
+    @JsonProperty("availableBudget")
+    @JsonSerialize(using = Cents.Serializer.class)
+    @JsonDeserialize(using = Cents.Deserializer.class)
+    private long availableCents;
+}
@@ -5,6 +5,11 @@ package com.appirio.service.billingaccount.api;
 
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -41,16 +46,28 @@ public class BillingAccountBudget extends BillingAccount {
 	}
 
 	/**
-	 * The available budget.
+	 * The available budget, in cents.
 	 */
 	@Getter
 	@Setter
-	private Float availableBudget;
+	@JsonProperty("availableBudget")
+	@JsonSerialize(using = Cents.Serializer.class)
+	@JsonDeserialize(using = Cents.Deserializer.class)
+	private Long availableCents;
 
 	/**
-	 * The challenges budget details.
+	 * The challenges budget details, omitted when only the aggregates are requested.
 	 */
 	@Getter
 	@Setter
+	@JsonInclude(JsonInclude.Include.NON_NULL)
 	private List<ChallengeBudget> challengeBudgets;
+
+	/**
+	 * The challenge id to request the next page of challenge budgets, null if this is the last page.
+	 */
+	@Getter
+	@Setter
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	private String nextChallengeId;
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * DTO for the running totals of a billing account with the largest challenge entries, used to bound the amount a
+ * lock or consume request may reserve without reading the entry of its challenge.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+public class BudgetHeadroom {
+
+    /**
+     * The budget amount, in cents.
+     */
+    @Getter
+    @Setter
+    private long budgetCents;
+
+    /**
+     * The total locked amount of all the challenges, in cents.
+     */
+    @Getter
+    @Setter
+    private long lockedCents;
+
+    /**
+     * The total consumed amount of all the challenges, in cents.
+     */
+    @Getter
+    @Setter
+    private long consumedCents;
+
+    /**
+     * The largest locked plus consumed amount of a challenge, in cents.
+     */
+    @Getter
+    @Setter
+    private long maxEntryCents;
+
+    /**
+     * The largest consumed amount of a challenge, in cents.
+     */
+    @Getter
+    @Setter
+    private long maxConsumedCents;
+
+    /**
+     * Get the upper bound of the amount a lock request may reserve: a lock replaces the entry of its challenge,
+     * which is at most the largest entry.
+     *
+     * @return the upper bound, in cents
+     */
+    public long getLockHeadroomCents() {
+        return budgetCents - lockedCents - consumedCents + maxEntryCents;
+    }
+
+    /**
+     * Get the upper bound of the amount a consume request may reserve, only the consumed amounts are checked.
+     *
+     * @return the upper bound, in cents
+     */
+    public long getConsumeHeadroomCents() {
+        return budgetCents - consumedCents + maxConsumedCents;
+    }
+}
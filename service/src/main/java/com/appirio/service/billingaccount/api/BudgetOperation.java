@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import java.util.Date;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * DTO for a consume amount request accepted asynchronously, queued until a worker applies it.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@NoArgsConstructor
+public class BudgetOperation {
+
+    /**
+     * The status of an operation waiting for a worker.
+     */
+    public static final String PENDING = "PENDING";
+
+    /**
+     * The status of an operation being applied by a worker.
+     */
+    public static final String RUNNING = "RUNNING";
+
+    /**
+     * The status of an operation applied successfully.
+     */
+    public static final String COMPLETED = "COMPLETED";
+
+    /**
+     * The status of an operation rejected or failed, see the status code and the message.
+     */
+    public static final String FAILED = "FAILED";
+
+    /**
+     * The operation id.
+     */
+    @Getter
+    @Setter
+    private String operationId;
+
+    /**
+     * The billing account id.
+     */
+    @Getter
+    @Setter
+    private Long billingAccountId;
+
+    /**
+     * The challenge Id.
+     */
+    @Getter
+    @Setter
+    private String challengeId;
+
+    /**
+     * The consume amount, in cents.
+     */
+    @Getter
+    @Setter
+    @JsonProperty("consumeAmount")
+    @JsonSerialize(using = Cents.Serializer.class)
+    @JsonDeserialize(using = Cents.Deserializer.class)
+    private long consumeCents;
+
+    /**
+     * The mark up.
+     */
+    @Getter
+    @Setter
+    private Float markup;
+
+    /**
+     * The Idempotency-Key of the request.
+     */
+    @Getter
+    @Setter
+    @JsonIgnore
+    private String idempotencyKey;
+
+    /**
+     * The status, PENDING, RUNNING, COMPLETED or FAILED.
+     */
+    @Getter
+    @Setter
+    private String status;
+
+    /**
+     * The HTTP status code the synchronous request would have returned, once the operation is done.
+     */
+    @Getter
+    @Setter
+    private Integer statusCode;
+
+    /**
+     * The error message of a failed operation.
+     */
+    @Getter
+    @Setter
+    private String message;
+
+    /**
+     * The number of failed attempts to apply the operation.
+     */
+    @Getter
+    @Setter
+    @JsonIgnore
+    private int attempts;
+
+    /**
+     * The creation date.
+     */
+    @Getter
+    @Setter
+    private Date createdAt;
+
+    /**
+     * The last update date.
+     */
+    @Getter
+    @Setter
+    private Date updatedAt;
+}
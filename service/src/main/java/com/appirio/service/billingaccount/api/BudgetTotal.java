@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * DTO for the budget amount and the running totals of the locked and consumed amounts of a billing account.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+public class BudgetTotal {
+
+    /**
+     * The budget amount, in cents.
+     */
+    @Getter
+    @Setter
+    private long budgetCents;
+
+    /**
+     * The total locked amount of all the challenges, in cents.
+     */
+    @Getter
+    @Setter
+    private long lockedCents;
+
+    /**
+     * The total consumed amount of all the challenges, in cents.
+     */
+    @Getter
+    @Setter
+    private long consumedCents;
+
+    /**
+     * The version of the running totals, incremented by every update.
+     */
+    @Getter
+    @Setter
+    private long version;
+
+    /**
+     * Create the instance
+     *
+     * @param budgetCents the budget amount, in cents
+     * @param lockedCents the total locked amount, in cents
+     * @param consumedCents the total consumed amount, in cents
+     */
+    public BudgetTotal(long budgetCents, long lockedCents, long consumedCents) {
+        this(budgetCents, lockedCents, consumedCents, 0);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * DTO for a completed budget transfer: the moved amount and the budget figures of both billing accounts after it.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+public class BudgetTransfer {
+
+    /**
+     * The moved amount, in cents.
+     */
+    @Getter
+    @Setter
+    @JsonProperty("amount")
+    @JsonSerialize(using = Cents.Serializer.class)
+    @JsonDeserialize(using = Cents.Deserializer.class)
+    private long amountCents;
+
+    /**
+     * The budget figures of the billing account giving the amount.
+     */
+    @Getter
+    @Setter
+    private AvailableBudget from;
+
+    /**
+     * The budget figures of the billing account receiving the amount.
+     */
+    @Getter
+    @Setter
+    private AvailableBudget to;
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+
+/**
+ * Money amounts of the budget path are kept as a primitive long number of cents, so the sums are exact and don't
+ * box. This class converts them from and to the decimal amounts of the database and the JSON API.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public final class Cents {
+
+    /**
+     * Private constructor
+     */
+    private Cents() {
+    }
+
+    /**
+     * Convert an amount to cents, rounded half up
+     *
+     * @param amount the amount
+     * @return the cents
+     */
+    public static long of(BigDecimal amount) {
+        return amount.movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    /**
+     * Convert a float amount to cents
+     *
+     * @param amount the amount, null counts as 0
+     * @return the cents
+     */
+    public static long of(Float amount) {
+        return amount == null ? 0 : Math.round(amount * 100d);
+    }
+
+    /**
+     * Convert cents to the decimal amount
+     *
+     * @param cents the cents
+     * @return the amount with 2 decimals
+     */
+    public static BigDecimal toAmount(long cents) {
+        return BigDecimal.valueOf(cents, 2);
+    }
+
+    /**
+     * Serialize cents as the decimal amount
+     */
+    public static class Serializer extends JsonSerializer<Long> {
+        /**
+         * Write the amount of the cents
+         *
+         * @param value the cents
+         * @param gen the generator
+         * @param serializers the serializers
+         * @throws IOException if the amount can't be written
+         */
+        @Override
+        public void serialize(Long value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeNumber(toAmount(value));
+        }
+    }
+
+    /**
+     * Deserialize a decimal amount to cents, the amount is read from its text so no float rounding is involved
+     */
+    public static class Deserializer extends JsonDeserializer<Long> {
+        /**
+         * Read the cents of the amount
+         *
+         * @param p the parser
+         * @param ctxt the context
+         * @return the cents
+         * @throws IOException if the amount can't be read
+         */
+        @Override
+        public Long deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            return of(p.getDecimalValue());
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package com.appirio.service.billingaccount.api;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -23,16 +28,41 @@ public class ChallengeBudget {
 	private String challengeId;
 
 	/**
-	 * The locked amount.
+	 * The locked amount, in cents.
 	 */
 	@Getter
 	@Setter
-	private Float lockedAmount;
+	@JsonProperty("lockedAmount")
+	@JsonSerialize(using = Cents.Serializer.class)
+	@JsonDeserialize(using = Cents.Deserializer.class)
+	private long lockedCents;
 
 	/**
-	 * The consumed amount.
+	 * The consumed amount, in cents.
 	 */
 	@Getter
 	@Setter
-	private Float consumedAmount;
+	@JsonProperty("consumedAmount")
+	@JsonSerialize(using = Cents.Serializer.class)
+	@JsonDeserialize(using = Cents.Deserializer.class)
+	private long consumedCents;
+
+	/**
+	 * The version of the entry, incremented by every update.
+	 */
+	@Getter
+	@Setter
+	@JsonIgnore
+	private long version;
+
+	/**
+	 * Create the instance
+	 *
+	 * @param challengeId the challenge Id
+	 * @param lockedCents the locked amount, in cents
+	 * @param consumedCents the consumed amount, in cents
+	 */
+	public ChallengeBudget(String challengeId, long lockedCents, long consumedCents) {
+		this(challengeId, lockedCents, consumedCents, 0);
+	}
 }
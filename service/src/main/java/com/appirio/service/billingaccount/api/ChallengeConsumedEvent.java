@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The challenge-ba-consumed event published to Harmony when an amount of a challenge is consumed.
+ *
+ * The event is written field by field with the Jackson streaming generator, so building it doesn't box the amounts nor
+ * go through intermediate maps. The JSON is stored in the outbox with the budget writes, and encoded once by the
+ * OutboxRelay when it's sent.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@AllArgsConstructor
+public class ChallengeConsumedEvent {
+
+    /**
+     * The source of the event
+     */
+    private static final String SOURCE = "tc-billing-account-service";
+
+    /**
+     * The publisher of the event
+     */
+    private static final String PUBLISHER = "tc-billing-account-service.api";
+
+    /**
+     * The event and payload type
+     */
+    private static final String EVENT_TYPE = "challenge-ba-consumed";
+
+    /**
+     * The payload version
+     */
+    private static final int PAYLOAD_VERSION = 1;
+
+    /**
+     * The initial size of the JSON writer
+     */
+    private static final int INITIAL_WRITER_CHARS = 256;
+
+    /**
+     * The factory of the generators, thread safe
+     */
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * The billing account id
+     */
+    @Getter
+    private final long billingAccountId;
+
+    /**
+     * The challenge id
+     */
+    @Getter
+    private final String challengeId;
+
+    /**
+     * The consumed amount, in cents
+     */
+    @Getter
+    private final long consumeCents;
+
+    /**
+     * The markup, null if unknown
+     */
+    @Getter
+    private final Float markup;
+
+    /**
+     * Serialize the event to JSON. The markup and challenge id are omitted when null.
+     *
+     * @return the JSON
+     */
+    public String toJson() {
+        StringWriter writer = new StringWriter(INITIAL_WRITER_CHARS);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeStringField("source", SOURCE);
+            generator.writeStringField("publisher", PUBLISHER);
+            generator.writeStringField("eventType", EVENT_TYPE);
+            generator.writeStringField("payloadType", EVENT_TYPE);
+            generator.writeNumberField("payloadVersion", PAYLOAD_VERSION);
+
+            generator.writeObjectFieldStart("payload");
+            generator.writeNumberField("billingAccountId", this.billingAccountId);
+            generator.writeNumberField("actualSpent", Cents.toAmount(this.consumeCents));
+            if (this.challengeId != null) {
+                generator.writeStringField("challengeId", this.challengeId);
+            }
+            if (this.markup != null) {
+                generator.writeNumberField("markup", this.markup);
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        } catch (IOException e) {
+            // not thrown by the in-memory writer
+            throw new IllegalStateException("Unable to serialize the consumed event of challenge:" + this.challengeId,
+                    e);
+        }
+        return writer.toString();
+    }
+}
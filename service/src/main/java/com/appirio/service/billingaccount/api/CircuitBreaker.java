@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+/**
+ * CircuitBreaker stops the calls to a failing endpoint.
+ *
+ * The circuit opens after a number of consecutive failures, and the calls are refused while it's open. Once the open
+ * time is over, one trial call is let through: the circuit closes if it succeeds and opens again otherwise.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class CircuitBreaker {
+
+    /**
+     * The state of the circuit
+     */
+    public enum State {
+        /**
+         * The calls are let through
+         */
+        CLOSED,
+
+        /**
+         * The calls are refused
+         */
+        OPEN,
+
+        /**
+         * A trial call is running, the other calls are refused
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The default number of consecutive failures opening the circuit
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * The default time the circuit stays open before the trial call, in milliseconds
+     */
+    public static final int DEFAULT_OPEN_MILLIS = 30000;
+
+    /**
+     * The number of consecutive failures opening the circuit
+     */
+    private final int failureThreshold;
+
+    /**
+     * The time the circuit stays open before the trial call, in milliseconds
+     */
+    private final long openMillis;
+
+    /**
+     * The state of the circuit
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * The number of consecutive failures
+     */
+    private int failures;
+
+    /**
+     * The time the circuit was opened, in milliseconds
+     */
+    private long openedAt;
+
+    /**
+     * Create the circuit breaker
+     *
+     * @param failureThreshold the number of consecutive failures opening the circuit
+     * @param openMillis the time the circuit stays open before the trial call, in milliseconds
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        if (failureThreshold <= 0 || openMillis < 0) {
+            throw new IllegalArgumentException(
+                    "The failure threshold must be positive and the open time must not be negative");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Check whether a call can be made, the trial call is let through once the open time is over. The caller must
+     * record the outcome of the call.
+     *
+     * @return true if the call can be made
+     */
+    public synchronized boolean allowRequest() {
+        if (this.state == State.CLOSED) {
+            return true;
+        }
+        if (this.state == State.OPEN && System.currentTimeMillis() - this.openedAt >= this.openMillis) {
+            this.state = State.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a call would be let through, without starting the trial call
+     *
+     * @return true if the circuit is closed, or open for longer than the open time
+     */
+    public synchronized boolean isCallPermitted() {
+        return this.state == State.CLOSED
+                || (this.state == State.OPEN && System.currentTimeMillis() - this.openedAt >= this.openMillis);
+    }
+
+    /**
+     * Record a successful call, the circuit is closed
+     */
+    public synchronized void recordSuccess() {
+        this.failures = 0;
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Record a failed call, the circuit is opened by the failed trial call or once the threshold is reached
+     */
+    public synchronized void recordFailure() {
+        this.failures++;
+        if (this.state == State.HALF_OPEN || this.failures >= this.failureThreshold) {
+            this.state = State.OPEN;
+            this.openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Get the state of the circuit
+     *
+     * @return the state
+     */
+    public synchronized State getState() {
+        return this.state;
+    }
+}
@@ -3,6 +3,10 @@
  */
 package com.appirio.service.billingaccount.api;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -19,11 +23,14 @@ import lombok.Setter;
 public class ConsumeAmountDTO {
 
 	/**
-	 * The consume amount.
+	 * The consume amount, in cents.
 	 */
     @Getter
     @Setter
-    private Float consumeAmount;
+    @JsonProperty("consumeAmount")
+    @JsonSerialize(using = Cents.Serializer.class)
+    @JsonDeserialize(using = Cents.Deserializer.class)
+    private Long consumeCents;
 
 
     /**
@@ -1,5 +1,13 @@
 package com.appirio.service.billingaccount.api;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,27 +17,400 @@ import com.amazonaws.services.lambda.AWSLambda;
 import com.amazonaws.services.lambda.AWSLambdaClientBuilder;
 import com.amazonaws.services.lambda.model.InvocationType;
 import com.amazonaws.services.lambda.model.InvokeRequest;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * HarmonyPublisher sends the consumed amount events to the publisher Lambda function.
+ *
+ * The events are written to the outbox with the budget writes, and the OutboxRelay sends them with sendBatch on its
+ * own thread, to mark them as sent only once the invocation succeeded. sendBatch packs the messages in as few
+ * invocations as the payload limit of the asynchronous Lambda invocations allows: several messages are sent as their
+ * JSON array, while a message sent alone keeps its own payload.
+ *
+ * The invocations go through a circuit breaker: after consecutive failures, as when the function is throttled or
+ * unreachable, sendBatch returns without waiting for the Lambda client until the circuit lets a trial invocation
+ * through. The relay checks isCallPermitted before reading the outbox, and the events stay in the outbox meanwhile.
+ *
+ * The Lambda client is built on first use, as resolving the credentials and region slows the startup and fails
+ * offline. Once started, a background task warms it with a dry run invocation, retried up to WARMUP_MAX_ATTEMPTS
+ * times; the publisher is ready once the client has completed an invocation. The warm up is skipped when the name of
+ * the function is not configured.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class HarmonyPublisher implements PublisherConsumedAmount, Managed {
+
+	/**
+	 * The default maximum size of an invocation payload, the limit of the asynchronous Lambda invocations
+	 */
+	public static final int DEFAULT_MAX_PAYLOAD_BYTES = 256 * 1024;
 
-public class HarmonyPublisher implements PublisherConsumedAmount {
+	/**
+	 * The time between two attempts to warm the Lambda client, in seconds
+	 */
+	private static final long WARMUP_RETRY_SECONDS = 30;
+
+	/**
+	 * The number of attempts to warm the Lambda client, the client is then built by the first invocation
+	 */
+	private static final int WARMUP_MAX_ATTEMPTS = 10;
 
 	private static final Logger logger = LoggerFactory.getLogger(HarmonyPublisher.class);
 
-	private final AWSLambda awsLambda;
+	/**
+	 * The factory of the Lambda client
+	 */
+	private final Supplier<AWSLambda> clientFactory;
+
+	/**
+	 * The Lambda client, built on first use
+	 */
+	private volatile AWSLambda awsLambda;
+
+	/**
+	 * Whether the Lambda client has completed an invocation
+	 */
+	private volatile boolean ready;
+
+	/**
+	 * The executor warming the Lambda client
+	 */
+	private ScheduledExecutorService warmer;
+
+	/**
+	 * The number of attempts to warm the Lambda client, only used by the warmer thread
+	 */
+	private int warmUpAttempts;
+
+	/**
+	 * The name of the Lambda function, null to read it from the PUBLISHER_LAMBDA_FUNCTION environment variable
+	 */
+	private final String functionName;
+
+	/**
+	 * The circuit breaker of the invocations, null to always invoke the function
+	 */
+	private final CircuitBreaker circuitBreaker;
+
+	/**
+	 * The maximum size of an invocation payload, in bytes
+	 */
+	private final int maxPayloadBytes;
+
+	/**
+	 * The number of messages sent per invocation
+	 */
+	private final Histogram batchSize = new Histogram(new ExponentiallyDecayingReservoir());
+
+	/**
+	 * The duration of the invocations
+	 */
+	private final Timer latency = new Timer();
+
+	/**
+	 * The number of failed invocations
+	 */
+	private final Counter failures = new Counter();
+
+	/**
+	 * The number of invocations refused by the circuit breaker
+	 */
+	private final Counter rejected = new Counter();
 
+	/**
+	 * Create the publisher with the default payload and circuit breaker settings
+	 */
 	public HarmonyPublisher() {
-		awsLambda = AWSLambdaClientBuilder.standard().withCredentials(new DefaultAWSCredentialsProviderChain())
-				.withRegion(Regions.US_EAST_1).build();
+		this(DEFAULT_MAX_PAYLOAD_BYTES, new CircuitBreaker(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD,
+				CircuitBreaker.DEFAULT_OPEN_MILLIS));
 	}
 
-	public void publish(String msg) {
+	/**
+	 * Create the publisher
+	 *
+	 * @param maxPayloadBytes the maximum size of an invocation payload, in bytes
+	 * @param circuitBreaker the circuit breaker of the invocations, null to always invoke the function
+	 */
+	public HarmonyPublisher(int maxPayloadBytes, CircuitBreaker circuitBreaker) {
+		this(() -> AWSLambdaClientBuilder.standard().withCredentials(new DefaultAWSCredentialsProviderChain())
+				.withRegion(Regions.US_EAST_1).build(), null, maxPayloadBytes, circuitBreaker);
+	}
+
+	/**
+	 * Create the publisher
+	 *
+	 * @param awsLambda the Lambda client
+	 * @param functionName the name of the Lambda function, null to read it from the PUBLISHER_LAMBDA_FUNCTION
+	 * environment variable
+	 * @param maxPayloadBytes the maximum size of an invocation payload, in bytes
+	 * @param circuitBreaker the circuit breaker of the invocations, null to always invoke the function
+	 */
+	public HarmonyPublisher(AWSLambda awsLambda, String functionName, int maxPayloadBytes,
+			CircuitBreaker circuitBreaker) {
+		this(() -> awsLambda, functionName, maxPayloadBytes, circuitBreaker);
+	}
+
+	/**
+	 * Create the publisher
+	 *
+	 * @param clientFactory the factory of the Lambda client, called on first use
+	 * @param functionName the name of the Lambda function, null to read it from the PUBLISHER_LAMBDA_FUNCTION
+	 * environment variable
+	 * @param maxPayloadBytes the maximum size of an invocation payload, in bytes
+	 * @param circuitBreaker the circuit breaker of the invocations, null to always invoke the function
+	 */
+	private HarmonyPublisher(Supplier<AWSLambda> clientFactory, String functionName, int maxPayloadBytes,
+			CircuitBreaker circuitBreaker) {
+		if (maxPayloadBytes <= 0) {
+			throw new IllegalArgumentException("The maximum payload size must be positive");
+		}
+		this.clientFactory = clientFactory;
+		this.functionName = functionName;
+		this.maxPayloadBytes = maxPayloadBytes;
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	/**
+	 * Register the batch size, the latency, the failures and the invocations refused by the circuit breaker
+	 *
+	 * @param registry the registry to use
+	 */
+	public void registerMetrics(MetricRegistry registry) {
+		registry.register(MetricRegistry.name(HarmonyPublisher.class, "batch-size"), this.batchSize);
+		registry.register(MetricRegistry.name(HarmonyPublisher.class, "latency"), this.latency);
+		registry.register(MetricRegistry.name(HarmonyPublisher.class, "failures"), this.failures);
+		registry.register(MetricRegistry.name(HarmonyPublisher.class, "rejected"), this.rejected);
+		registry.register(MetricRegistry.name(HarmonyPublisher.class, "circuit-state"),
+				(Gauge<String>) () -> this.circuitBreaker == null ? null : this.circuitBreaker.getState().name());
+	}
+
+	/**
+	 * Start warming the Lambda client, unless the name of the function is not configured
+	 */
+	@Override
+	public void start() {
+		String function = function();
+		if (function == null || function.isEmpty()) {
+			logger.warn("The name of the Harmony Publisher function is not configured, the client is not warmed");
+			return;
+		}
+		this.warmer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "harmony-publisher-warmup");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.warmer.execute(this::warmUp);
+	}
+
+	/**
+	 * Stop warming the Lambda client
+	 */
+	@Override
+	public void stop() {
+		if (this.warmer != null) {
+			this.warmer.shutdownNow();
+		}
+	}
+
+	/**
+	 * Send several messages on the calling thread, with as few invocations as the maximum payload size allows. The
+	 * payload of an invocation is the JSON array of its messages, or the message itself when it's sent alone. A failed
+	 * invocation is thrown to the caller so the messages can be sent again, including those of the previous
+	 * invocations.
+	 *
+	 * @param msgs the UTF-8 JSON messages to send
+	 * @return true if the messages were sent, false if the circuit is open, the messages must be sent again
+	 */
+	public boolean sendBatch(List<byte[]> msgs) {
+		if (msgs == null || msgs.isEmpty()) {
+			return true;
+		}
+		List<byte[]> elements = new ArrayList<>();
+		int bytes = 2;
+		for (byte[] msg : msgs) {
+			if (!elements.isEmpty() && bytes + msg.length > this.maxPayloadBytes) {
+				if (!sendElements(elements)) {
+					return false;
+				}
+				elements.clear();
+				bytes = 2;
+			}
+			elements.add(msg);
+			bytes += msg.length + 1;
+		}
+		return sendElements(elements);
+	}
+
+	/**
+	 * Check whether the circuit breaker would let an invocation through
+	 *
+	 * @return true if the circuit is closed, or open for longer than its open time
+	 */
+	public boolean isCallPermitted() {
+		return this.circuitBreaker == null || this.circuitBreaker.isCallPermitted();
+	}
+
+	/**
+	 * Check whether the Lambda client is warmed, by the dry run invocation or any completed invocation
+	 *
+	 * @return true if the publisher is ready
+	 */
+	public boolean isReady() {
+		return this.ready;
+	}
+
+	/**
+	 * Send messages with one invocation, unless the circuit breaker refuses it
+	 *
+	 * @param elements the UTF-8 messages
+	 * @return true if the messages were sent, false if the circuit is open
+	 */
+	private boolean sendElements(List<byte[]> elements) {
+		if (!allowRequest()) {
+			return false;
+		}
+		long start = System.nanoTime();
 		try {
-			String functionName = System.getenv("PUBLISHER_LAMBDA_FUNCTION");
+			invoke(elements.size() == 1 ? elements.get(0) : toArray(elements));
+			recordSuccess();
+			this.batchSize.update(elements.size());
+			return true;
+		} catch (RuntimeException e) {
+			recordFailure();
+			throw e;
+		} finally {
+			this.latency.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Write the JSON array of several messages
+	 *
+	 * @param msgs the messages
+	 * @return the JSON array
+	 */
+	private static byte[] toArray(List<byte[]> msgs) {
+		int size = 1;
+		for (byte[] msg : msgs) {
+			size += msg.length + 1;
+		}
+		byte[] array = new byte[size];
+		array[0] = '[';
+		int offset = 1;
+		for (byte[] msg : msgs) {
+			System.arraycopy(msg, 0, array, offset, msg.length);
+			offset += msg.length;
+			array[offset++] = ',';
+		}
+		array[size - 1] = ']';
+		return array;
+	}
 
-			awsLambda.invoke(new InvokeRequest().withInvocationType(InvocationType.Event).withFunctionName(functionName)
-					.withPayload(msg));
+	/**
+	 * Invoke the Lambda function asynchronously with a payload
+	 *
+	 * @param payload the payload
+	 */
+	private void invoke(byte[] payload) {
+		client().invoke(new InvokeRequest().withInvocationType(InvocationType.Event).withFunctionName(function())
+				.withPayload(ByteBuffer.wrap(payload)));
+		this.ready = true;
+	}
 
+	/**
+	 * Warm the Lambda client with a dry run invocation, which checks the function and the permission to invoke it
+	 * without running it. A failed warm up is tried again after WARMUP_RETRY_SECONDS, up to WARMUP_MAX_ATTEMPTS
+	 * attempts.
+	 */
+	private void warmUp() {
+		if (this.ready) {
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			client().invoke(new InvokeRequest().withInvocationType(InvocationType.DryRun).withFunctionName(function()));
+			this.ready = true;
+			logger.info("Warmed the Harmony Publisher client in "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
 		} catch (Exception e) {
-			logger.error("Unable to send message to Harmony Publisher: " + msg, e);
+			if (++this.warmUpAttempts >= WARMUP_MAX_ATTEMPTS) {
+				logger.warn("Unable to warm the Harmony Publisher client after " + this.warmUpAttempts
+						+ " attempts, it's built by the first invocation", e);
+				return;
+			}
+			logger.warn("Unable to warm the Harmony Publisher client, trying again in " + WARMUP_RETRY_SECONDS
+					+ " seconds", e);
+			if (!this.warmer.isShutdown()) {
+				this.warmer.schedule(this::warmUp, WARMUP_RETRY_SECONDS, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Get the Lambda client, it's built on first use
+	 *
+	 * @return the Lambda client
+	 */
+	private AWSLambda client() {
+		AWSLambda client = this.awsLambda;
+		if (client == null) {
+			synchronized (this.clientFactory) {
+				client = this.awsLambda;
+				if (client == null) {
+					client = this.clientFactory.get();
+					this.awsLambda = client;
+				}
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * Get the name of the Lambda function
+	 *
+	 * @return the function name
+	 */
+	private String function() {
+		return this.functionName != null ? this.functionName : System.getenv("PUBLISHER_LAMBDA_FUNCTION");
+	}
+
+	/**
+	 * Check whether the circuit breaker lets an invocation through
+	 *
+	 * @return true if the function can be invoked
+	 */
+	private boolean allowRequest() {
+		if (this.circuitBreaker == null || this.circuitBreaker.allowRequest()) {
+			return true;
+		}
+		this.rejected.inc();
+		return false;
+	}
+
+	/**
+	 * Record a successful invocation
+	 */
+	private void recordSuccess() {
+		if (this.circuitBreaker != null) {
+			this.circuitBreaker.recordSuccess();
+		}
+	}
+
+	/**
+	 * Record a failed invocation
+	 */
+	private void recordFailure() {
+		this.failures.inc();
+		if (this.circuitBreaker != null) {
+			this.circuitBreaker.recordFailure();
 		}
 	}
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import com.codahale.metrics.health.HealthCheck;
+
+/**
+ * HarmonyPublisherHealthCheck reports the readiness of the Harmony publisher: it's unhealthy until its Lambda client
+ * has completed the dry run invocation of the warm up, or any invocation.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class HarmonyPublisherHealthCheck extends HealthCheck {
+
+    /**
+     * The Harmony publisher
+     */
+    private final HarmonyPublisher harmonyPublisher;
+
+    /**
+     * Create the health check
+     *
+     * @param harmonyPublisher the Harmony publisher
+     */
+    public HarmonyPublisherHealthCheck(HarmonyPublisher harmonyPublisher) {
+        this.harmonyPublisher = harmonyPublisher;
+    }
+
+    /**
+     * Check whether the Lambda client of the publisher is warmed
+     *
+     * @return healthy once the client is warmed
+     */
+    @Override
+    protected Result check() {
+        return this.harmonyPublisher.isReady() ? Result.healthy()
+                : Result.unhealthy("The Lambda client of the Harmony publisher is not warmed yet");
+    }
+}
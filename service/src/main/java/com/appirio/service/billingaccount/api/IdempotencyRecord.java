@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * DTO for a completed lock or consume amount request, stored by its Idempotency-Key.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+public class IdempotencyRecord {
+
+    /**
+     * The challenge Id of the request.
+     */
+    @Getter
+    @Setter
+    private String challengeId;
+
+    /**
+     * The amount of the request, in cents.
+     */
+    @Getter
+    @Setter
+    private long amountCents;
+}
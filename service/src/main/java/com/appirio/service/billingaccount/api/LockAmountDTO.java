@@ -3,6 +3,11 @@
  */
 package com.appirio.service.billingaccount.api;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -19,11 +24,14 @@ import lombok.Setter;
 public class LockAmountDTO {
 
 	/**
-	 * The consume amount.
+	 * The lock amount, in cents.
 	 */
     @Getter
     @Setter
-    private Float lockAmount;
+    @JsonProperty("lockAmount")
+    @JsonSerialize(using = Cents.Serializer.class)
+    @JsonDeserialize(using = Cents.Deserializer.class)
+    private Long lockCents;
 
 
     /**
@@ -32,5 +40,22 @@ public class LockAmountDTO {
     @Getter
     @Setter
     private String challengeId;
-    
+
+    /**
+     * The optional time to live of the lock in seconds, the lock is released automatically once expired.
+     */
+    @Getter
+    @Setter
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer ttlSeconds;
+
+    /**
+     * Create a lock amount without time to live.
+     *
+     * @param lockCents the lock amount, in cents
+     * @param challengeId the challenge id
+     */
+    public LockAmountDTO(Long lockCents, String challengeId) {
+        this(lockCents, challengeId, null);
+    }
 }
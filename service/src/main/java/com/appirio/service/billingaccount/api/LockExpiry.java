@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import java.util.Date;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * DTO for the expiry time of the lock of a challenge.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+public class LockExpiry {
+
+    /**
+     * The billing account id.
+     */
+    @Getter
+    @Setter
+    private long projectId;
+
+    /**
+     * The challenge Id.
+     */
+    @Getter
+    @Setter
+    private String challengeId;
+
+    /**
+     * The time the lock expires.
+     */
+    @Getter
+    @Setter
+    private Date expiryDate;
+}
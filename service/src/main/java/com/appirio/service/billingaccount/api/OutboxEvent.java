@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import java.util.Date;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * DTO for an event written to the outbox with the budget write which raised it, and not sent yet.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+public class OutboxEvent {
+
+    /**
+     * The event id, in the order the events were written.
+     */
+    @Getter
+    @Setter
+    private long eventId;
+
+    /**
+     * The billing account id.
+     */
+    @Getter
+    @Setter
+    private long billingAccountId;
+
+    /**
+     * The JSON message of the event.
+     */
+    @Getter
+    @Setter
+    private String payload;
+
+    /**
+     * The number of failed publications.
+     */
+    @Getter
+    @Setter
+    private int attempts;
+
+    /**
+     * The time the event was written.
+     */
+    @Getter
+    @Setter
+    private Date createdAt;
+}
@@ -1,5 +1,32 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
 package com.appirio.service.billingaccount.api;
 
+import java.util.List;
+
+/**
+ * PublisherConsumedAmount publishes the challenge-ba-consumed events of the consumed amounts.
+ *
+ * It's called by the OutboxRelay with the events read from the outbox, which are marked as sent once the call
+ * returns true.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
 public interface PublisherConsumedAmount {
-    public void publish(String msg);
+    /**
+     * Send several messages, a failed send is thrown so the messages can be sent again.
+     *
+     * <p>
+     * Each message is the UTF-8 bytes of one JSON object. The messages may be sent with several calls of the endpoint:
+     * a message sent alone is sent as is, and several messages sent together are sent as a JSON array of the objects,
+     * in the order of the list.
+     * </p>
+     *
+     * @param msgs the UTF-8 JSON messages to send
+     * @return true if all the messages were sent, false if the publisher refused them for now, for example while its
+     * circuit is open: the messages should all be sent again later, some of them may have been sent already
+     */
+    public boolean sendBatch(List<byte[]> msgs);
 }
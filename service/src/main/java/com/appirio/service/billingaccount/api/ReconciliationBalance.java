@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * DTO for the budget figures of a billing account compared by the reconciler: the budget, the running totals, the
+ * sums of the challenge entries and the balance of the budget ledger.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+public class ReconciliationBalance {
+
+    /**
+     * The billing account id.
+     */
+    @Getter
+    @Setter
+    private long projectId;
+
+    /**
+     * The budget amount, in cents.
+     */
+    @Getter
+    @Setter
+    private long budgetCents;
+
+    /**
+     * The running total of the locked amounts, in cents, null if the billing account has no totals yet.
+     */
+    @Getter
+    @Setter
+    private Long totalLockedCents;
+
+    /**
+     * The running total of the consumed amounts, in cents, null if the billing account has no totals yet.
+     */
+    @Getter
+    @Setter
+    private Long totalConsumedCents;
+
+    /**
+     * The sum of the locked amounts of the challenge entries, in cents.
+     */
+    @Getter
+    @Setter
+    private long entryLockedCents;
+
+    /**
+     * The sum of the consumed amounts of the challenge entries, in cents.
+     */
+    @Getter
+    @Setter
+    private long entryConsumedCents;
+
+    /**
+     * The number of challenge entries beyond the first one of their challenge.
+     */
+    @Getter
+    @Setter
+    private int duplicateEntries;
+
+    /**
+     * The locked amount of the budget ledger, in cents.
+     */
+    @Getter
+    @Setter
+    private long ledgerLockedCents;
+
+    /**
+     * The consumed amount of the budget ledger, in cents.
+     */
+    @Getter
+    @Setter
+    private long ledgerConsumedCents;
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import java.util.Date;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * DTO for an anomaly of the budget of a billing account found by the reconciler.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@NoArgsConstructor
+public class ReconciliationIssue {
+
+    /**
+     * The issue type of several entries for the same challenge.
+     */
+    public static final String DUPLICATE_ENTRY = "DUPLICATE_ENTRY";
+
+    /**
+     * The issue type of locked and consumed amounts above the budget.
+     */
+    public static final String OVER_COMMIT = "OVER_COMMIT";
+
+    /**
+     * The issue type of running totals different from the challenge entries.
+     */
+    public static final String TOTAL_DRIFT = "TOTAL_DRIFT";
+
+    /**
+     * The issue type of a budget ledger balance different from the challenge entries.
+     */
+    public static final String LEDGER_DRIFT = "LEDGER_DRIFT";
+
+    /**
+     * The issue id.
+     */
+    @Getter
+    @Setter
+    private long issueId;
+
+    /**
+     * The billing account id.
+     */
+    @Getter
+    @Setter
+    private long billingAccountId;
+
+    /**
+     * The challenge Id, for the issues of a challenge.
+     */
+    @Getter
+    @Setter
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String challengeId;
+
+    /**
+     * The issue type.
+     */
+    @Getter
+    @Setter
+    private String issueType;
+
+    /**
+     * The expected amount, in cents.
+     */
+    @Getter
+    @Setter
+    @JsonProperty("expectedAmount")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @JsonSerialize(using = Cents.Serializer.class)
+    @JsonDeserialize(using = Cents.Deserializer.class)
+    private Long expectedCents;
+
+    /**
+     * The actual amount, in cents.
+     */
+    @Getter
+    @Setter
+    @JsonProperty("actualAmount")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @JsonSerialize(using = Cents.Serializer.class)
+    @JsonDeserialize(using = Cents.Deserializer.class)
+    private Long actualCents;
+
+    /**
+     * The details of the issue.
+     */
+    @Getter
+    @Setter
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String detail;
+
+    /**
+     * The time the issue was found.
+     */
+    @Getter
+    @Setter
+    private Date createdAt;
+
+    /**
+     * Create the instance
+     *
+     * @param billingAccountId the billing account id
+     * @param challengeId the challenge Id, null for the issues of the billing account
+     * @param issueType the issue type
+     * @param expectedCents the expected amount, in cents
+     * @param actualCents the actual amount, in cents
+     * @param detail the details of the issue
+     */
+    public ReconciliationIssue(long billingAccountId, String challengeId, String issueType, Long expectedCents,
+                               Long actualCents, String detail) {
+        this.billingAccountId = billingAccountId;
+        this.challengeId = challengeId;
+        this.issueType = issueType;
+        this.expectedCents = expectedCents;
+        this.actualCents = actualCents;
+        this.detail = detail;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.api;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * This DTO hold the budget amount to move to another billing account of the same client.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+public class TransferAmountDTO {
+
+    /**
+     * The id of the billing account receiving the amount.
+     */
+    @Getter
+    @Setter
+    private Long toBillingAccountId;
+
+    /**
+     * The amount to move, in cents.
+     */
+    @Getter
+    @Setter
+    @JsonProperty("amount")
+    @JsonSerialize(using = Cents.Serializer.class)
+    @JsonDeserialize(using = Cents.Deserializer.class)
+    private Long amountCents;
+}
@@ -5,12 +5,19 @@ package com.appirio.service.billingaccount.dao;
 
 import com.appirio.service.billingaccount.api.BillingAccount;
 import com.appirio.service.billingaccount.api.BillingAccountUser;
+import com.appirio.service.billingaccount.api.BudgetHeadroom;
+import com.appirio.service.billingaccount.api.BudgetOperation;
+import com.appirio.service.billingaccount.api.BudgetTotal;
 import com.appirio.service.billingaccount.api.ChallengeBudget;
 import com.appirio.service.billingaccount.api.ChallengeFee;
 import com.appirio.service.billingaccount.api.ChallengeFeePercentage;
 import com.appirio.service.billingaccount.api.ChallengeType;
 import com.appirio.service.billingaccount.api.IdDTO;
-import com.appirio.service.billingaccount.api.FloatDTO;
+import com.appirio.service.billingaccount.api.IdempotencyRecord;
+import com.appirio.service.billingaccount.api.LockExpiry;
+import com.appirio.service.billingaccount.api.OutboxEvent;
+import com.appirio.service.billingaccount.api.ReconciliationBalance;
+import com.appirio.service.billingaccount.api.ReconciliationIssue;
 import com.appirio.service.billingaccount.dto.TCUserDTO;
 import com.appirio.supply.dataaccess.ApiQueryInput;
 import com.appirio.supply.dataaccess.DatasourceName;
@@ -19,8 +26,13 @@ import com.appirio.supply.dataaccess.SqlQueryFile;
 import com.appirio.supply.dataaccess.SqlUpdateFile;
 import com.appirio.tech.core.api.v3.request.QueryParameter;
 
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
+import org.skife.jdbi.v2.sqlobject.customizers.FetchSize;
+import org.skife.jdbi.v2.sqlobject.mixins.Transactional;
 
+import java.math.BigDecimal;
 import java.util.Date;
 import java.util.List;
 
@@ -54,7 +66,7 @@ import java.util.List;
  * @version 1.4 
  */
 @DatasourceName("oltp")
-public interface BillingAccountDAO {
+public interface BillingAccountDAO extends Transactional<BillingAccountDAO> {
 
     /**
      * Search for billing accounts
@@ -249,6 +261,16 @@ public interface BillingAccountDAO {
     @SqlQueryFile("sql/billing-account/check-client-exists.sql")
     IdDTO checkClientExists(@Bind("clientId") Long clientId);
 
+    /**
+     * Get the client to which a billing account is associated.
+     *
+     * @param billingAccountId the billing account id
+     *
+     * @return The IdDTO instance containing the id of the client. ( null if the billing account has no client)
+     */
+    @SqlQueryFile("sql/billing-account/get-billing-account-client.sql")
+    IdDTO getBillingAccountClient(@Bind("billingAccountId") Long billingAccountId);
+
     /**
      * Creates a mapping between client and billing account.
      *
@@ -402,52 +424,554 @@ public interface BillingAccountDAO {
     IdDTO countChallengeIdEntries(@Bind("projectId") long projectId, @Bind("challengeId") String challengeId);
 
     /**
-     * Get sum of All Consumed Amount for a given Project ID excluding queried Challenge
+     * Create entries with Consumed amount and Locked Amount for several Challenges in a Billing account with one batch
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param challengeIds : Refers to the Challenge IDs
+     * @param lockedAmounts : Refers to the amounts to be locked, in the order of the challenge ids
+     * @param consumedAmounts : Refers to the amounts actually spent, in the order of the challenge ids
+     */
+    @SqlBatch("sql/billing-account/budget-amount/create-locked-amount.sql")
+    void createLockedAmounts(@Bind("projectId") long projectId,
+                             @Bind("challengeId") List<String> challengeIds,
+                             @Bind("lockedAmount") List<BigDecimal> lockedAmounts,
+                             @Bind("consumedAmount") List<BigDecimal> consumedAmounts);
+
+    /**
+     * Update existing entries with Consumed amount and Locked Amount for several Challenges in a Billing account with
+     * one batch, an entry is only updated if its version is unchanged
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param challengeIds : Refers to the Challenge IDs
+     * @param lockedAmounts : Refers to the amounts to be locked, in the order of the challenge ids
+     * @param consumedAmounts : Refers to the amounts actually spent, in the order of the challenge ids
+     * @param versions : Refers to the versions of the entries read before, in the order of the challenge ids
+     * @return the number of updated entries, per challenge id, 0 if the entry was changed meanwhile
+     */
+    @SqlBatch("sql/billing-account/budget-amount/update-consumed-amount-for-challangeid.sql")
+    int[] updateConsumedAmountsForChallengeids(@Bind("projectId") long projectId,
+                                               @Bind("challengeId") List<String> challengeIds,
+                                               @Bind("lockedAmount") List<BigDecimal> lockedAmounts,
+                                               @Bind("consumedAmount") List<BigDecimal> consumedAmounts,
+                                               @Bind("version") List<Long> versions);
+
+    /**
+     * Create the running totals of locked and consumed amounts of a Billing account from its challenge entries,
+     * if the billing account exists and has no totals yet.
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @return the number of created totals, 0 if the billing account does not exist or already has totals
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/create-budget-total.sql")
+    int createBudgetTotal(@Bind("projectId") long projectId);
+
+    /**
+     * Get the budget amount and the running totals of locked and consumed amounts of a Billing account
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @return the budget totals, null if the billing account does not exist or has no totals yet
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-budget-total.sql")
+    BudgetTotal getBudgetTotal(@Bind("projectId") long projectId);
+
+    /**
+     * Get the budget amount, the running totals and the largest challenge entries of a Billing account
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @return the budget headroom, null if the billing account does not exist or has no totals yet
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-budget-headroom.sql")
+    BudgetHeadroom getBudgetHeadroom(@Bind("projectId") long projectId);
+
+    /**
+     * Take the row lock on the running totals of a Billing account so that budget mutations of the same account are
+     * serialized until the surrounding transaction ends.
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @return the number of locked totals, 0 if the billing account does not exist or has no totals yet
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/lock-budget-total.sql")
+    int lockBudgetTotal(@Bind("projectId") long projectId);
+
+    /**
+     * Take the row lock on the running totals of a Billing account and increment their version, so that the budget
+     * updates which read the totals before are retried with the new budget amount.
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @return the number of updated totals, 0 if the billing account does not exist or has no totals yet
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/bump-budget-version.sql")
+    int bumpBudgetVersion(@Bind("projectId") long projectId);
+
+    /**
+     * Add an amount to the budget of a Billing account. A negative amount is only taken if the budget left still
+     * covers the locked and consumed amounts of the running totals.
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param amount : Refers to the amount to add to the budget, negative to take it out
+     * @param userId : Refers to the user id (for audit purposes only)
+     * @return the number of updated billing accounts, 0 if the budget is insufficient or the billing account does
+     * not exist
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/add-budget-amount.sql")
+    int addBudgetAmount(@Bind("projectId") long projectId,
+                        @Bind("amount") BigDecimal amount,
+                        @Bind("userId") String userId);
+
+    /**
+     * Append the change of the entry of a Challenge to the budget ledger of a Billing account, must be called before
+     * the entry is written
      *
      * @param projectId : Refers to the Billing Account ID
      * @param challengeId : Refers to the Challenge ID
-     * 
+     * @param entryType : Refers to the type of the change, LOCK, CONSUME or RELEASE
+     * @param lockedAmount : Refers to the new locked amount of the challenge
+     * @param consumedAmount : Refers to the new consumed amount of the challenge
      */
-    @SqlQueryFile("sql/billing-account/budget-amount/get-sum-consumed-amount.sql")
-    FloatDTO getSumConsumedAmount(@Bind("projectId") long projectId, @Bind("challengeId") String challengeId);
+    @SqlUpdateFile("sql/billing-account/budget-amount/create-ledger-entry.sql")
+    void createLedgerEntry(@Bind("projectId") long projectId,
+                           @Bind("challengeId") String challengeId,
+                           @Bind("entryType") String entryType,
+                           @Bind("lockedAmount") BigDecimal lockedAmount,
+                           @Bind("consumedAmount") BigDecimal consumedAmount);
 
     /**
-     * Get sum of All Consumed Amount for a given Project ID excluding queried Challenge + Locked amount of queried Challenge
+     * Append the changes of the entries of Challenges to the budget ledger of a Billing account in one batch, must be
+     * called before the entries are written
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param challengeIds : Refers to the Challenge IDs
+     * @param entryType : Refers to the type of the changes, LOCK or CONSUME
+     * @param lockedAmounts : Refers to the new locked amounts, in the order of the challenge ids
+     * @param consumedAmounts : Refers to the new consumed amounts, in the order of the challenge ids
+     */
+    @SqlBatch("sql/billing-account/budget-amount/create-ledger-entry.sql")
+    void createLedgerEntries(@Bind("projectId") long projectId,
+                             @Bind("challengeId") List<String> challengeIds,
+                             @Bind("entryType") String entryType,
+                             @Bind("lockedAmount") List<BigDecimal> lockedAmounts,
+                             @Bind("consumedAmount") List<BigDecimal> consumedAmounts);
+
+    /**
+     * Set the expiry time of the lock of a Challenge, if the Billing account has its running totals
      *
      * @param projectId : Refers to the Billing Account ID
      * @param challengeId : Refers to the Challenge ID
-     * 
+     * @param ttlSeconds : Refers to the time to live of the lock, in seconds
      */
-    @SqlQueryFile("sql/billing-account/budget-amount/get-sum-locked-consumed-amount.sql")
-    FloatDTO getSumLockedConsumedAmount(@Bind("projectId") long projectId, @Bind("challengeId") String challengeId);
+    @SqlUpdateFile("sql/billing-account/budget-amount/upsert-lock-expiry.sql")
+    void upsertLockExpiry(@Bind("projectId") long projectId,
+                          @Bind("challengeId") String challengeId,
+                          @Bind("ttlSeconds") int ttlSeconds);
 
     /**
-     * Create an entry with Consumed amount and Locked Amount for a Challenge in a Billing account
+     * Set the expiry times of the locks of Challenges in one batch
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param challengeIds : Refers to the Challenge IDs
+     * @param ttlSeconds : Refers to the times to live of the locks, in the order of the challenge ids
+     */
+    @SqlBatch("sql/billing-account/budget-amount/upsert-lock-expiry.sql")
+    void upsertLockExpiries(@Bind("projectId") long projectId,
+                            @Bind("challengeId") List<String> challengeIds,
+                            @Bind("ttlSeconds") List<Integer> ttlSeconds);
+
+    /**
+     * Remove the expiry time of the lock of a Challenge
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param challengeId : Refers to the Challenge ID
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/delete-lock-expiry.sql")
+    void deleteLockExpiry(@Bind("projectId") long projectId, @Bind("challengeId") String challengeId);
+
+    /**
+     * Remove the expiry times of the locks of Challenges in one batch
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param challengeIds : Refers to the Challenge IDs
+     */
+    @SqlBatch("sql/billing-account/budget-amount/delete-lock-expiry.sql")
+    void deleteLockExpiries(@Bind("projectId") long projectId, @Bind("challengeId") List<String> challengeIds);
+
+    /**
+     * Write an event of a Billing account to the outbox, in the transaction of the budget write which raised it
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param payload : Refers to the JSON message of the event
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/create-outbox-event.sql")
+    void createOutboxEvent(@Bind("projectId") long projectId, @Bind("payload") String payload);
+
+    /**
+     * Write several events of a Billing account to the outbox in one batch
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param payloads : Refers to the JSON messages of the events
+     */
+    @SqlBatch("sql/billing-account/budget-amount/create-outbox-event.sql")
+    void createOutboxEvents(@Bind("projectId") long projectId, @Bind("payload") List<String> payloads);
+
+    /**
+     * Get the outbox events not sent yet, not in the dead letters and not claimed by a relay, in the order they were
+     * written
+     *
+     * @param limit : Refers to the maximum number of events to get
+     * @return the events, in event_id order
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-unsent-outbox-events.sql")
+    List<OutboxEvent> getUnsentOutboxEvents(@Bind("limit") int limit);
+
+    /**
+     * Count the outbox events not sent yet and not in the dead letters, whether claimed by a relay or not
+     *
+     * @return the number of events, as id
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/count-unsent-outbox-events.sql")
+    IdDTO countUnsentOutboxEvents();
+
+    /**
+     * Claim outbox events for a relay in one batch, with a lease expiring after the given time
+     *
+     * @param eventIds : Refers to the event IDs
+     * @param leaseOwner : Refers to the id of the relay claiming the events
+     * @param leaseSeconds : Refers to the time after which the events are claimed by another relay
+     * @return the number of claimed events, one per event, 0 if claimed by another relay meanwhile
+     */
+    @SqlBatch("sql/billing-account/budget-amount/claim-outbox-event.sql")
+    int[] claimOutboxEvents(@Bind("eventId") List<Long> eventIds,
+                            @Bind("leaseOwner") String leaseOwner,
+                            @Bind("leaseSeconds") int leaseSeconds);
+
+    /**
+     * Mark outbox events still claimed by the relay as sent in one batch
+     *
+     * @param eventIds : Refers to the event IDs
+     * @param leaseOwner : Refers to the id of the relay holding the lease
+     */
+    @SqlBatch("sql/billing-account/budget-amount/mark-outbox-event-sent.sql")
+    void markOutboxEventsSent(@Bind("eventId") List<Long> eventIds, @Bind("leaseOwner") String leaseOwner);
+
+    /**
+     * Count a failed publication of outbox events still claimed by the relay in one batch, their claim is released so
+     * they're sent again by the next relay
+     *
+     * @param eventIds : Refers to the event IDs
+     * @param leaseOwner : Refers to the id of the relay holding the lease
+     */
+    @SqlBatch("sql/billing-account/budget-amount/retry-outbox-event.sql")
+    void retryOutboxEvents(@Bind("eventId") List<Long> eventIds, @Bind("leaseOwner") String leaseOwner);
+
+    /**
+     * Count the last failed publication of outbox events still claimed by the relay in one batch, they're moved to the
+     * dead letters and not sent anymore
+     *
+     * @param eventIds : Refers to the event IDs
+     * @param leaseOwner : Refers to the id of the relay holding the lease
+     */
+    @SqlBatch("sql/billing-account/budget-amount/fail-outbox-event.sql")
+    void failOutboxEvents(@Bind("eventId") List<Long> eventIds, @Bind("leaseOwner") String leaseOwner);
+
+    /**
+     * Remove the outbox events sent before the retention
+     *
+     * @param retentionHours : Refers to the retention of the sent events, in hours
+     * @return the number of removed events
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/purge-outbox-events.sql")
+    int purgeOutboxEvents(@Bind("retentionHours") int retentionHours);
+
+    /**
+     * Remove the expiry time of the lock of a Challenge if it is expired
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param challengeId : Refers to the Challenge ID
+     * @return the number of removed expiry times, 0 if the lock is not expired anymore
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/delete-expired-lock.sql")
+    int deleteExpiredLock(@Bind("projectId") long projectId, @Bind("challengeId") String challengeId);
+
+    /**
+     * Get the expired locks, the oldest first
+     *
+     * @param limit : Refers to the maximum number of expired locks to get
+     * @return the expired locks
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-expired-locks.sql")
+    List<LockExpiry> getExpiredLocks(@Bind("limit") int limit);
+
+    /**
+     * Get the budget amount of a Billing account and its locked and consumed amounts from the latest snapshot plus
+     * the ledger entries written since
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @return the budget totals, null if the billing account does not exist
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-ledger-balance.sql")
+    BudgetTotal getLedgerBalance(@Bind("projectId") long projectId);
+
+    /**
+     * Get the ids of the Billing accounts having ledger entries after their latest snapshot
+     *
+     * @return the billing account ids
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-projects-to-snapshot.sql")
+    List<IdDTO> getProjectsToSnapshot();
+
+    /**
+     * Snapshot the totals of the ledger entries of a Billing account, from its latest snapshot and the entries
+     * written since
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @return the number of created snapshots, 0 if there is no entry since the latest snapshot
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/create-budget-snapshot.sql")
+    int createBudgetSnapshot(@Bind("projectId") long projectId);
+
+    /**
+     * Get the budget figures compared by the reconciler for the next Billing accounts in project_id order
+     *
+     * @param afterProjectId : Refers to the last Billing Account ID already reconciled, 0 to start from the first
+     * @param limit : Refers to the maximum number of Billing accounts
+     * @return the budget figures, in project_id order
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-reconciliation-balances.sql")
+    List<ReconciliationBalance> getReconciliationBalances(@Bind("afterProjectId") long afterProjectId,
+                                                          @Bind("limit") int limit);
+
+    /**
+     * Get the entries of the Challenges having several entries in a Billing account
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @return the challenge entries, in challenge id order
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-duplicate-challenge-entries.sql")
+    List<ChallengeBudget> getDuplicateChallengeEntries(@Bind("projectId") long projectId);
+
+    /**
+     * Delete the reconciliation issues of a range of Billing accounts
+     *
+     * @param afterProjectId : Refers to the Billing Account ID before the range
+     * @param lastProjectId : Refers to the last Billing Account ID of the range
+     * @return the number of deleted issues
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/delete-reconciliation-issues.sql")
+    int deleteReconciliationIssues(@Bind("afterProjectId") long afterProjectId,
+                                   @Bind("lastProjectId") long lastProjectId);
+
+    /**
+     * Create a reconciliation issue of a Billing account
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param challengeId : Refers to the Challenge ID, null for the issues of the Billing account
+     * @param issueType : Refers to the issue type
+     * @param expectedAmount : Refers to the expected amount
+     * @param actualAmount : Refers to the actual amount
+     * @param detail : Refers to the details of the issue
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/create-reconciliation-issue.sql")
+    void createReconciliationIssue(@Bind("projectId") long projectId,
+                                   @Bind("challengeId") String challengeId,
+                                   @Bind("issueType") String issueType,
+                                   @Bind("expectedAmount") BigDecimal expectedAmount,
+                                   @Bind("actualAmount") BigDecimal actualAmount,
+                                   @Bind("detail") String detail);
+
+    /**
+     * Get a page of the reconciliation issues, in issue id order
+     *
+     * @param afterIssueId : Refers to the last issue id of the previous page, 0 for the first page
+     * @param limit : Refers to the page size
+     * @return the issues
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-reconciliation-issues.sql")
+    List<ReconciliationIssue> getReconciliationIssues(@Bind("afterIssueId") long afterIssueId,
+                                                      @Bind("limit") int limit);
+
+    /**
+     * Add deltas to the running totals of locked and consumed amounts of a Billing account, if the version of the
+     * totals is unchanged
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param lockedDelta : Refers to the change of the total locked amount
+     * @param consumedDelta : Refers to the change of the total consumed amount
+     * @param version : Refers to the version of the totals read before
+     * @return the number of updated totals, 0 if the totals were changed meanwhile
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/add-budget-total.sql")
+    int addBudgetTotal(@Bind("projectId") long projectId,
+                       @Bind("lockedDelta") BigDecimal lockedDelta,
+                       @Bind("consumedDelta") BigDecimal consumedDelta,
+                       @Bind("version") long version);
+
+    /**
+     * Reserve the amount to lock for a Challenge in the running totals of a Billing account if the budget has enough
+     * headroom for it. The current entry of the challenge is taken out of the totals, so the check doesn't scan the
+     * other challenges.
      *
      * @param projectId : Refers to the Billing Account ID
      * @param challengeId : Refers to the Challenge ID
      * @param lockedAmount : Refers to the amount to be locked for a Challenge Id of a Billing Account ID
+     * @return the number of updated totals, 0 if the budget is insufficient, the challenge has multiple entries
+     * or the billing account has no totals yet
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/reserve-locked-total.sql")
+    int reserveLockedTotal(@Bind("projectId") long projectId,
+                           @Bind("challengeId") String challengeId,
+                           @Bind("lockedAmount") BigDecimal lockedAmount);
+
+    /**
+     * Reserve the amount consumed by a Challenge in the running totals of a Billing account if the budget has enough
+     * headroom for it. The current entry of the challenge is taken out of the totals, so the check doesn't scan the
+     * other challenges.
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param challengeId : Refers to the Challenge ID
      * @param consumedAmount : Refers to the amount has been actual spent for a Challenge Id of a Billing Account ID
+     * @return the number of updated totals, 0 if the budget is insufficient, the challenge has multiple entries
+     * or the billing account has no totals yet
      */
-    @SqlUpdateFile("sql/billing-account/budget-amount/create-locked-amount.sql")
-    void createLockedAmount(@Bind("projectId") long projectId, 
-                            @Bind("challengeId") String challengeId, 
-                            @Bind("lockedAmount") float lockedAmount, 
-                            @Bind("consumedAmount") float consumedAmount);
+    @SqlUpdateFile("sql/billing-account/budget-amount/reserve-consumed-total.sql")
+    int reserveConsumedTotal(@Bind("projectId") long projectId,
+                             @Bind("challengeId") String challengeId,
+                             @Bind("consumedAmount") BigDecimal consumedAmount);
 
     /**
-     * Update existing entry with Consumed amount and Locked Amount for a Challenge in a Billing account
+     * Create or update the entry with Consumed amount and Locked Amount for a Challenge in a Billing account
      *
      * @param projectId : Refers to the Billing Account ID
      * @param challengeId : Refers to the Challenge ID
      * @param lockedAmount : Refers to the amount to be locked for a Challenge Id of a Billing Account ID
      * @param consumedAmount : Refers to the amount has been actual spent for a Challenge Id of a Billing Account ID
      */
-    @SqlUpdateFile("sql/billing-account/budget-amount/update-consumed-amount-for-challangeid.sql")
-    void updateConsumedAmountForChallengeid(@Bind("projectId") long projectId, 
-                                            @Bind("challengeId") String challengeId, 
-                                            @Bind("lockedAmount") float lockedAmount, 
-                                            @Bind("consumedAmount") float consumedAmount);
+    @SqlUpdateFile("sql/billing-account/budget-amount/upsert-challenge-budget.sql")
+    void upsertChallengeBudget(@Bind("projectId") long projectId,
+                               @Bind("challengeId") String challengeId,
+                               @Bind("lockedAmount") BigDecimal lockedAmount,
+                               @Bind("consumedAmount") BigDecimal consumedAmount);
+
+    /**
+     * Get details of the budgets of the given challenges of project.
+     *
+     * @param projectId the project ID
+     * @param queryParameter the filter with the challenge ids
+     * @return List of challenge budgets
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-challenge-budgets.sql")
+    List<ChallengeBudget> getChallengeBudgets(@Bind("projectId") long projectId,
+                                              @ApiQueryInput QueryParameter queryParameter);
+
+    /**
+     * Save a completed lock or consume amount request by its Idempotency-Key
+     *
+     * @param idempotencyKey : Refers to the key of the request
+     * @param challengeId : Refers to the Challenge ID
+     * @param amount : Refers to the locked or consumed amount
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/create-idempotency-record.sql")
+    void createIdempotencyRecord(@Bind("idempotencyKey") String idempotencyKey,
+                                 @Bind("challengeId") String challengeId,
+                                 @Bind("amount") BigDecimal amount);
+
+    /**
+     * Get a completed lock or consume amount request by its Idempotency-Key
+     *
+     * @param idempotencyKey : Refers to the key of the request
+     * @param expirySeconds : Refers to the expiry of the saved requests
+     * @return the saved request, null if not present or expired
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-idempotency-record.sql")
+    IdempotencyRecord getIdempotencyRecord(@Bind("idempotencyKey") String idempotencyKey,
+                                           @Bind("expirySeconds") int expirySeconds);
+
+    /**
+     * Queue a consume amount request to be applied asynchronously
+     *
+     * @param operationId : Refers to the id of the operation
+     * @param projectId : Refers to the Billing Account ID
+     * @param challengeId : Refers to the Challenge ID
+     * @param amount : Refers to the amount to consume
+     * @param markup : Refers to the mark up
+     * @param idempotencyKey : Refers to the Idempotency-Key of the request, may be null
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/create-operation.sql")
+    void createOperation(@Bind("operationId") String operationId,
+                         @Bind("projectId") long projectId,
+                         @Bind("challengeId") String challengeId,
+                         @Bind("amount") BigDecimal amount,
+                         @Bind("markup") Float markup,
+                         @Bind("idempotencyKey") String idempotencyKey);
+
+    /**
+     * Get a queued operation of a Billing account
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param operationId : Refers to the id of the operation
+     * @return the operation, null if not found
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-operation.sql")
+    BudgetOperation getOperation(@Bind("projectId") long projectId, @Bind("operationId") String operationId);
+
+    /**
+     * Get a queued operation of a Billing account by the Idempotency-Key of its request
+     *
+     * @param projectId : Refers to the Billing Account ID
+     * @param idempotencyKey : Refers to the Idempotency-Key of the request
+     * @return the operation, null if not found
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-operation-by-key.sql")
+    BudgetOperation getOperationByKey(@Bind("projectId") long projectId, @Bind("idempotencyKey") String idempotencyKey);
+
+    /**
+     * Get the operations waiting for a worker, including the running ones whose lease is expired, in queue order.
+     * Only the oldest unfinished operation of each project is returned, the later ones wait until it's completed or
+     * failed.
+     *
+     * @param limit : Refers to the maximum number of operations to get
+     * @return the operations
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-pending-operations.sql")
+    List<BudgetOperation> getPendingOperations(@Bind("limit") int limit);
+
+    /**
+     * Claim an operation for a worker, with a lease expiring after the given time
+     *
+     * @param operationId : Refers to the id of the operation
+     * @param leaseOwner : Refers to the id of the worker claiming the operation
+     * @param leaseSeconds : Refers to the time after which the operation is taken over by another worker
+     * @return the number of claimed operations, 0 if claimed by another worker meanwhile
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/claim-operation.sql")
+    int claimOperation(@Bind("operationId") String operationId,
+                       @Bind("leaseOwner") String leaseOwner,
+                       @Bind("leaseSeconds") int leaseSeconds);
+
+    /**
+     * Set the final status of an operation still leased by the worker
+     *
+     * @param operationId : Refers to the id of the operation
+     * @param leaseOwner : Refers to the id of the worker holding the lease
+     * @param status : Refers to the status, COMPLETED or FAILED
+     * @param statusCode : Refers to the HTTP status code of the result
+     * @param message : Refers to the error message, null if completed
+     * @return the number of updated operations, 0 if the lease was taken over
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/complete-operation.sql")
+    int completeOperation(@Bind("operationId") String operationId,
+                          @Bind("leaseOwner") String leaseOwner,
+                          @Bind("status") String status,
+                          @Bind("statusCode") int statusCode,
+                          @Bind("message") String message);
+
+    /**
+     * Put a failed operation still leased by the worker back in the queue, counting the failed attempt
+     *
+     * @param operationId : Refers to the id of the operation
+     * @param leaseOwner : Refers to the id of the worker holding the lease
+     * @return the number of updated operations, 0 if the lease was taken over
+     */
+    @SqlUpdateFile("sql/billing-account/budget-amount/retry-operation.sql")
+    int retryOperation(@Bind("operationId") String operationId, @Bind("leaseOwner") String leaseOwner);
 
 	/**
 	 * Get details of challenge budgets of project.
@@ -457,4 +981,28 @@ public interface BillingAccountDAO {
 	 */
 	@SqlQueryFile("sql/billing-account/budget-amount/get-budget-amounts.sql")
 	List<ChallengeBudget> getProjectChallengeBudget(@Bind("projectId") long projectId);
+
+    /**
+     * Get a page of the challenge budgets of project, ordered by challenge id
+     *
+     * @param projectId : Refers to the project ID
+     * @param afterChallengeId : Refers to the last challenge id of the previous page, empty for the first page
+     * @param limit : Refers to the maximum number of challenge budgets to get
+     * @return List of challenge budgets of the project
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-budget-amounts-page.sql")
+    List<ChallengeBudget> getProjectChallengeBudgetPage(@Bind("projectId") long projectId,
+                                                        @Bind("afterChallengeId") String afterChallengeId,
+                                                        @Bind("limit") int limit);
+
+    /**
+     * Iterate the challenge budgets of project from the database cursor, without loading them in memory.
+     * The iterator must be closed to release the connection.
+     *
+     * @param projectId : Refers to the project ID
+     * @return the iterator of the challenge budgets of the project
+     */
+    @SqlQueryFile("sql/billing-account/budget-amount/get-budget-amounts.sql")
+    @FetchSize(500)
+    ResultIterator<ChallengeBudget> iterateProjectChallengeBudget(@Bind("projectId") long projectId);
 }
\ No newline at end of file
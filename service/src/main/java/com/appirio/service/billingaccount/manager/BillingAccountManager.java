@@ -3,25 +3,50 @@
  */
 package com.appirio.service.billingaccount.manager;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import org.json.JSONObject;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.exceptions.DBIException;
+import org.skife.jdbi.v2.exceptions.TransactionFailedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.appirio.service.billingaccount.api.AvailableBudget;
 import com.appirio.service.billingaccount.api.BillingAccount;
 import com.appirio.service.billingaccount.api.BillingAccountBudget;
 import com.appirio.service.billingaccount.api.BillingAccountFees;
 import com.appirio.service.billingaccount.api.BillingAccountUser;
+import com.appirio.service.billingaccount.api.BudgetHeadroom;
+import com.appirio.service.billingaccount.api.BudgetOperation;
+import com.appirio.service.billingaccount.api.BudgetTotal;
+import com.appirio.service.billingaccount.api.BudgetTransfer;
+import com.appirio.service.billingaccount.api.Cents;
 import com.appirio.service.billingaccount.api.ChallengeBudget;
+import com.appirio.service.billingaccount.api.ChallengeConsumedEvent;
 import com.appirio.service.billingaccount.api.ChallengeFee;
 import com.appirio.service.billingaccount.api.ChallengeFeePercentage;
 import com.appirio.service.billingaccount.api.ChallengeType;
-import com.appirio.service.billingaccount.api.FloatDTO;
-import com.appirio.service.billingaccount.api.HarmonyPublisher;
+import com.appirio.service.billingaccount.api.ConsumeAmountDTO;
 import com.appirio.service.billingaccount.api.IdDTO;
+import com.appirio.service.billingaccount.api.IdempotencyRecord;
+import com.appirio.service.billingaccount.api.LockAmountDTO;
+import com.appirio.service.billingaccount.api.LockExpiry;
+import com.appirio.service.billingaccount.api.ReconciliationIssue;
 import com.appirio.service.billingaccount.dao.BillingAccountDAO;
 import com.appirio.service.billingaccount.dao.SequenceDAO;
 import com.appirio.service.billingaccount.dto.TCUserDTO;
@@ -32,6 +57,13 @@ import com.appirio.tech.core.api.v3.request.FieldSelector;
 import com.appirio.tech.core.api.v3.request.FilterParameter;
 import com.appirio.tech.core.api.v3.request.QueryParameter;
 import com.appirio.tech.core.auth.AuthUser;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 
 /**
  * Manager for billing account business logic
@@ -76,6 +108,92 @@ public class BillingAccountManager extends BaseManager {
      * The CHALLENGE_TYPE_CACHE_EXPIRED_TIME
      */
     private static final int CHALLENGE_TYPE_CACHE_EXPIRED_TIME = 600;
+
+    /**
+     * The prefix of the keys used to cache the available budget of the billing accounts
+     */
+    private static final String AVAILABLE_BUDGET_CACHE_KEY = "AVAILABLE_BUDGET_CACHE_KEY_";
+
+    /**
+     * The AVAILABLE_BUDGET_CACHE_EXPIRED_TIME, the cached budget is also removed by each budget mutation
+     */
+    private static final int AVAILABLE_BUDGET_CACHE_EXPIRED_TIME = 5;
+
+    /**
+     * The cache key prefix of the budget headroom of a billing account, known after a rejected lock or consume and
+     * kept up to date from the running totals by the budget writes of this node
+     */
+    private static final String BUDGET_HEADROOM_CACHE_KEY = "BUDGET_HEADROOM_CACHE_KEY_";
+
+    /**
+     * The expired time of the cached budget headroom, in seconds. A headroom raised by another node is only seen
+     * once it expires.
+     */
+    private static final int BUDGET_HEADROOM_CACHE_EXPIRED_TIME = 5;
+
+    /**
+     * The margin above the cached budget headroom, in percent of the budget amount, within which a request still takes
+     * the check of the database, so a budget raised by another node meanwhile doesn't reject it
+     */
+    private static final int BUDGET_HEADROOM_MARGIN_PERCENT = 10;
+
+    /**
+     * The type of the budget ledger entries written by the lock amount requests
+     */
+    private static final String LEDGER_ENTRY_LOCK = "LOCK";
+
+    /**
+     * The type of the budget ledger entries written by the consume amount requests
+     */
+    private static final String LEDGER_ENTRY_CONSUME = "CONSUME";
+
+    /**
+     * The type of the budget ledger entries written by the release of the expired locks
+     */
+    private static final String LEDGER_ENTRY_RELEASE = "RELEASE";
+
+    /**
+     * The maximum length of the error message of the queued operations
+     */
+    private static final int OPERATION_MESSAGE_LENGTH = 255;
+
+    /**
+     * The maximum page size of the challenge budgets of a billing account
+     */
+    public static final int MAX_CHALLENGE_BUDGETS_LIMIT = 1000;
+
+    /**
+     * The maximum page size of the reconciliation issues
+     */
+    public static final int MAX_RECONCILIATION_ISSUES_LIMIT = 1000;
+
+    /**
+     * The writer of the streamed challenge budgets, flushed by the stream rather than after each challenge budget
+     */
+    private static final ObjectWriter CHALLENGE_BUDGET_WRITER = new ObjectMapper().writerFor(ChallengeBudget.class)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    /**
+     * The number of stripes used to serialize the budget mutations of the billing accounts
+     */
+    private static final int BUDGET_LOCK_STRIPES = 64;
+
+    /**
+     * The maximum number of attempts of a budget update whose versions were changed by a concurrent writer
+     */
+    private static final int VERSION_CONFLICT_MAX_ATTEMPTS = 5;
+
+    /**
+     * The backoff before the first retry of a budget update with a version conflict, doubled by every retry
+     */
+    private static final long VERSION_CONFLICT_BACKOFF_MILLIS = 10;
+
+    /**
+     * The maximum number of billing accounts whose version conflicts are counted, the least recently contended
+     * are dropped first
+     */
+    private static final int MAX_CONTENDED_ACCOUNTS = 100;
+
     /**
      * DAO for the billing accounts
      */
@@ -95,11 +213,6 @@ public class BillingAccountManager extends BaseManager {
      * The sequenceDAO to generate the id from different sequence
      */
     private SequenceDAO sequenceDAO;
-    
-    /**
-     * The Harmony publisher.
-     */
-    private HarmonyPublisher harmonyPublisher;
 
     /**
      * The cacheService to cache the data
@@ -107,23 +220,115 @@ public class BillingAccountManager extends BaseManager {
     private SimpleCacheService cacheService = new SimpleCacheService();
 
     /**
-     * Logger
+     * The completed lock / consume amount requests by Idempotency-Key
      */
-    private static final Logger logger = LoggerFactory.getLogger(BillingAccountManager.class);
+    private final IdempotencyStore idempotencyStore;
 
     /**
-     * Add two Float values with 2 decimal precision carefully
+     * The locks to serialize the budget mutations (lock / consume) of the same billing account
      */
-    private static Float floatAdd(Float f1, Float f2) {
-		return Math.round((f1 * 100 + f2 * 100)) / 100f;
-	}
+    private final StripedLock budgetLocks = new StripedLock(BUDGET_LOCK_STRIPES);
 
     /**
-     * Subtract two Float values with 2 decimal precision carefully
+     * The number of expired locks released
      */
-	private static Float floatSubtract(Float f1, Float f2) {
-		return Math.round((f1 * 100 - f2 * 100)) / 100f;
-	}
+    private final Counter releasedLocks = new Counter();
+
+    /**
+     * The locked amount released from the expired locks, in cents
+     */
+    private final Counter reclaimedCents = new Counter();
+
+    /**
+     * How late the oldest expired lock of the last release batch was, in milliseconds
+     */
+    private volatile long lockReleaseLag;
+
+    /**
+     * The number of lock and consume requests rejected from the cached budget headroom, without database access
+     */
+    private final Counter fastRejections = new Counter();
+
+    /**
+     * The number of budget updates rejected because their versions were changed by a concurrent writer
+     */
+    private final Counter versionConflicts = new Counter();
+
+    /**
+     * The number of budget updates retried after a version conflict
+     */
+    private final Counter versionRetries = new Counter();
+
+    /**
+     * The number of budget updates still in conflict after the last attempt
+     */
+    private final Counter versionConflictsExhausted = new Counter();
+
+    /**
+     * The number of version conflicts by billing account id, in access order
+     */
+    private final Map<Long, Long> contendedAccounts = new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_CONTENDED_ACCOUNTS;
+        }
+    };
+
+    /**
+     * Thrown when a lock or consume request is rejected because the budget of the billing account is insufficient.
+     */
+    private static class BudgetRejectedException extends SupplyException {
+        /**
+         * Create the exception
+         *
+         * @param message the message
+         */
+        BudgetRejectedException(String message) {
+            super(message, 404);
+        }
+
+        /**
+         * The rejections are expected, their stack trace is not filled.
+         *
+         * @return this exception
+         */
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * Thrown in a budget transaction when the versions read were changed by a concurrent writer, the transaction is
+     * rolled back and retried. It has no stack trace as it is only used for control flow.
+     */
+    private static class VersionConflictException extends RuntimeException {
+        /**
+         * Create the exception
+         */
+        VersionConflictException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Thrown in the transaction applying a queued operation when the lease of the worker was taken over, the
+     * transaction is rolled back so the operation is applied once by the new owner of the lease. It has no stack trace
+     * as it is only used for control flow.
+     */
+    private static class LeaseLostException extends RuntimeException {
+        /**
+         * Create the exception
+         */
+        LeaseLostException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Logger
+     */
+    private static final Logger logger = LoggerFactory.getLogger(BillingAccountManager.class);
 
     /**
      * Create BillingAccountManager
@@ -133,15 +338,53 @@ public class BillingAccountManager extends BaseManager {
      * @param userAccountIdGenerator the userAccountIdGenerator to use
      * @param sequenceDAO the sequenceDAO to use
      */
+    public BillingAccountManager(BillingAccountDAO billingAccountDAO, IdGenerator billingAccountIdGenerator,
+                                 IdGenerator userAccountIdGenerator,
+                                 SequenceDAO sequenceDAO) {
+        this(billingAccountDAO, billingAccountIdGenerator, userAccountIdGenerator, sequenceDAO,
+                new IdempotencyStore(IdempotencyStore.DEFAULT_MAX_SIZE, IdempotencyStore.DEFAULT_EXPIRY_SECONDS, false));
+    }
+
+    /**
+     * Create BillingAccountManager
+     *
+     * @param billingAccountDAO the billingAccountDAO to use
+     * @param billingAccountIdGenerator the billingAccountIdGenerator to use
+     * @param userAccountIdGenerator the userAccountIdGenerator to use
+     * @param sequenceDAO the sequenceDAO to use
+     * @param idempotencyStore the store of the completed requests by Idempotency-Key
+     */
     public BillingAccountManager(BillingAccountDAO billingAccountDAO, IdGenerator billingAccountIdGenerator,
                                  IdGenerator userAccountIdGenerator,
                                  SequenceDAO sequenceDAO,
-                                 HarmonyPublisher harmonyPublisher) {
+                                 IdempotencyStore idempotencyStore) {
         this.billingAccountDAO = billingAccountDAO;
         this.billingAccountIdGenerator = billingAccountIdGenerator;
         this.userAccountIdGenerator = userAccountIdGenerator;
         this.sequenceDAO = sequenceDAO;
-        this.harmonyPublisher = harmonyPublisher;
+        this.idempotencyStore = idempotencyStore;
+    }
+
+    /**
+     * Register the metrics of the manager
+     *
+     * @param registry the registry to use
+     */
+    public void registerMetrics(MetricRegistry registry) {
+        this.budgetLocks.registerMetrics(registry, MetricRegistry.name(BillingAccountManager.class, "budget-locks"));
+        String lockRelease = MetricRegistry.name(BillingAccountManager.class, "lock-release");
+        registry.register(MetricRegistry.name(lockRelease, "released"), this.releasedLocks);
+        registry.register(MetricRegistry.name(lockRelease, "reclaimed-cents"), this.reclaimedCents);
+        registry.register(MetricRegistry.name(lockRelease, "lag-ms"), (Gauge<Long>) () -> this.lockReleaseLag);
+        String budgetVersions = MetricRegistry.name(BillingAccountManager.class, "budget-versions");
+        registry.register(MetricRegistry.name(budgetVersions, "conflicts"), this.versionConflicts);
+        registry.register(MetricRegistry.name(budgetVersions, "retries"), this.versionRetries);
+        registry.register(MetricRegistry.name(budgetVersions, "exhausted"), this.versionConflictsExhausted);
+        registry.register(MetricRegistry.name(budgetVersions, "contended-accounts"),
+                (Gauge<Map<Long, Long>>) this::getContendedAccounts);
+        registry.register(MetricRegistry.name(BillingAccountManager.class, "budget-headroom", "fast-rejections"),
+                this.fastRejections);
+        this.cacheService.registerMetrics(registry, MetricRegistry.name(BillingAccountManager.class, "cache"));
     }
 
     /**
@@ -201,6 +444,9 @@ public class BillingAccountManager extends BaseManager {
                 // map billing account to client
                 billingAccountDAO.addBillingAccountToClient(id, billingAccount.getClientId(), user.getUserId().getId());
 
+        // start the running totals of the locked and consumed amounts
+        billingAccountDAO.createBudgetTotal(id);
+
         return billingAccountDAO.getBillingAccount(id);
     }
 
@@ -248,6 +494,9 @@ public class BillingAccountManager extends BaseManager {
                 // add new mapping record between client and billing account
                 billingAccountDAO.addBillingAccountToClient(billingAccount.getId(), billingAccount.getClientId(), user.getUserId().getId());
 
+        // the budget amount may be changed
+        evictBudget(billingAccount.getId());
+
         return billingAccountDAO.getBillingAccount(billingAccount.getId());
     }
 
@@ -642,19 +891,14 @@ public class BillingAccountManager extends BaseManager {
     }
     
     /**
-     * Get challenge types
+     * Get challenge types, loaded once by the concurrent misses and reloaded in the background before they expire
      *
      * @return the List<ChallengeType> result
      */
     private List<ChallengeType> getChallengeTypes() {
-        List<ChallengeType> types = (List<ChallengeType>) this.cacheService.get(CHALLENGE_TYPE_CACHE_KEY);
-        if (types == null) {
-            types = this.billingAccountDAO.getProjectCategoriesReplatforming();
-            // cache for ten minutes
-            this.cacheService.put(CHALLENGE_TYPE_CACHE_KEY, types, CHALLENGE_TYPE_CACHE_EXPIRED_TIME);
-        }
-        
-        return types;
+        // cache for ten minutes
+        return (List<ChallengeType>) this.cacheService.get(CHALLENGE_TYPE_CACHE_KEY,
+                key -> this.billingAccountDAO.getProjectCategoriesReplatforming(), CHALLENGE_TYPE_CACHE_EXPIRED_TIME);
     }
 
 	/**
@@ -662,152 +906,1226 @@ public class BillingAccountManager extends BaseManager {
 	 * 
 	 * @param ba The billing account
 	 * @return the billing account with challenge budgets
+	 * @throws SupplyException if any error occurs
+	 */
+	public BillingAccountBudget populateChallengeBudgets(BillingAccount ba) throws SupplyException {
+		return populateChallengeBudgets(ba, true, null, null);
+	}
+
+	/**
+	 * Populate challenge budgets, all of them, a page of them ordered by challenge id or none of them.
+	 * The available budget is always computed from the running totals of the billing account.
+	 * 
+	 * @param ba The billing account
+	 * @param includeChallengeBudgets whether to populate the challenge budgets, or only the available budget
+	 * @param afterChallengeId the last challenge id of the previous page, null for the first page
+	 * @param limit the page size, all the challenge budgets are populated if both limit and afterChallengeId are null
+	 * @return the billing account with challenge budgets
+	 * @throws SupplyException if the page size is not valid
 	 */
-	public BillingAccountBudget populateChallengeBudgets(BillingAccount ba) {
+	public BillingAccountBudget populateChallengeBudgets(BillingAccount ba, boolean includeChallengeBudgets,
+			String afterChallengeId, Integer limit) throws SupplyException {
+		if (limit != null && (limit <= 0 || limit > MAX_CHALLENGE_BUDGETS_LIMIT)) {
+			throw new SupplyException("The limit must be between 1 and " + MAX_CHALLENGE_BUDGETS_LIMIT,
+					400);
+		}
+		boolean paged = limit != null || afterChallengeId != null;
+
 		BillingAccountBudget bab = new BillingAccountBudget(ba);
 
-		List<ChallengeBudget> challengeBudgets = this.billingAccountDAO.getProjectChallengeBudget(ba.getId());
+		List<ChallengeBudget> challengeBudgets = null;
+		if (includeChallengeBudgets && paged) {
+			int pageSize = limit != null ? limit : MAX_CHALLENGE_BUDGETS_LIMIT;
+			// read one more row to know whether there is a next page
+			challengeBudgets = this.billingAccountDAO.getProjectChallengeBudgetPage(ba.getId(),
+					afterChallengeId != null ? afterChallengeId : "", pageSize + 1);
+			if (challengeBudgets.size() > pageSize) {
+				challengeBudgets = new ArrayList<>(challengeBudgets.subList(0, pageSize));
+				bab.setNextChallengeId(challengeBudgets.get(pageSize - 1).getChallengeId());
+			}
+		} else if (includeChallengeBudgets) {
+			challengeBudgets = this.billingAccountDAO.getProjectChallengeBudget(ba.getId());
+		}
 		bab.setChallengeBudgets(challengeBudgets);
 
-		Float sum = 0f;
+		long sum = 0;
 
-		if (challengeBudgets != null && !challengeBudgets.isEmpty()) {
+		BudgetTotal total = this.billingAccountDAO.getBudgetTotal(ba.getId());
+		if (total == null && (challengeBudgets == null || paged)
+				&& this.billingAccountDAO.createBudgetTotal(ba.getId()) > 0) {
+			// the running totals are needed when the challenge budgets are not all read
+			total = this.billingAccountDAO.getBudgetTotal(ba.getId());
+		}
+		if (total != null) {
+			sum = total.getLockedCents() + total.getConsumedCents();
+		} else if (challengeBudgets != null && !paged) {
+			// the running totals are not created yet for this billing account
 			for (ChallengeBudget cb : challengeBudgets) {
-				if (cb.getConsumedAmount() != null && cb.getConsumedAmount().compareTo(0f) != 0) {
-					sum = floatAdd(sum, cb.getConsumedAmount());
-				}
-				if (cb.getLockedAmount() != null && cb.getLockedAmount().compareTo(0f) != 0) {
-					sum = floatAdd(sum, cb.getLockedAmount());
-				}
+				sum += cb.getLockedCents() + cb.getConsumedCents();
 			}
 		}
 
 		if (ba.getBudgetAmount() != null) {
-			bab.setAvailableBudget(floatSubtract(ba.getBudgetAmount(), sum));
+			bab.setAvailableCents(Cents.of(ba.getBudgetAmount()) - sum);
 		}
 
 		return bab;
 	}
 
+    /**
+     * Write all the challenge budgets of a billing account as a JSON array, straight from the database cursor so
+     * the challenge budgets are never loaded in memory together.
+     *
+     * @param billingAccountId the billing account id
+     * @param out the stream to write to
+     * @throws IOException if the JSON can't be written
+     */
+    public void writeChallengeBudgets(long billingAccountId, OutputStream out) throws IOException {
+        ResultIterator<ChallengeBudget> challengeBudgets = this.billingAccountDAO.iterateProjectChallengeBudget(billingAccountId);
+        try {
+            JsonGenerator generator = CHALLENGE_BUDGET_WRITER.getFactory().createGenerator(out);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartArray();
+            while (challengeBudgets.hasNext()) {
+                CHALLENGE_BUDGET_WRITER.writeValue(generator, challengeBudgets.next());
+            }
+            generator.writeEndArray();
+            generator.close();
+        } finally {
+            challengeBudgets.close();
+        }
+    }
+
+    /**
+     * Get the budget, locked, consumed and available amounts of a billing account.
+     *
+     * <p>
+     * The figures come from the latest snapshot of the budget ledger of the billing account plus the ledger entries
+     * written since, so the challenge entries are not read. They are cached for a few seconds, and removed from the
+     * cache by each lock or consume of the billing account.
+     * </p>
+     *
+     * @param billingAccountId the billing account id
+     * @return the budget figures
+     * @throws SupplyException if the billing account does not exist
+     */
+    public AvailableBudget getAvailableBudget(Long billingAccountId) throws SupplyException {
+        String key = AVAILABLE_BUDGET_CACHE_KEY + billingAccountId;
+        AvailableBudget budget = (AvailableBudget) this.cacheService.get(key);
+        if (budget == null) {
+            BudgetTotal total = this.billingAccountDAO.getLedgerBalance(billingAccountId);
+            if (total == null) {
+                throw new SupplyException("Couldn't find billing account with id " + billingAccountId, 404);
+            }
+            budget = toAvailableBudget(billingAccountId, total);
+            this.cacheService.put(key, budget, AVAILABLE_BUDGET_CACHE_EXPIRED_TIME);
+        }
+        return budget;
+    }
+
+    /**
+     * Move an amount of budget from a billing account to another billing account of the same client.
+     *
+     * <p>
+     * Only the budget of the two billing accounts is updated, in one transaction. The running totals of both billing
+     * accounts are locked first in ascending billing account id order, so concurrent transfers between the same
+     * accounts can't deadlock, and their versions are incremented so the batch updates which read the old budgets are
+     * retried. The amount is only taken if the budget left still covers the locked and consumed amounts of the
+     * billing account giving it.
+     * </p>
+     *
+     * @param user the currently logged in user
+     * @param fromBillingAccountId the id of the billing account giving the amount
+     * @param toBillingAccountId the id of the billing account receiving the amount
+     * @param amountCents the amount to move, in cents
+     * @return the moved amount and the budget figures of both billing accounts after the transfer
+     * @throws SupplyException if the request is invalid, a billing account does not exist, the billing accounts
+     * belong to different clients or the budget is insufficient
+     */
+    public BudgetTransfer transferAmount(AuthUser user, Long fromBillingAccountId, Long toBillingAccountId,
+                                         Long amountCents) throws SupplyException {
+        if (toBillingAccountId == null || amountCents == null) {
+            throw new SupplyException("The toBillingAccountId and amount should be provided", 400);
+        }
+        if (amountCents <= 0) {
+            throw new SupplyException("The amount should be positive", 400);
+        }
+        if (toBillingAccountId.equals(fromBillingAccountId)) {
+            throw new SupplyException("The amount can't be transferred to the same billing account", 400);
+        }
+
+        // the budget locks of this service instance are taken in stripe order as well
+        long first = this.budgetLocks.stripeOf(fromBillingAccountId) <= this.budgetLocks.stripeOf(toBillingAccountId)
+                ? fromBillingAccountId : toBillingAccountId;
+        long second = first == fromBillingAccountId ? toBillingAccountId : fromBillingAccountId;
+        return this.budgetLocks.execute(first, () -> this.budgetLocks.execute(second,
+                () -> doTransferAmount(user, fromBillingAccountId, toBillingAccountId, amountCents)));
+    }
+
+    /**
+     * Move an amount of budget between two billing accounts, the caller holds the budget locks of both accounts.
+     *
+     * @param user the currently logged in user
+     * @param fromBillingAccountId the id of the billing account giving the amount
+     * @param toBillingAccountId the id of the billing account receiving the amount
+     * @param amountCents the amount to move, in cents
+     * @return the moved amount and the budget figures of both billing accounts after the transfer
+     * @throws SupplyException if a billing account does not exist, the billing accounts belong to different clients
+     * or the budget is insufficient
+     */
+    private BudgetTransfer doTransferAmount(AuthUser user, Long fromBillingAccountId, Long toBillingAccountId,
+                                            long amountCents) throws SupplyException {
+        String userId = user.getUserId().getId();
+        BigDecimal amount = Cents.toAmount(amountCents);
+        try {
+            return inBudgetTransaction(fromBillingAccountId, 0, 0, (dao, status) -> {
+                lockBudgetTotal(dao, Math.min(fromBillingAccountId, toBillingAccountId));
+                lockBudgetTotal(dao, Math.max(fromBillingAccountId, toBillingAccountId));
+
+                IdDTO fromClient = dao.getBillingAccountClient(fromBillingAccountId);
+                IdDTO toClient = dao.getBillingAccountClient(toBillingAccountId);
+                if (fromClient == null || toClient == null || !Objects.equals(fromClient.getId(), toClient.getId())) {
+                    throw new SupplyException("The Billing Accounts " + fromBillingAccountId + " and "
+                            + toBillingAccountId + " don't belong to the same client", 400);
+                }
+
+                if (dao.addBudgetAmount(fromBillingAccountId, amount.negate(), userId) == 0) {
+                    BudgetTotal total = dao.getBudgetTotal(fromBillingAccountId);
+                    throw new SupplyException("Insufficient Budget amount (" + Cents.toAmount(total.getBudgetCents())
+                            + ") for Billing Account:" + fromBillingAccountId + ". Requested transfer amount:" + amount
+                            + ". Sum of all locked and consumed amount:"
+                            + Cents.toAmount(total.getLockedCents() + total.getConsumedCents()), 400);
+                }
+                checkUpdated(dao.addBudgetAmount(toBillingAccountId, amount, userId));
+
+                logger.debug("Transferred amount " + amount + " from Billing Account:" + fromBillingAccountId
+                        + " to Billing Account:" + toBillingAccountId);
+                return new BudgetTransfer(amountCents,
+                        toAvailableBudget(fromBillingAccountId, dao.getBudgetTotal(fromBillingAccountId)),
+                        toAvailableBudget(toBillingAccountId, dao.getBudgetTotal(toBillingAccountId)));
+            });
+        } catch (VersionConflictException e) {
+            // the amount taken from the billing account giving it is rolled back
+            throw new SupplyException("The budget of Billing Account:" + toBillingAccountId
+                    + " couldn't be updated, please retry", 409);
+        } finally {
+            evictBudget(toBillingAccountId);
+        }
+    }
+
+    /**
+     * Take the row lock on the running totals of a billing account and increment their version, the totals are
+     * created from the challenge entries if the billing account has none yet.
+     *
+     * @param dao the DAO bound to the transaction
+     * @param billingAccountId the billing account id
+     * @throws SupplyException if the billing account does not exist
+     */
+    private static void lockBudgetTotal(BillingAccountDAO dao, long billingAccountId) throws SupplyException {
+        if (dao.bumpBudgetVersion(billingAccountId) == 0
+                && (dao.createBudgetTotal(billingAccountId) == 0 || dao.bumpBudgetVersion(billingAccountId) == 0)) {
+            throw new SupplyException("Couldn't find billing account with id " + billingAccountId, 404);
+        }
+    }
+
+    /**
+     * Build the budget figures of a billing account from its totals
+     *
+     * @param billingAccountId the billing account id
+     * @param total the budget amount and the locked and consumed amounts
+     * @return the budget figures
+     */
+    private static AvailableBudget toAvailableBudget(Long billingAccountId, BudgetTotal total) {
+        return new AvailableBudget(billingAccountId, total.getBudgetCents(), total.getLockedCents(),
+                total.getConsumedCents(), total.getBudgetCents() - total.getLockedCents() - total.getConsumedCents());
+    }
+
     /**
      * Update locked amount for a Challenge of a BillingAccount"
      *
+     * <p>
+     * The headroom check and the update of the running totals of the billing account are done by one conditional
+     * statement, then the challenge entry is upserted in the same transaction, so concurrent locks can not
+     * over-commit the budget. Budget mutations of the same billing account are also queued on a striped lock
+     * in this service instance.
+     * </p>
+     *
+     * <p>
+     * When an Idempotency-Key is given and a request with the same key was already completed, the stored result is
+     * returned without touching the budget.
+     * </p>
+     *
+     * <p>
+     * When a time to live is given, the lock is released by releaseExpiredLocks once expired, unless the challenge is
+     * locked again or consumed before.
+     * </p>
+     *
      * @return the updated lock Amount
      */
-    public Float lockAmount(Long billingAccountId, String challengeId, Float requestedLockAmount)  throws SupplyException{
-        //Get the Billing Account
-        List<BillingAccount> originals = getBillingAccount(billingAccountId).getData();
-        if (originals.size() == 0) {
-            throw new SupplyException("Couldn't find billing account with id " + billingAccountId, 404);
+    public BigDecimal lockAmount(Long billingAccountId, String challengeId, Long lockCents, Integer ttlSeconds,
+                                 String idempotencyKey)  throws SupplyException{
+        if (challengeId == null || lockCents == null) {
+            throw new SupplyException("The challengeId and lockAmount should be provided", 400);
+        }
+        if (ttlSeconds != null && ttlSeconds <= 0) {
+            throw new SupplyException("The ttlSeconds should be positive", 400);
+        }
+        if (idempotencyKey == null) {
+            return this.budgetLocks.execute(billingAccountId,
+                    () -> doLockAmount(billingAccountId, challengeId, lockCents, ttlSeconds, null));
+        }
+
+        String key = "lock-amount:" + billingAccountId + ":" + idempotencyKey;
+        return this.budgetLocks.execute(billingAccountId, () -> {
+            IdempotencyRecord completed = findIdempotencyRecord(key);
+            if (completed != null) {
+                return replay(completed, idempotencyKey, challengeId, lockCents);
+            }
+            BigDecimal result;
+            try {
+                result = doLockAmount(billingAccountId, challengeId, lockCents, ttlSeconds, key);
+            } catch (DBIException e) {
+                // the same request may have been completed by another node meanwhile
+                completed = findIdempotencyRecord(key);
+                if (completed == null) {
+                    throw e;
+                }
+                return replay(completed, idempotencyKey, challengeId, lockCents);
+            }
+            this.idempotencyStore.put(key, new IdempotencyRecord(challengeId, lockCents));
+            return result;
+        });
+    }
+
+    /**
+     * Update locked amount for a Challenge of a BillingAccount, the caller holds the budget lock of the billing account.
+     *
+     * @return the updated lock Amount
+     */
+    private BigDecimal doLockAmount(Long billingAccountId, String challengeId, long lockCents, Integer ttlSeconds,
+                                    String idempotencyKey)  throws SupplyException{
+        checkHeadroom(billingAccountId, lockCents, false);
+        BigDecimal requestedLockAmount = Cents.toAmount(lockCents);
+        boolean reserved = inBudgetTransaction(billingAccountId, lockCents, 0, (dao, status) -> {
+            int updated = dao.reserveLockedTotal(billingAccountId, challengeId, requestedLockAmount);
+            if (updated == 0 && dao.createBudgetTotal(billingAccountId) > 0) {
+                updated = dao.reserveLockedTotal(billingAccountId, challengeId, requestedLockAmount);
+            }
+            if (updated == 0) {
+                return false;
+            }
+            dao.createLedgerEntry(billingAccountId, challengeId, LEDGER_ENTRY_LOCK, requestedLockAmount, BigDecimal.ZERO);
+            dao.upsertChallengeBudget(billingAccountId, challengeId, requestedLockAmount, BigDecimal.ZERO);
+            if (ttlSeconds != null) {
+                dao.upsertLockExpiry(billingAccountId, challengeId, ttlSeconds);
+            } else {
+                dao.deleteLockExpiry(billingAccountId, challengeId);
+            }
+            saveIdempotencyRecord(dao, idempotencyKey, challengeId, requestedLockAmount);
+            return true;
+        });
+
+        if (!reserved) {
+            throw budgetRejection(billingAccountId, challengeId, lockCents, false);
+        }
+
+        logger.debug("Locked amount for Challenge:"+challengeId+" in Billing Account:"+billingAccountId+" with Consumed amount: 0 and lockedAmount as "+requestedLockAmount);
+        return requestedLockAmount;
+    }
+
+    /**
+     * Update locked amounts for several Challenges of a BillingAccount.
+     *
+     * <p>
+     * The headroom is computed once for the whole request from the running totals of the billing account and all
+     * entries are written with JDBI batches in one transaction: either all the amounts are locked or none of them.
+     * The totals and the existing entries are only updated if their versions are unchanged since they were read,
+     * otherwise the transaction is rolled back and run again after a short backoff.
+     * </p>
+     *
+     * @param billingAccountId the billing account id
+     * @param lockAmounts the amounts to lock, one per challenge
+     * @return the locked amounts, one per challenge
+     * @throws SupplyException if the request is invalid, the billing account does not exist or the budget is insufficient
+     */
+    public List<LockAmountDTO> lockAmounts(Long billingAccountId, List<LockAmountDTO> lockAmounts) throws SupplyException {
+        if (lockAmounts == null || lockAmounts.isEmpty()) {
+            throw new SupplyException("The lock amounts should be provided", 400);
+        }
+        Set<String> challengeIds = new HashSet<>();
+        long maxLockCents = 0;
+        for (LockAmountDTO lockAmount : lockAmounts) {
+            if (lockAmount.getChallengeId() == null || lockAmount.getLockCents() == null) {
+                throw new SupplyException("The challengeId and lockAmount should be provided", 400);
+            }
+            if (lockAmount.getTtlSeconds() != null && lockAmount.getTtlSeconds() <= 0) {
+                throw new SupplyException("The ttlSeconds should be positive", 400);
+            }
+            if (!challengeIds.add(lockAmount.getChallengeId())) {
+                throw new SupplyException("Duplicate lock amount for Challenge:" + lockAmount.getChallengeId(), 400);
+            }
+            maxLockCents = Math.max(maxLockCents, lockAmount.getLockCents());
+        }
+        long entryCents = maxLockCents;
+
+        return retryOnVersionConflict(billingAccountId,
+                () -> inBudgetTransaction(billingAccountId, entryCents, 0, (dao, status) -> {
+            BudgetTotal total = getBudgetTotal(dao, billingAccountId);
+
+            // take the current entries of the challenges out of the totals
+            Map<String, Integer> entries = new HashMap<>();
+            Map<String, Long> versions = new HashMap<>();
+            long currentLocked = 0;
+            long currentConsumed = 0;
+            for (ChallengeBudget cb : getChallengeBudgets(dao, billingAccountId, challengeIds)) {
+                entries.merge(cb.getChallengeId(), 1, Integer::sum);
+                versions.put(cb.getChallengeId(), cb.getVersion());
+                currentLocked += cb.getLockedCents();
+                currentConsumed += cb.getConsumedCents();
+            }
+            long sumLockedConsumed = total.getLockedCents() + total.getConsumedCents() - currentLocked - currentConsumed;
+
+            long requestedLockCents = 0;
+            List<String> ledgerIds = new ArrayList<>();
+            List<BigDecimal> ledgerAmounts = new ArrayList<>();
+            List<String> createIds = new ArrayList<>();
+            List<BigDecimal> createAmounts = new ArrayList<>();
+            List<String> updateIds = new ArrayList<>();
+            List<BigDecimal> updateAmounts = new ArrayList<>();
+            List<Long> updateVersions = new ArrayList<>();
+            List<String> expiringIds = new ArrayList<>();
+            List<Integer> expiringTtls = new ArrayList<>();
+            List<String> permanentIds = new ArrayList<>();
+            for (LockAmountDTO lockAmount : lockAmounts) {
+                String challengeId = lockAmount.getChallengeId();
+                int count = entries.getOrDefault(challengeId, 0);
+                if (count > 1) {
+                    throw new SupplyException("Multiple entries are found for Challenge:"+challengeId+" in Billing Account:"+billingAccountId, 404);
+                }
+                if (count == 0) {
+                    createIds.add(challengeId);
+                    createAmounts.add(Cents.toAmount(lockAmount.getLockCents()));
+                } else {
+                    updateIds.add(challengeId);
+                    updateAmounts.add(Cents.toAmount(lockAmount.getLockCents()));
+                    updateVersions.add(versions.get(challengeId));
+                }
+                if (lockAmount.getTtlSeconds() != null) {
+                    expiringIds.add(challengeId);
+                    expiringTtls.add(lockAmount.getTtlSeconds());
+                } else {
+                    permanentIds.add(challengeId);
+                }
+                ledgerIds.add(challengeId);
+                ledgerAmounts.add(Cents.toAmount(lockAmount.getLockCents()));
+                requestedLockCents += lockAmount.getLockCents();
+            }
+
+            if (requestedLockCents + sumLockedConsumed > total.getBudgetCents()) {
+                throw new SupplyException("Insufficient Budget amount ("+Cents.toAmount(total.getBudgetCents())+") for Billing Account:" + billingAccountId+
+                                          ". Requested lock amount:"+Cents.toAmount(requestedLockCents)+". Sum of all locked and consumed amount:"+Cents.toAmount(sumLockedConsumed), 404);
+            }
+
+            // the totals are swapped first, so a concurrent writer of the billing account is detected before
+            // any entry is written; the consumed amount of the locked challenges is reset, as done by lockAmount
+            checkUpdated(dao.addBudgetTotal(billingAccountId, Cents.toAmount(requestedLockCents - currentLocked),
+                    Cents.toAmount(-currentConsumed), total.getVersion()));
+            dao.createLedgerEntries(billingAccountId, ledgerIds, LEDGER_ENTRY_LOCK, ledgerAmounts, zeros(ledgerIds.size()));
+            if (!createIds.isEmpty()) {
+                dao.createLockedAmounts(billingAccountId, createIds, createAmounts, zeros(createIds.size()));
+            }
+            if (!updateIds.isEmpty()) {
+                checkUpdated(dao.updateConsumedAmountsForChallengeids(billingAccountId, updateIds, updateAmounts,
+                        zeros(updateIds.size()), updateVersions));
+            }
+            if (!expiringIds.isEmpty()) {
+                dao.upsertLockExpiries(billingAccountId, expiringIds, expiringTtls);
+            }
+            if (!permanentIds.isEmpty()) {
+                dao.deleteLockExpiries(billingAccountId, permanentIds);
+            }
+
+            logger.debug("Locked amounts for "+lockAmounts.size()+" Challenges in Billing Account:"+billingAccountId+" with total lockedAmount as "+Cents.toAmount(requestedLockCents));
+            List<LockAmountDTO> result = new ArrayList<>();
+            for (LockAmountDTO lockAmount : lockAmounts) {
+                result.add(new LockAmountDTO(lockAmount.getLockCents(), lockAmount.getChallengeId(),
+                        lockAmount.getTtlSeconds()));
+            }
+            return result;
+        }));
+    }
+
+    /**
+     * Release a batch of the expired locks, the oldest first. Each lock is released in its own transaction under the
+     * budget lock of its billing account: the locked amount of the challenge is reset to 0, taken out of the running
+     * totals and recorded in the budget ledger. A lock renewed or consumed meanwhile is skipped.
+     *
+     * @param batchSize the maximum number of expired locks to release
+     * @return the number of expired locks found, a full batch means more locks may be expired
+     */
+    public int releaseExpiredLocks(int batchSize) {
+        List<LockExpiry> expired = this.billingAccountDAO.getExpiredLocks(batchSize);
+        this.lockReleaseLag = expired.isEmpty() ? 0 : System.currentTimeMillis() - expired.get(0).getExpiryDate().getTime();
+        for (LockExpiry lock : expired) {
+            try {
+                long releasedCents = retryOnVersionConflict(lock.getProjectId(),
+                        () -> releaseExpiredLock(lock.getProjectId(), lock.getChallengeId()));
+                if (releasedCents > 0) {
+                    this.releasedLocks.inc();
+                    this.reclaimedCents.inc(releasedCents);
+                    logger.debug("Released expired lock of Challenge:" + lock.getChallengeId() + " in Billing Account:"
+                            + lock.getProjectId() + " with lockedAmount as " + Cents.toAmount(releasedCents));
+                }
+            } catch (Exception e) {
+                logger.error("Failed to release expired lock of Challenge:" + lock.getChallengeId() + " in Billing Account:"
+                        + lock.getProjectId(), e);
+            }
         }
+        return expired.size();
+    }
 
-        BillingAccount billingAccount = originals.get(0);
+    /**
+     * Release an expired lock, the caller holds the budget lock of the billing account.
+     *
+     * @param billingAccountId the billing account id
+     * @param challengeId the challenge id
+     * @return the released amount in cents, 0 if the lock is not expired anymore
+     * @throws SupplyException if any error occurs
+     */
+    private long releaseExpiredLock(long billingAccountId, String challengeId) throws SupplyException {
+        return inBudgetTransaction(billingAccountId, 0, 0, (dao, status) -> {
+            BudgetTotal total = getBudgetTotal(dao, billingAccountId);
+            if (dao.deleteExpiredLock(billingAccountId, challengeId) == 0) {
+                return 0L;
+            }
+            List<ChallengeBudget> budgets = getChallengeBudgets(dao, billingAccountId, Collections.singleton(challengeId));
+            if (budgets.size() != 1 || budgets.get(0).getLockedCents() == 0) {
+                return 0L;
+            }
+            ChallengeBudget budget = budgets.get(0);
+            BigDecimal consumedAmount = Cents.toAmount(budget.getConsumedCents());
+            checkUpdated(dao.addBudgetTotal(billingAccountId, Cents.toAmount(-budget.getLockedCents()), BigDecimal.ZERO,
+                    total.getVersion()));
+            dao.createLedgerEntry(billingAccountId, challengeId, LEDGER_ENTRY_RELEASE, BigDecimal.ZERO, consumedAmount);
+            checkUpdated(dao.updateConsumedAmountsForChallengeids(billingAccountId, Collections.singletonList(challengeId),
+                    zeros(1), Collections.singletonList(consumedAmount), Collections.singletonList(budget.getVersion())));
+            return budget.getLockedCents();
+        });
+    }
 
-        //Get the Total budget available for the Billing account
-        Float budgetAmount = billingAccount.getBudgetAmount();
-        budgetAmount = budgetAmount == null ? 0 : budgetAmount;
+    /**
+     * Run the budget statements of a billing account in one transaction of the billing account DAO.
+     * The cached available budget of the billing account is removed once the transaction ends. When a budget headroom
+     * of the billing account is cached, it's updated from the running totals written by the transaction once it's
+     * committed, the largest entries are only raised to the entries written, so it stays an upper bound.
+     *
+     * @param billingAccountId the billing account id
+     * @param entryCents the largest locked and consumed amount written to a challenge entry, in cents
+     * @param consumedCents the largest consumed amount written to a challenge entry, in cents
+     * @param work the statements to run
+     * @param <T> the result type
+     * @return the result of the work
+     * @throws SupplyException if the work fails with a SupplyException, the transaction is rolled back
+     */
+    private <T> T inBudgetTransaction(Long billingAccountId, long entryCents, long consumedCents,
+                                      Transaction<T, BillingAccountDAO> work) throws SupplyException {
+        String headroomKey = BUDGET_HEADROOM_CACHE_KEY + billingAccountId;
+        BudgetHeadroom cached = (BudgetHeadroom) this.cacheService.get(headroomKey);
+        BudgetTotal[] total = new BudgetTotal[1];
+        boolean committed = false;
+        try {
+            T result = this.billingAccountDAO.inTransaction((dao, status) -> {
+                T written = work.inTransaction(dao, status);
+                if (cached != null) {
+                    total[0] = dao.getBudgetTotal(billingAccountId);
+                }
+                return written;
+            });
+            committed = true;
+            return result;
+        } catch (TransactionFailedException e) {
+            if (e.getCause() instanceof SupplyException) {
+                throw (SupplyException) e.getCause();
+            }
+            throw e;
+        } finally {
+            this.cacheService.delete(AVAILABLE_BUDGET_CACHE_KEY + billingAccountId);
+            if (committed && total[0] != null) {
+                this.cacheService.put(headroomKey, new BudgetHeadroom(total[0].getBudgetCents(),
+                        total[0].getLockedCents(), total[0].getConsumedCents(),
+                        Math.max(cached.getMaxEntryCents(), entryCents),
+                        Math.max(cached.getMaxConsumedCents(), consumedCents)), BUDGET_HEADROOM_CACHE_EXPIRED_TIME);
+            } else if (committed && cached != null) {
+                this.cacheService.delete(headroomKey);
+            }
+        }
+    }
+
+    /**
+     * Remove the cached available budget and budget headroom of a billing account
+     *
+     * @param billingAccountId the billing account id
+     */
+    private void evictBudget(Long billingAccountId) {
+        this.cacheService.delete(AVAILABLE_BUDGET_CACHE_KEY + billingAccountId);
+        this.cacheService.delete(BUDGET_HEADROOM_CACHE_KEY + billingAccountId);
+    }
 
-        IdDTO idDto = this.billingAccountDAO.countChallengeIdEntries(billingAccountId, challengeId);
-        Long countChallengeIdEntries = idDto == null ? 0 : idDto.getId();
+    /**
+     * Run a budget update of a billing account under the lock of its stripe, and again when the versions it read were
+     * changed by a concurrent writer, with an exponential backoff and a jitter between the attempts. The stripe is
+     * released during the backoff, so the other billing accounts of the stripe are not stalled by the retry.
+     *
+     * @param billingAccountId the billing account id
+     * @param update the budget update, it throws VersionConflictException on a conflict
+     * @param <T> the result type
+     * @return the result of the update
+     * @throws SupplyException if the update fails, or is still in conflict after the last attempt
+     */
+    private <T> T retryOnVersionConflict(Long billingAccountId, StripedLock.Action<T> update) throws SupplyException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return this.budgetLocks.execute(billingAccountId, update);
+            } catch (VersionConflictException e) {
+                this.versionConflicts.inc();
+                synchronized (this.contendedAccounts) {
+                    this.contendedAccounts.merge(billingAccountId, 1L, Long::sum);
+                }
+                if (attempt == VERSION_CONFLICT_MAX_ATTEMPTS) {
+                    this.versionConflictsExhausted.inc();
+                    logger.warn("Budget of Billing Account:" + billingAccountId + " still updated concurrently after "
+                            + attempt + " attempts");
+                    throw new SupplyException("The budget of Billing Account:" + billingAccountId
+                            + " is updated concurrently, please retry", 409);
+                }
+                this.versionRetries.inc();
+                long backoff = VERSION_CONFLICT_BACKOFF_MILLIS << (attempt - 1);
+                try {
+                    Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new SupplyException("Interrupted while updating the budget of Billing Account:"
+                            + billingAccountId, 500);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check the statements of a budget update changed the rows with the versions read before
+     *
+     * @param counts the numbers of updated rows, one per statement
+     * @throws VersionConflictException if a row was changed meanwhile
+     */
+    private static void checkUpdated(int... counts) {
+        for (int count : counts) {
+            if (count == 0) {
+                throw new VersionConflictException();
+            }
+        }
+    }
 
-        FloatDTO floatDto = this.billingAccountDAO.getSumLockedConsumedAmount(billingAccountId, challengeId);
-        Float sumLockedConsumed = floatDto == null || floatDto.getFloatValue() == null ? 0 : floatDto.getFloatValue();
-        if(floatAdd(requestedLockAmount, sumLockedConsumed) > budgetAmount)
-        {
-            throw new SupplyException("Insufficient Budget amount ("+budgetAmount+") for Billing Account:" + billingAccountId+
-                                      ". Requested lock amount:"+requestedLockAmount+". Sum of all locked and consumed amount:"+sumLockedConsumed, 404);
+    /**
+     * Get the number of version conflicts of the most recently contended billing accounts
+     *
+     * @return the number of conflicts by billing account id
+     */
+    public Map<Long, Long> getContendedAccounts() {
+        synchronized (this.contendedAccounts) {
+            return new LinkedHashMap<>(this.contendedAccounts);
         }
+    }
 
-        //Find if there ia an existing entry for the Challenge: Update if exists; Insert if does not exists
-        if(countChallengeIdEntries == 0 )
-        {
-            //Insert and entry for a challaenge and billing account in table: project_challenge_budget
-            logger.debug("Creating new entry for Challenge:"+challengeId+" in Billing Account:"+billingAccountId+" with Consumed amount: 0 and lockedAmount as "+requestedLockAmount);
-            this.billingAccountDAO.createLockedAmount(billingAccountId, challengeId, requestedLockAmount, 0);
+    /**
+     * Get the running totals of a billing account with their version, the totals are created from the challenge
+     * entries if the billing account has none yet.
+     *
+     * @param dao the DAO bound to the transaction
+     * @param billingAccountId the billing account id
+     * @return the budget totals
+     * @throws SupplyException if the billing account does not exist
+     */
+    private static BudgetTotal getBudgetTotal(BillingAccountDAO dao, Long billingAccountId) throws SupplyException {
+        BudgetTotal total = dao.getBudgetTotal(billingAccountId);
+        if (total == null) {
+            if (dao.createBudgetTotal(billingAccountId) == 0) {
+                throw new SupplyException("Couldn't find billing account with id " + billingAccountId, 404);
+            }
+            total = dao.getBudgetTotal(billingAccountId);
         }
-        else if(countChallengeIdEntries == 1 )
-        {
-            //Update the entry for a challenge and billing account in table: project_challenge_budget
-            //TODO: We are setting consumedAmount to 0 ie overwriting existing value. Revisit: If it shows wiered behavior.
-            logger.debug("Updating entry for Challenge:"+challengeId+" in Billing Account:"+billingAccountId+" with Consumed amount: 0 and lockedAmount as "+requestedLockAmount);
-            this.billingAccountDAO.updateConsumedAmountForChallengeid(billingAccountId, challengeId, requestedLockAmount, 0);
+        return total;
+    }
+
+    /**
+     * Get the entries of the given challenges of a billing account
+     *
+     * @param dao the DAO to use
+     * @param billingAccountId the billing account id
+     * @param challengeIds the challenge ids
+     * @return the challenge budgets, an empty list if there's none
+     */
+    private static List<ChallengeBudget> getChallengeBudgets(BillingAccountDAO dao, Long billingAccountId,
+                                                             Set<String> challengeIds) {
+        FilterParameter filter = new FilterParameter("challengeIds=in(" + String.join(",", challengeIds) + ")");
+        QueryParameter queryParameter = new QueryParameter(new FieldSelector());
+        queryParameter.setFilter(filter);
+
+        List<ChallengeBudget> challengeBudgets = dao.getChallengeBudgets(billingAccountId, queryParameter);
+        return challengeBudgets == null ? new ArrayList<>() : challengeBudgets;
+    }
+
+    /**
+     * Create a list of zero amounts
+     *
+     * @param size the size of the list
+     * @return the list
+     */
+    private static List<BigDecimal> zeros(int size) {
+        return Collections.nCopies(size, BigDecimal.ZERO);
+    }
+
+    /**
+     * Build the error for a lock or consume amount request that was rejected by the conditional reservation.
+     * This is only called on the failure path, to tell the caller why the amount could not be reserved.
+     *
+     * @param billingAccountId the billing account id
+     * @param challengeId the challenge id
+     * @param requestedCents the requested lock or consume amount, in cents
+     * @param consume true for a consume amount request, false for a lock amount request
+     * @return the exception to throw
+     */
+    private SupplyException budgetRejection(Long billingAccountId, String challengeId, long requestedCents,
+                                            boolean consume) {
+        BudgetHeadroom total = this.billingAccountDAO.getBudgetHeadroom(billingAccountId);
+        if (total == null) {
+            return new SupplyException("Couldn't find billing account with id " + billingAccountId, 404);
         }
-        else
-        {
-            //Exception
+        this.cacheService.put(BUDGET_HEADROOM_CACHE_KEY + billingAccountId, total, BUDGET_HEADROOM_CACHE_EXPIRED_TIME);
+
+        List<ChallengeBudget> current = getChallengeBudgets(this.billingAccountDAO, billingAccountId,
+                Collections.singleton(challengeId));
+        if (current.size() > 1) {
             logger.debug("Multiple entries are found for Challenge:"+challengeId+" in Billing Account:"+billingAccountId);
-            throw new SupplyException("Multiple entries are found for Challenge:"+challengeId+" in Billing Account:"+billingAccountId, 404);
+            return new SupplyException("Multiple entries are found for Challenge:"+challengeId+" in Billing Account:"+billingAccountId, 404);
         }
-        return requestedLockAmount;
+
+        BigDecimal budgetAmount = Cents.toAmount(total.getBudgetCents());
+        if (consume) {
+            long sumConsumed = total.getConsumedCents();
+            if (!current.isEmpty()) {
+                sumConsumed -= current.get(0).getConsumedCents();
+            }
+            return new BudgetRejectedException("Insufficient Budget amount ("+budgetAmount+") for Billing Account:" + billingAccountId+
+                                       ". Requested consume amount:"+Cents.toAmount(requestedCents)+". Sum of all consumed amount:"+Cents.toAmount(sumConsumed));
+        }
+        long sumLockedConsumed = total.getLockedCents() + total.getConsumedCents();
+        if (!current.isEmpty()) {
+            sumLockedConsumed -= current.get(0).getLockedCents() + current.get(0).getConsumedCents();
+        }
+        return new BudgetRejectedException("Insufficient Budget amount ("+budgetAmount+") for Billing Account:" + billingAccountId+
+                                   ". Requested lock amount:"+Cents.toAmount(requestedCents)+". Sum of all locked and consumed amount:"+Cents.toAmount(sumLockedConsumed));
     }
+
     /**
-     * Update consumed amount for a BillingAccount
+     * Reject a lock or consume amount request clearly above the cached budget headroom of the billing account, without
+     * database access. The headroom is cached by the rejections and kept up to date by the budget writes of this node,
+     * it is an upper bound so the requests below it still take the check of the database. The budget may have been
+     * raised by another node since it was cached, so the requests within the margin above it take the check of the
+     * database as well.
+     *
+     * @param billingAccountId the billing account id
+     * @param requestedCents the requested lock or consume amount, in cents
+     * @param consume true for a consume amount request, false for a lock amount request
+     * @throws SupplyException if the requested amount is beyond the margin above the cached headroom
+     */
+    private void checkHeadroom(Long billingAccountId, long requestedCents, boolean consume) throws SupplyException {
+        BudgetHeadroom headroom = (BudgetHeadroom) this.cacheService.get(BUDGET_HEADROOM_CACHE_KEY + billingAccountId);
+        if (headroom == null) {
+            return;
+        }
+        long available = getHeadroomCents(headroom, consume);
+        long margin = Math.max(headroom.getBudgetCents(), 0) * BUDGET_HEADROOM_MARGIN_PERCENT / 100;
+        if (requestedCents > available + margin) {
+            this.fastRejections.inc();
+            throw new BudgetRejectedException("Insufficient Budget amount (" + Cents.toAmount(headroom.getBudgetCents())
+                    + ") for Billing Account:" + billingAccountId + ". Requested " + (consume ? "consume" : "lock")
+                    + " amount:" + Cents.toAmount(requestedCents) + ". Available amount at most:"
+                    + Cents.toAmount(available));
+        }
+    }
+
+    /**
+     * Get the upper bound of the amount a lock or consume request may reserve
+     *
+     * @param headroom the budget headroom
+     * @param consume true for a consume amount request, false for a lock amount request
+     * @return the upper bound, in cents
+     */
+    private static long getHeadroomCents(BudgetHeadroom headroom, boolean consume) {
+        return consume ? headroom.getConsumeHeadroomCents() : headroom.getLockHeadroomCents();
+    }
+
+    /**
+     * Update consumed amount for a BillingAccount.
+     * Budget mutations of the same billing account are queued on a striped lock in this service instance.
+     * The challenge-ba-consumed event is written to the outbox in the transaction of the budget write, and published
+     * by the OutboxRelay.
+     *
+     * <p>
+     * When an Idempotency-Key is given and a request with the same key was already completed, the stored result is
+     * returned without touching the budget nor publishing the event again.
+     * </p>
      *
      * @return the updated consumed Amount
      */
-    public Float consumeAmount(Long billingAccountId, String challengeId, Float requestedConsumeAmount, Float markup)  throws SupplyException{
-        //Get the Billing Account
-        List<BillingAccount> originals = getBillingAccount(billingAccountId).getData();
-        if (originals.size() == 0) {
+    public BigDecimal consumeAmount(Long billingAccountId, String challengeId, Long consumeCents, Float markup,
+                                    String idempotencyKey)  throws SupplyException{
+        if (challengeId == null || consumeCents == null) {
+            throw new SupplyException("The challengeId and consumeAmount should be provided", 400);
+        }
+        if (idempotencyKey == null) {
+            return this.budgetLocks.execute(billingAccountId,
+                    () -> doConsumeAmount(billingAccountId, challengeId, consumeCents, markup, null, null, null));
+        }
+
+        String key = "consume-amount:" + billingAccountId + ":" + idempotencyKey;
+        return this.budgetLocks.execute(billingAccountId, () -> {
+            IdempotencyRecord completed = findIdempotencyRecord(key);
+            if (completed != null) {
+                return replay(completed, idempotencyKey, challengeId, consumeCents);
+            }
+            BigDecimal result;
+            try {
+                result = doConsumeAmount(billingAccountId, challengeId, consumeCents, markup, key, null, null);
+            } catch (DBIException e) {
+                // the same request may have been completed by another node meanwhile
+                completed = findIdempotencyRecord(key);
+                if (completed == null) {
+                    throw e;
+                }
+                return replay(completed, idempotencyKey, challengeId, consumeCents);
+            }
+            this.idempotencyStore.put(key, new IdempotencyRecord(challengeId, consumeCents));
+            return result;
+        });
+    }
+
+    /**
+     * Get the completed request of an Idempotency-Key, from this service instance or from the database
+     *
+     * @param key the key of the request, including the operation and the billing account
+     * @return the completed request, null if not present
+     */
+    private IdempotencyRecord findIdempotencyRecord(String key) {
+        IdempotencyRecord completed = this.idempotencyStore.get(key);
+        if (completed == null && this.idempotencyStore.isPersistent()) {
+            completed = this.billingAccountDAO.getIdempotencyRecord(key, this.idempotencyStore.getExpirySeconds());
+            if (completed != null) {
+                this.idempotencyStore.put(key, completed);
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * Save the completed request of an Idempotency-Key in the database, with the budget writes of the request
+     *
+     * @param dao the DAO bound to the transaction
+     * @param key the key of the request, null if none
+     * @param challengeId the challenge id
+     * @param amount the locked or consumed amount
+     */
+    private void saveIdempotencyRecord(BillingAccountDAO dao, String key, String challengeId, BigDecimal amount) {
+        if (key != null && this.idempotencyStore.isPersistent()) {
+            dao.createIdempotencyRecord(key, challengeId, amount);
+        }
+    }
+
+    /**
+     * Queue a consume amount request to be applied asynchronously by a worker, see processOperation. The request is
+     * validated and saved before returning, so it is applied even if this service instance stops.
+     *
+     * <p>
+     * When an Idempotency-Key is given and a request with the same key was already queued, the queued operation is
+     * returned.
+     * </p>
+     *
+     * @param billingAccountId the billing account id
+     * @param challengeId the challenge id
+     * @param consumeCents the consume amount, in cents
+     * @param markup the mark up
+     * @param idempotencyKey the optional Idempotency-Key of the request
+     * @return the queued operation
+     * @throws SupplyException if the request is not valid or the billing account does not exist
+     */
+    public BudgetOperation enqueueConsumeAmount(Long billingAccountId, String challengeId, Long consumeCents, Float markup,
+                                                String idempotencyKey) throws SupplyException {
+        if (challengeId == null || consumeCents == null) {
+            throw new SupplyException("The challengeId and consumeAmount should be provided", 400);
+        }
+        if (idempotencyKey == null) {
+            return doEnqueueConsumeAmount(billingAccountId, challengeId, consumeCents, markup, null);
+        }
+        return this.budgetLocks.execute(billingAccountId, () -> {
+            BudgetOperation queued = this.billingAccountDAO.getOperationByKey(billingAccountId, idempotencyKey);
+            if (queued == null) {
+                return doEnqueueConsumeAmount(billingAccountId, challengeId, consumeCents, markup, idempotencyKey);
+            }
+            if (!challengeId.equals(queued.getChallengeId()) || consumeCents != queued.getConsumeCents()) {
+                throw new SupplyException("The Idempotency-Key " + idempotencyKey + " is already used by another request", 409);
+            }
+            return queued;
+        });
+    }
+
+    /**
+     * Queue a consume amount request.
+     *
+     * @param billingAccountId the billing account id
+     * @param challengeId the challenge id
+     * @param consumeCents the consume amount, in cents
+     * @param markup the mark up
+     * @param idempotencyKey the optional Idempotency-Key of the request
+     * @return the queued operation
+     * @throws SupplyException if the billing account does not exist
+     */
+    private BudgetOperation doEnqueueConsumeAmount(Long billingAccountId, String challengeId, long consumeCents,
+                                                   Float markup, String idempotencyKey) throws SupplyException {
+        if (this.billingAccountDAO.getBudgetTotal(billingAccountId) == null
+                && this.billingAccountDAO.createBudgetTotal(billingAccountId) == 0) {
             throw new SupplyException("Couldn't find billing account with id " + billingAccountId, 404);
         }
+        BudgetOperation operation = new BudgetOperation();
+        operation.setOperationId(UUID.randomUUID().toString());
+        operation.setBillingAccountId(billingAccountId);
+        operation.setChallengeId(challengeId);
+        operation.setConsumeCents(consumeCents);
+        operation.setMarkup(markup);
+        operation.setIdempotencyKey(idempotencyKey);
+        operation.setStatus(BudgetOperation.PENDING);
+        this.billingAccountDAO.createOperation(operation.getOperationId(), billingAccountId, challengeId,
+                Cents.toAmount(consumeCents), markup, idempotencyKey);
+        logger.debug("Queued consume amount for Challenge:" + challengeId + " in Billing Account:" + billingAccountId
+                + " as operation:" + operation.getOperationId());
+        return operation;
+    }
 
-        BillingAccount billingAccount = originals.get(0);
+    /**
+     * Get a queued consume amount operation of a billing account.
+     *
+     * @param billingAccountId the billing account id
+     * @param operationId the operation id
+     * @return the operation
+     * @throws SupplyException if the operation does not exist
+     */
+    public BudgetOperation getOperation(Long billingAccountId, String operationId) throws SupplyException {
+        BudgetOperation operation = this.billingAccountDAO.getOperation(billingAccountId, operationId);
+        if (operation == null) {
+            throw new SupplyException("Couldn't find operation with id " + operationId + " in Billing Account:"
+                    + billingAccountId, 404);
+        }
+        return operation;
+    }
 
-        //Get the Total budget available for the Billing account
-        Float budgetAmount = billingAccount.getBudgetAmount();
-        budgetAmount = budgetAmount == null ? 0 : budgetAmount;
+    /**
+     * Get the queued consume amount operations waiting for a worker, in queue order. Only the oldest unfinished
+     * operation of each billing account is returned, so the operations of a billing account are applied one at a time
+     * in queue order, by any service instance.
+     *
+     * @param limit the maximum number of operations to get
+     * @return the operations
+     */
+    public List<BudgetOperation> getPendingOperations(int limit) {
+        return this.billingAccountDAO.getPendingOperations(limit);
+    }
 
-        IdDTO idDto = this.billingAccountDAO.countChallengeIdEntries(billingAccountId, challengeId);
-        Long countChallengeIdEntries = idDto == null ? 0 : idDto.getId();
+    /**
+     * Get a page of the budget issues recorded by the reconciler, in issue id order.
+     *
+     * @param afterIssueId the last issue id of the previous page, null for the first page
+     * @param limit the page size, null for the maximum page size
+     * @return the issues
+     * @throws SupplyException if the page size is not valid
+     */
+    public List<ReconciliationIssue> getReconciliationIssues(Long afterIssueId, Integer limit) throws SupplyException {
+        if (limit != null && (limit <= 0 || limit > MAX_RECONCILIATION_ISSUES_LIMIT)) {
+            throw new SupplyException("The limit must be between 1 and " + MAX_RECONCILIATION_ISSUES_LIMIT, 400);
+        }
+        return this.billingAccountDAO.getReconciliationIssues(afterIssueId != null ? afterIssueId : 0,
+                limit != null ? limit : MAX_RECONCILIATION_ISSUES_LIMIT);
+    }
+
+    /**
+     * Apply a queued consume amount operation under a lease of the worker. The operation is completed in the
+     * transaction of its budget writes, only if the worker still holds the lease, so an operation taken over after
+     * its lease expired is applied once. A rejected request fails the operation with the status code consumeAmount
+     * would have returned, any other error puts it back in the queue until maxAttempts. The later operations of the
+     * billing account are not returned by getPendingOperations until this one is completed or failed.
+     *
+     * @param operation the operation to apply
+     * @param leaseOwner the id of the worker
+     * @param leaseSeconds the time after which the operation is taken over by another worker
+     * @param maxAttempts the maximum number of attempts of the operation
+     * @return true if the operation was claimed by this worker, false if it was claimed by another worker
+     */
+    public boolean processOperation(BudgetOperation operation, String leaseOwner, int leaseSeconds, int maxAttempts) {
+        String operationId = operation.getOperationId();
+        if (this.billingAccountDAO.claimOperation(operationId, leaseOwner, leaseSeconds) == 0) {
+            return false;
+        }
+        int updated;
+        try {
+            this.budgetLocks.execute(operation.getBillingAccountId(), () -> consumeOperation(operation, leaseOwner));
+            return true;
+        } catch (LeaseLostException e) {
+            updated = 0;
+        } catch (SupplyException e) {
+            updated = this.billingAccountDAO.completeOperation(operationId, leaseOwner, BudgetOperation.FAILED,
+                    e.getStatusCode(), truncate(e.getMessage()));
+        } catch (Exception e) {
+            logger.error("Failed to apply operation:" + operationId + ", attempt " + (operation.getAttempts() + 1), e);
+            if (operation.getAttempts() + 1 >= maxAttempts) {
+                updated = this.billingAccountDAO.completeOperation(operationId, leaseOwner, BudgetOperation.FAILED, 500,
+                        truncate(e.getMessage()));
+            } else {
+                updated = this.billingAccountDAO.retryOperation(operationId, leaseOwner);
+            }
+        }
+        if (updated == 0) {
+            logger.warn("The lease of operation:" + operationId + " was taken over by another worker");
+        }
+        return true;
+    }
 
+    /**
+     * Apply a claimed consume amount operation, the caller holds the budget lock of the billing account.
+     * When the operation has an Idempotency-Key already completed by a synchronous request, the operation is completed
+     * without touching the budget.
+     *
+     * @param operation the operation to apply
+     * @param leaseOwner the id of the worker holding the lease
+     * @return the consumed amount
+     * @throws SupplyException if the request is rejected
+     * @throws LeaseLostException if the lease was taken over, nothing is written
+     */
+    private BigDecimal consumeOperation(BudgetOperation operation, String leaseOwner) throws SupplyException {
+        Long billingAccountId = operation.getBillingAccountId();
+        String idempotencyKey = operation.getIdempotencyKey();
+        String key = idempotencyKey != null ? "consume-amount:" + billingAccountId + ":" + idempotencyKey : null;
+        if (key != null) {
+            IdempotencyRecord completed = findIdempotencyRecord(key);
+            if (completed != null) {
+                BigDecimal result = replay(completed, idempotencyKey, operation.getChallengeId(),
+                        operation.getConsumeCents());
+                if (this.billingAccountDAO.completeOperation(operation.getOperationId(), leaseOwner,
+                        BudgetOperation.COMPLETED, 200, null) == 0) {
+                    throw new LeaseLostException();
+                }
+                return result;
+            }
+        }
+        BigDecimal result = doConsumeAmount(billingAccountId, operation.getChallengeId(), operation.getConsumeCents(),
+                operation.getMarkup(), key, operation.getOperationId(), leaseOwner);
+        if (key != null) {
+            this.idempotencyStore.put(key, new IdempotencyRecord(operation.getChallengeId(), operation.getConsumeCents()));
+        }
+        return result;
+    }
+
+    /**
+     * Truncate an error message to the size of the message column of the operations
+     *
+     * @param message the message
+     * @return the truncated message
+     */
+    private static String truncate(String message) {
+        return message != null && message.length() > OPERATION_MESSAGE_LENGTH
+                ? message.substring(0, OPERATION_MESSAGE_LENGTH) : message;
+    }
+
+    /**
+     * Get the result of a completed request for its retry
+     *
+     * @param completed the completed request
+     * @param idempotencyKey the Idempotency-Key
+     * @param challengeId the challenge id of the retry
+     * @param cents the amount of the retry, in cents
+     * @return the result of the completed request
+     * @throws SupplyException if the key was used by a different request
+     */
+    private static BigDecimal replay(IdempotencyRecord completed, String idempotencyKey, String challengeId, long cents)
+        throws SupplyException {
+        if (!challengeId.equals(completed.getChallengeId()) || cents != completed.getAmountCents()) {
+            throw new SupplyException("The Idempotency-Key " + idempotencyKey + " is already used by another request", 409);
+        }
+        logger.debug("Returning the completed request of Idempotency-Key:" + idempotencyKey);
+        return Cents.toAmount(completed.getAmountCents());
+    }
+
+    /**
+     * Update consumed amount for a BillingAccount, the caller holds the budget lock of the billing account.
+     * When a queued operation is applied, it's completed in the same transaction, only if the worker still holds its
+     * lease.
+     *
+     * @return the updated consumed Amount
+     */
+    private BigDecimal doConsumeAmount(Long billingAccountId, String challengeId, long consumeCents, Float markup,
+                                       String idempotencyKey, String operationId, String leaseOwner)
+        throws SupplyException{
+        checkHeadroom(billingAccountId, consumeCents, true);
+        BigDecimal requestedConsumeAmount = Cents.toAmount(consumeCents);
         //The locked amount may not be actually used. On the other hand, consumed amount is the actually used amount.
         //So, when a challenge completes and call consume api, we just check the actually amount, kinda of 
         //loose the condition, and let that challenge finishes without problem.
-        FloatDTO floatDto = this.billingAccountDAO.getSumConsumedAmount(billingAccountId, challengeId);
-        Float sumConsumed = floatDto == null || floatDto.getFloatValue() == null ? 0 : floatDto.getFloatValue();
-        if(floatAdd(requestedConsumeAmount, sumConsumed) > budgetAmount)
-        {
-            throw new SupplyException("Insufficient Budget amount ("+budgetAmount+") for Billing Account:" + billingAccountId+
-                                      ". Requested consume amount:"+requestedConsumeAmount+". Sum of all consumed amount:"+sumConsumed, 404);
-        }
-
-        //Find if there ia an existing entry for the Challenge: Update if exists; Insert if does not exists
-        if(countChallengeIdEntries == 0 )
-        {
-            //Insert and entry for a challaenge and billing account in table: project_challenge_budget
-            logger.debug("Creating new entry for Challenge:"+challengeId+" in Billing Account:"+billingAccountId+" with Consumed amount:"+requestedConsumeAmount+" and lockedAmount as 0.");
-            this.billingAccountDAO.createLockedAmount(billingAccountId, challengeId, 0, requestedConsumeAmount);
-        }
-        else if(countChallengeIdEntries == 1 )
-        {
-            //Update the entry for a challenge and billing account in table: project_challenge_budget
-            logger.debug("Updating entry for Challenge:"+challengeId+" in Billing Account:"+billingAccountId+" with Consumed amount:"+requestedConsumeAmount+" and lockedAmount as 0.");
-            this.billingAccountDAO.updateConsumedAmountForChallengeid(billingAccountId, challengeId, 0, requestedConsumeAmount);
-        }
-        else
-        {
-            //Exception
-            logger.debug("Multiple entries are found for Challenge:"+challengeId+" in Billing Account:"+billingAccountId);
-            throw new SupplyException("Multiple entries are found for Challenge:"+challengeId+" in Billing Account:"+billingAccountId, 404);
+        boolean reserved = inBudgetTransaction(billingAccountId, consumeCents, consumeCents, (dao, status) -> {
+            int updated = dao.reserveConsumedTotal(billingAccountId, challengeId, requestedConsumeAmount);
+            if (updated == 0 && dao.createBudgetTotal(billingAccountId) > 0) {
+                updated = dao.reserveConsumedTotal(billingAccountId, challengeId, requestedConsumeAmount);
+            }
+            if (updated == 0) {
+                return false;
+            }
+            dao.createLedgerEntry(billingAccountId, challengeId, LEDGER_ENTRY_CONSUME, BigDecimal.ZERO, requestedConsumeAmount);
+            //Insert or update the entry for a challenge and billing account in table: project_challenge_budget
+            dao.upsertChallengeBudget(billingAccountId, challengeId, BigDecimal.ZERO, requestedConsumeAmount);
+            dao.deleteLockExpiry(billingAccountId, challengeId);
+            dao.createOutboxEvent(billingAccountId, consumedEvent(billingAccountId, challengeId, consumeCents, markup));
+            saveIdempotencyRecord(dao, idempotencyKey, challengeId, requestedConsumeAmount);
+            if (operationId != null
+                    && dao.completeOperation(operationId, leaseOwner, BudgetOperation.COMPLETED, 200, null) == 0) {
+                throw new LeaseLostException();
+            }
+            return true;
+        });
+
+        if (!reserved) {
+            throw budgetRejection(billingAccountId, challengeId, consumeCents, true);
         }
 
-        JSONObject json = new JSONObject();
-        json.put("source", "tc-billing-account-service");
-        json.put("publisher", "tc-billing-account-service.api");
-        json.put("eventType", "challenge-ba-consumed");
-        json.put("payloadType", "challenge-ba-consumed");
-        json.put("payloadVersion", 1);
+        logger.debug("Consumed amount for Challenge:"+challengeId+" in Billing Account:"+billingAccountId+" with Consumed amount:"+requestedConsumeAmount+" and lockedAmount as 0.");
 
-        JSONObject payload = new JSONObject();
-        payload.put("billingAccountId", billingAccountId);
-        payload.put("actualSpent", requestedConsumeAmount);
-        payload.put("challengeId", challengeId);
-        payload.put("markup", markup);
-        json.put("payload", payload);
+        return requestedConsumeAmount;
+    }
 
-        harmonyPublisher.publish(json.toString());
+    /**
+     * Update consumed amounts for several Challenges of a BillingAccount.
+     *
+     * <p>
+     * The request is validated against the running total of the consumed amounts and all entries are written with
+     * JDBI batches in one transaction: either all the amounts are consumed or none of them. The challenge-ba-consumed
+     * events are written to the outbox with one batch in the same transaction. As in lockAmounts, the totals and the existing entries are only updated if
+     * their versions are unchanged.
+     * </p>
+     *
+     * @param billingAccountId the billing account id
+     * @param consumeAmounts the amounts to consume, one per challenge
+     * @return the consumed amounts, one per challenge
+     * @throws SupplyException if the request is invalid, the billing account does not exist or the budget is insufficient
+     */
+    public List<ConsumeAmountDTO> consumeAmounts(Long billingAccountId, List<ConsumeAmountDTO> consumeAmounts) throws SupplyException {
+        if (consumeAmounts == null || consumeAmounts.isEmpty()) {
+            throw new SupplyException("The consume amounts should be provided", 400);
+        }
+        Set<String> challengeIds = new HashSet<>();
+        long maxConsumeCents = 0;
+        for (ConsumeAmountDTO consumeAmount : consumeAmounts) {
+            if (consumeAmount.getChallengeId() == null || consumeAmount.getConsumeCents() == null) {
+                throw new SupplyException("The challengeId and consumeAmount should be provided", 400);
+            }
+            if (!challengeIds.add(consumeAmount.getChallengeId())) {
+                throw new SupplyException("Duplicate consume amount for Challenge:" + consumeAmount.getChallengeId(), 400);
+            }
+            maxConsumeCents = Math.max(maxConsumeCents, consumeAmount.getConsumeCents());
+        }
+        long entryCents = maxConsumeCents;
+
+        return retryOnVersionConflict(billingAccountId,
+                () -> inBudgetTransaction(billingAccountId, entryCents, entryCents, (dao, status) -> {
+            BudgetTotal total = getBudgetTotal(dao, billingAccountId);
+
+            // as consumeAmount, only the consumed amounts of the other challenges are checked
+            Map<String, Integer> entries = new HashMap<>();
+            Map<String, Long> versions = new HashMap<>();
+            long currentLocked = 0;
+            long currentConsumed = 0;
+            for (ChallengeBudget cb : getChallengeBudgets(dao, billingAccountId, challengeIds)) {
+                entries.merge(cb.getChallengeId(), 1, Integer::sum);
+                versions.put(cb.getChallengeId(), cb.getVersion());
+                currentLocked += cb.getLockedCents();
+                currentConsumed += cb.getConsumedCents();
+            }
+            long sumConsumed = total.getConsumedCents() - currentConsumed;
+
+            long requestedConsumeCents = 0;
+            List<String> ledgerIds = new ArrayList<>();
+            List<BigDecimal> ledgerAmounts = new ArrayList<>();
+            List<String> createIds = new ArrayList<>();
+            List<BigDecimal> createAmounts = new ArrayList<>();
+            List<String> updateIds = new ArrayList<>();
+            List<BigDecimal> updateAmounts = new ArrayList<>();
+            List<Long> updateVersions = new ArrayList<>();
+            for (ConsumeAmountDTO consumeAmount : consumeAmounts) {
+                String challengeId = consumeAmount.getChallengeId();
+                int count = entries.getOrDefault(challengeId, 0);
+                if (count > 1) {
+                    throw new SupplyException("Multiple entries are found for Challenge:"+challengeId+" in Billing Account:"+billingAccountId, 404);
+                }
+                if (count == 0) {
+                    createIds.add(challengeId);
+                    createAmounts.add(Cents.toAmount(consumeAmount.getConsumeCents()));
+                } else {
+                    updateIds.add(challengeId);
+                    updateAmounts.add(Cents.toAmount(consumeAmount.getConsumeCents()));
+                    updateVersions.add(versions.get(challengeId));
+                }
+                ledgerIds.add(challengeId);
+                ledgerAmounts.add(Cents.toAmount(consumeAmount.getConsumeCents()));
+                requestedConsumeCents += consumeAmount.getConsumeCents();
+            }
 
-        return requestedConsumeAmount;
+            if (requestedConsumeCents + sumConsumed > total.getBudgetCents()) {
+                throw new SupplyException("Insufficient Budget amount ("+Cents.toAmount(total.getBudgetCents())+") for Billing Account:" + billingAccountId+
+                                          ". Requested consume amount:"+Cents.toAmount(requestedConsumeCents)+". Sum of all consumed amount:"+Cents.toAmount(sumConsumed), 404);
+            }
+
+            // the totals are swapped first, as in lockAmounts; the locked amount of the consumed challenges is
+            // released, as done by consumeAmount
+            checkUpdated(dao.addBudgetTotal(billingAccountId, Cents.toAmount(-currentLocked),
+                    Cents.toAmount(requestedConsumeCents - currentConsumed), total.getVersion()));
+            dao.createLedgerEntries(billingAccountId, ledgerIds, LEDGER_ENTRY_CONSUME, zeros(ledgerIds.size()), ledgerAmounts);
+            if (!createIds.isEmpty()) {
+                dao.createLockedAmounts(billingAccountId, createIds, zeros(createIds.size()), createAmounts);
+            }
+            if (!updateIds.isEmpty()) {
+                checkUpdated(dao.updateConsumedAmountsForChallengeids(billingAccountId, updateIds,
+                        zeros(updateIds.size()), updateAmounts, updateVersions));
+            }
+            dao.deleteLockExpiries(billingAccountId, ledgerIds);
+
+            logger.debug("Consumed amounts for "+consumeAmounts.size()+" Challenges in Billing Account:"+billingAccountId+" with total consumedAmount as "+Cents.toAmount(requestedConsumeCents));
+            List<ConsumeAmountDTO> consumed = new ArrayList<>();
+            List<String> events = new ArrayList<>();
+            for (ConsumeAmountDTO consumeAmount : consumeAmounts) {
+                consumed.add(new ConsumeAmountDTO(consumeAmount.getConsumeCents(), consumeAmount.getChallengeId(),
+                        consumeAmount.getMarkup()));
+                events.add(consumedEvent(billingAccountId, consumeAmount.getChallengeId(),
+                        consumeAmount.getConsumeCents(), consumeAmount.getMarkup()));
+            }
+            dao.createOutboxEvents(billingAccountId, events);
+            return consumed;
+        }));
+    }
+
+    /**
+     * Build the challenge-ba-consumed event published to Harmony through the outbox
+     *
+     * @param billingAccountId the billing account id
+     * @param challengeId the challenge id
+     * @param consumeCents the consumed amount, in cents
+     * @param markup the markup
+     * @return the event JSON
+     */
+    private static String consumedEvent(Long billingAccountId, String challengeId, long consumeCents, Float markup) {
+        return new ChallengeConsumedEvent(billingAccountId, challengeId, consumeCents, markup).toJson();
     }
-}
\ No newline at end of file
+}
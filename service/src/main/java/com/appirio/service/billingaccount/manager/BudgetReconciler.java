@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.manager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.appirio.service.billingaccount.api.Cents;
+import com.appirio.service.billingaccount.api.ChallengeBudget;
+import com.appirio.service.billingaccount.api.ReconciliationBalance;
+import com.appirio.service.billingaccount.api.ReconciliationIssue;
+import com.appirio.service.billingaccount.dao.BillingAccountDAO;
+
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * BudgetReconciler walks the billing accounts in project_id order, a small chunk at a time with a pause between the
+ * chunks, and compares their budget, running totals, challenge entries and budget ledger. The anomalies found, as
+ * duplicate challenge entries or locked and consumed amounts above the budget, are recorded in the
+ * budget_reconciliation_issue table in place of the previous findings of the billing account.
+ *
+ * A billing account looking inconsistent is checked again under the row lock of its running totals, as the budget
+ * mutations take it, so the figures of a pending mutation are not reported.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class BudgetReconciler implements Managed {
+
+    /**
+     * The default interval between two walks of all the billing accounts, one hour
+     */
+    public static final int DEFAULT_INTERVAL_SECONDS = 3600;
+
+    /**
+     * The default number of billing accounts reconciled per chunk
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 50;
+
+    /**
+     * The default pause between two chunks, in milliseconds
+     */
+    public static final int DEFAULT_CHUNK_DELAY_MILLIS = 1000;
+
+    /**
+     * Logger for the class
+     */
+    private static final Logger logger = LoggerFactory.getLogger(BudgetReconciler.class);
+
+    /**
+     * The billing account DAO
+     */
+    private final BillingAccountDAO billingAccountDAO;
+
+    /**
+     * The interval between two walks, in seconds
+     */
+    private final int intervalSeconds;
+
+    /**
+     * The number of billing accounts reconciled per chunk
+     */
+    private final int chunkSize;
+
+    /**
+     * The pause between two chunks, in milliseconds
+     */
+    private final int chunkDelayMillis;
+
+    /**
+     * The last billing account id reconciled by the current walk, 0 before the first chunk
+     */
+    private long afterProjectId;
+
+    /**
+     * The executor running the chunks
+     */
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Create the instance
+     *
+     * @param billingAccountDAO the billing account DAO
+     * @param intervalSeconds the interval between two walks of all the billing accounts, in seconds, 0 to disable
+     * the reconciliation
+     * @param chunkSize the number of billing accounts reconciled per chunk
+     * @param chunkDelayMillis the pause between two chunks, in milliseconds
+     */
+    public BudgetReconciler(BillingAccountDAO billingAccountDAO, int intervalSeconds, int chunkSize,
+                            int chunkDelayMillis) {
+        if (intervalSeconds < 0 || chunkDelayMillis < 0) {
+            throw new IllegalArgumentException("The reconciliation interval and chunk delay must not be negative");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("The reconciliation chunk size must be positive");
+        }
+        this.billingAccountDAO = billingAccountDAO;
+        this.intervalSeconds = intervalSeconds;
+        this.chunkSize = chunkSize;
+        this.chunkDelayMillis = chunkDelayMillis;
+    }
+
+    /**
+     * Start the reconciliation
+     */
+    @Override
+    public void start() {
+        if (this.intervalSeconds == 0) {
+            logger.info("Budget reconciliation is disabled");
+            return;
+        }
+        this.executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "budget-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor.schedule(this::reconcileNext, this.intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the reconciliation, the running chunk is completed
+     *
+     * @throws InterruptedException if interrupted while waiting for the running chunk
+     */
+    @Override
+    public void stop() throws InterruptedException {
+        if (this.executor != null) {
+            this.executor.shutdown();
+            this.executor.awaitTermination(this.intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Reconcile the next chunk, then schedule the following one after the chunk delay, or the next walk after the
+     * interval once all the billing accounts are reconciled. A failed chunk is tried again at the next walk.
+     */
+    private void reconcileNext() {
+        long delayMillis = this.chunkDelayMillis;
+        try {
+            this.afterProjectId = reconcileChunk(this.afterProjectId);
+            if (this.afterProjectId == 0) {
+                logger.info("Reconciled the budgets of all the billing accounts");
+                delayMillis = TimeUnit.SECONDS.toMillis(this.intervalSeconds);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to reconcile the budgets after Billing Account:" + this.afterProjectId, e);
+            delayMillis = TimeUnit.SECONDS.toMillis(this.intervalSeconds);
+        }
+        if (!this.executor.isShutdown()) {
+            this.executor.schedule(this::reconcileNext, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Reconcile the next chunk of billing accounts: their previous issues are removed, then the issues of the
+     * billing accounts looking inconsistent are recorded. The failure of one billing account doesn't stop the others.
+     *
+     * @param afterProjectId the last billing account id already reconciled, 0 to start from the first
+     * @return the last billing account id of the chunk, 0 if all the billing accounts are reconciled
+     */
+    public long reconcileChunk(long afterProjectId) {
+        List<ReconciliationBalance> balances = this.billingAccountDAO.getReconciliationBalances(afterProjectId,
+                this.chunkSize);
+        if (balances.isEmpty()) {
+            return 0;
+        }
+        long lastProjectId = balances.get(balances.size() - 1).getProjectId();
+        this.billingAccountDAO.deleteReconciliationIssues(afterProjectId, lastProjectId);
+        for (ReconciliationBalance balance : balances) {
+            if (!isInconsistent(balance)) {
+                continue;
+            }
+            try {
+                List<ReconciliationIssue> issues = reconcile(balance.getProjectId());
+                if (!issues.isEmpty()) {
+                    logger.warn("Found " + issues.size() + " budget issues in Billing Account:" + balance.getProjectId());
+                }
+            } catch (Exception e) {
+                logger.error("Failed to reconcile the budget of Billing Account:" + balance.getProjectId(), e);
+            }
+        }
+        return balances.size() < this.chunkSize ? 0 : lastProjectId;
+    }
+
+    /**
+     * Check the budget figures of a billing account again under the row lock of its running totals, and record its
+     * issues.
+     *
+     * @param billingAccountId the billing account id
+     * @return the recorded issues, empty if the billing account is consistent
+     */
+    public List<ReconciliationIssue> reconcile(long billingAccountId) {
+        return this.billingAccountDAO.inTransaction((dao, status) -> {
+            dao.lockBudgetTotal(billingAccountId);
+            List<ReconciliationBalance> balances = dao.getReconciliationBalances(billingAccountId - 1, 1);
+            List<ReconciliationIssue> issues = new ArrayList<>();
+            if (balances.isEmpty() || balances.get(0).getProjectId() != billingAccountId) {
+                return issues;
+            }
+            ReconciliationBalance balance = balances.get(0);
+
+            if (balance.getDuplicateEntries() > 0) {
+                Map<String, List<ChallengeBudget>> duplicates = new LinkedHashMap<>();
+                for (ChallengeBudget entry : dao.getDuplicateChallengeEntries(billingAccountId)) {
+                    duplicates.computeIfAbsent(entry.getChallengeId(), id -> new ArrayList<>()).add(entry);
+                }
+                for (Map.Entry<String, List<ChallengeBudget>> duplicate : duplicates.entrySet()) {
+                    long amount = 0;
+                    for (ChallengeBudget entry : duplicate.getValue()) {
+                        amount += entry.getLockedCents() + entry.getConsumedCents();
+                    }
+                    issues.add(new ReconciliationIssue(billingAccountId, duplicate.getKey(),
+                            ReconciliationIssue.DUPLICATE_ENTRY, null, amount, duplicate.getValue().size() + " entries"));
+                }
+            }
+            long committed = balance.getEntryLockedCents() + balance.getEntryConsumedCents();
+            if (committed > balance.getBudgetCents()) {
+                issues.add(new ReconciliationIssue(billingAccountId, null, ReconciliationIssue.OVER_COMMIT,
+                        balance.getBudgetCents(), committed, null));
+            }
+            if (balance.getTotalLockedCents() != null) {
+                addDrift(issues, balance, ReconciliationIssue.TOTAL_DRIFT, balance.getTotalLockedCents(),
+                        balance.getTotalConsumedCents());
+            }
+            addDrift(issues, balance, ReconciliationIssue.LEDGER_DRIFT, balance.getLedgerLockedCents(),
+                    balance.getLedgerConsumedCents());
+
+            for (ReconciliationIssue issue : issues) {
+                dao.createReconciliationIssue(billingAccountId, issue.getChallengeId(), issue.getIssueType(),
+                        issue.getExpectedCents() == null ? null : Cents.toAmount(issue.getExpectedCents()),
+                        Cents.toAmount(issue.getActualCents()), issue.getDetail());
+            }
+            return issues;
+        });
+    }
+
+    /**
+     * Check whether the budget figures of a billing account look inconsistent
+     *
+     * @param balance the budget figures
+     * @return true if the billing account should be checked under its row lock
+     */
+    private static boolean isInconsistent(ReconciliationBalance balance) {
+        long locked = balance.getEntryLockedCents();
+        long consumed = balance.getEntryConsumedCents();
+        return balance.getDuplicateEntries() > 0
+                || locked + consumed > balance.getBudgetCents()
+                || (balance.getTotalLockedCents() != null && (balance.getTotalLockedCents() != locked
+                        || !Objects.equals(balance.getTotalConsumedCents(), consumed)))
+                || balance.getLedgerLockedCents() != locked
+                || balance.getLedgerConsumedCents() != consumed;
+    }
+
+    /**
+     * Add the issues of the locked and consumed amounts of a billing account different from its challenge entries
+     *
+     * @param issues the issues to add to
+     * @param balance the budget figures
+     * @param issueType the issue type
+     * @param lockedCents the locked amount compared to the challenge entries, in cents
+     * @param consumedCents the consumed amount compared to the challenge entries, in cents
+     */
+    private static void addDrift(List<ReconciliationIssue> issues, ReconciliationBalance balance, String issueType,
+                                 long lockedCents, long consumedCents) {
+        if (lockedCents != balance.getEntryLockedCents()) {
+            issues.add(new ReconciliationIssue(balance.getProjectId(), null, issueType, balance.getEntryLockedCents(),
+                    lockedCents, "locked"));
+        }
+        if (consumedCents != balance.getEntryConsumedCents()) {
+            issues.add(new ReconciliationIssue(balance.getProjectId(), null, issueType, balance.getEntryConsumedCents(),
+                    consumedCents, "consumed"));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.manager;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.appirio.service.billingaccount.api.IdDTO;
+import com.appirio.service.billingaccount.dao.BillingAccountDAO;
+
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * BudgetSnapshotter periodically snapshots the totals of the budget ledger of the billing accounts having new ledger
+ * entries, so reading the available budget only sums the entries written since the latest snapshot.
+ *
+ * Each snapshot takes the row lock on the running totals of the billing account first, as the budget mutations do,
+ * so the ledger entries of the pending mutations are never skipped by a snapshot.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class BudgetSnapshotter implements Managed {
+
+    /**
+     * The default interval between the snapshots, five minutes
+     */
+    public static final int DEFAULT_INTERVAL_SECONDS = 300;
+
+    /**
+     * Logger for the class
+     */
+    private static final Logger logger = LoggerFactory.getLogger(BudgetSnapshotter.class);
+
+    /**
+     * The billing account DAO
+     */
+    private final BillingAccountDAO billingAccountDAO;
+
+    /**
+     * The interval between the snapshots, in seconds
+     */
+    private final int intervalSeconds;
+
+    /**
+     * The executor running the snapshots
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Create the instance
+     *
+     * @param billingAccountDAO the billing account DAO
+     * @param intervalSeconds the interval between the snapshots, in seconds, 0 to disable the snapshots
+     */
+    public BudgetSnapshotter(BillingAccountDAO billingAccountDAO, int intervalSeconds) {
+        if (intervalSeconds < 0) {
+            throw new IllegalArgumentException("The snapshot interval must not be negative");
+        }
+        this.billingAccountDAO = billingAccountDAO;
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    /**
+     * Start the snapshots
+     */
+    @Override
+    public void start() {
+        if (this.intervalSeconds == 0) {
+            logger.info("Budget snapshots are disabled");
+            return;
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "budget-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::snapshotAll, this.intervalSeconds, this.intervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the snapshots, the running snapshot is completed
+     *
+     * @throws InterruptedException if interrupted while waiting for the running snapshot
+     */
+    @Override
+    public void stop() throws InterruptedException {
+        if (this.executor != null) {
+            this.executor.shutdown();
+            this.executor.awaitTermination(this.intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Snapshot all the billing accounts having ledger entries after their latest snapshot. The failure of one
+     * billing account doesn't stop the others.
+     *
+     * @return the number of created snapshots
+     */
+    public int snapshotAll() {
+        int created = 0;
+        try {
+            List<IdDTO> projects = this.billingAccountDAO.getProjectsToSnapshot();
+            for (IdDTO project : projects) {
+                try {
+                    created += snapshot(project.getId());
+                } catch (Exception e) {
+                    logger.error("Failed to snapshot the budget ledger of Billing Account:" + project.getId(), e);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Failed to snapshot the budget ledgers", e);
+        }
+        logger.debug("Created " + created + " budget snapshots");
+        return created;
+    }
+
+    /**
+     * Snapshot the budget ledger of a billing account
+     *
+     * @param billingAccountId the billing account id
+     * @return the number of created snapshots, 0 if there is no entry since the latest snapshot
+     */
+    public int snapshot(long billingAccountId) {
+        return this.billingAccountDAO.inTransaction((dao, status) -> {
+            dao.lockBudgetTotal(billingAccountId);
+            return dao.createBudgetSnapshot(billingAccountId);
+        });
+    }
+}
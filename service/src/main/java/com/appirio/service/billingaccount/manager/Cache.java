@@ -0,0 +1,591 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.manager;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Cache is an in process cache bounded by a maximum weight, with an expiry per value.
+ *
+ * The values are split in segments by the hash of their key, each with its own lock and its share of the maximum
+ * weight; when a put exceeds the weight of its segment, the least recently used values of the segment are evicted.
+ * The expired values are removed when they're read, or by sweep. The hits, misses and evictions are counted.
+ *
+ * A value read with a loader is loaded once per key however many threads miss it at the same time: the others wait
+ * for the same load. Once a loaded value has lived REFRESH_AHEAD_PERCENT of its expiry, the next read still returns it
+ * but reloads it in the background, so a value read often never expires.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class Cache<K, V> {
+
+    /**
+     * The default number of segments
+     */
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    /**
+     * The part of the expiry, in percent, after which a loaded value is reloaded in the background when it's read
+     */
+    public static final int REFRESH_AHEAD_PERCENT = 80;
+
+    /**
+     * The segments
+     */
+    private final Segment<K, V>[] segments;
+
+    /**
+     * The weigher of the values
+     */
+    private final Weigher<? super K, ? super V> weigher;
+
+    /**
+     * The number of reads of a cached value
+     */
+    private final Counter hits = new Counter();
+
+    /**
+     * The number of reads of a missing or expired value
+     */
+    private final Counter misses = new Counter();
+
+    /**
+     * The number of values evicted to keep the maximum weight
+     */
+    private final Counter evictions = new Counter();
+
+    /**
+     * The number of failed loads
+     */
+    private final Counter loadFailures = new Counter();
+
+    /**
+     * The loads in progress by key
+     */
+    private final ConcurrentMap<K, CompletableFuture<V>> loads = new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+    /**
+     * The executor of the background reloads
+     */
+    private final Executor refreshExecutor;
+
+    /**
+     * Weigher computes the weight of a value, counted against the maximum weight of the cache
+     *
+     * @param <K> the type of the keys
+     * @param <V> the type of the values
+     */
+    public interface Weigher<K, V> {
+        /**
+         * Get the weight of a value
+         *
+         * @param key the key
+         * @param value the value
+         * @return the weight, not negative
+         */
+        int weigh(K key, V value);
+    }
+
+    /**
+     * A cached value with its weight and expiry time
+     *
+     * @param <V> the type of the value
+     */
+    private static final class Entry<V> {
+        /**
+         * The value
+         */
+        private final V value;
+
+        /**
+         * The weight
+         */
+        private final int weight;
+
+        /**
+         * The expiry time, from System.nanoTime, Long.MAX_VALUE if the value doesn't expire
+         */
+        private final long expiresAt;
+
+        /**
+         * The time to reload the value in the background, from System.nanoTime, Long.MAX_VALUE if it's not reloaded
+         */
+        private final long refreshAt;
+
+        /**
+         * Create the entry
+         *
+         * @param value the value
+         * @param weight the weight
+         * @param expiresAt the expiry time
+         * @param refreshAt the time to reload the value
+         */
+        Entry(V value, int weight, long expiresAt, long refreshAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+
+        /**
+         * Check whether the value is expired
+         *
+         * @param now the current time, from System.nanoTime
+         * @return true if the value is expired
+         */
+        boolean isExpired(long now) {
+            return this.expiresAt != Long.MAX_VALUE && now - this.expiresAt >= 0;
+        }
+
+        /**
+         * Check whether the value should be reloaded
+         *
+         * @param now the current time, from System.nanoTime
+         * @return true if the value should be reloaded
+         */
+        boolean isRefreshDue(long now) {
+            return this.refreshAt != Long.MAX_VALUE && now - this.refreshAt >= 0;
+        }
+    }
+
+    /**
+     * A segment of the cache, guarded by its own lock
+     *
+     * @param <K> the type of the keys
+     * @param <V> the type of the values
+     */
+    private static final class Segment<K, V> {
+        /**
+         * The entries by key, in access order
+         */
+        private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+
+        /**
+         * The maximum weight of the segment
+         */
+        private final long maxWeight;
+
+        /**
+         * The weight of the entries
+         */
+        private long weight;
+
+        /**
+         * Create the segment
+         *
+         * @param maxWeight the maximum weight of the segment
+         */
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        /**
+         * Remove an entry
+         *
+         * @param key the key
+         * @return the removed entry, null if not present
+         */
+        Entry<V> remove(K key) {
+            Entry<V> entry = this.entries.remove(key);
+            if (entry != null) {
+                this.weight -= entry.weight;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Create the cache, with DEFAULT_SEGMENTS segments and each value weighing 1
+     *
+     * @param maxSize the maximum number of values
+     */
+    public Cache(long maxSize) {
+        this(DEFAULT_SEGMENTS, maxSize, (key, value) -> 1);
+    }
+
+    /**
+     * Create the cache, reloading the values in the common fork join pool
+     *
+     * @param segments the number of segments, each keeping its share of the maximum weight
+     * @param maxWeight the maximum weight of the values
+     * @param weigher the weigher of the values
+     */
+    public Cache(int segments, long maxWeight, Weigher<? super K, ? super V> weigher) {
+        this(segments, maxWeight, weigher, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create the cache
+     *
+     * @param segments the number of segments, each keeping its share of the maximum weight
+     * @param maxWeight the maximum weight of the values
+     * @param weigher the weigher of the values
+     * @param refreshExecutor the executor of the background reloads
+     */
+    @SuppressWarnings("unchecked")
+    public Cache(int segments, long maxWeight, Weigher<? super K, ? super V> weigher, Executor refreshExecutor) {
+        if (segments <= 0 || maxWeight < segments) {
+            throw new IllegalArgumentException(
+                    "The segments must be positive and the maximum weight at least the number of segments");
+        }
+        if (weigher == null || refreshExecutor == null) {
+            throw new IllegalArgumentException("The weigher and the refresh executor must be provided");
+        }
+        this.weigher = weigher;
+        this.refreshExecutor = refreshExecutor;
+        this.segments = new Segment[segments];
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment<K, V>(maxWeight / segments);
+        }
+    }
+
+    /**
+     * Register the metrics of the cache
+     *
+     * @param registry the registry to use
+     * @param name the name prefix of the metrics
+     */
+    public void registerMetrics(MetricRegistry registry, String name) {
+        registry.register(MetricRegistry.name(name, "hits"), this.hits);
+        registry.register(MetricRegistry.name(name, "misses"), this.misses);
+        registry.register(MetricRegistry.name(name, "evictions"), this.evictions);
+        registry.register(MetricRegistry.name(name, "load-failures"), this.loadFailures);
+        registry.register(MetricRegistry.name(name, "size"), (Gauge<Integer>) this::size);
+        registry.register(MetricRegistry.name(name, "weight"), (Gauge<Long>) this::getWeight);
+    }
+
+    /**
+     * Get the segment of a key
+     *
+     * @param key the key
+     * @return the segment
+     */
+    private Segment<K, V> segment(Object key) {
+        int hash = key.hashCode();
+        return this.segments[Math.floorMod(hash ^ (hash >>> 16), this.segments.length)];
+    }
+
+    /**
+     * Get a value
+     *
+     * @param key the key to use
+     * @return the cached value, null if not present or expired
+     */
+    public V get(K key) {
+        Entry<V> entry = read(key, System.nanoTime());
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Get a value, loading it on a miss. The concurrent misses of a key wait for a single load, and a value read after
+     * REFRESH_AHEAD_PERCENT of its expiry is reloaded in the background. A null value is not cached.
+     *
+     * @param key the key to use
+     * @param loader the loader of the value
+     * @param expirySeconds the expiry of the loaded value, 0 if the value doesn't expire
+     * @return the cached or loaded value
+     */
+    public V get(K key, Function<? super K, ? extends V> loader, int expirySeconds) {
+        long now = System.nanoTime();
+        Entry<V> entry = read(key, now);
+        if (entry != null) {
+            if (entry.isRefreshDue(now)) {
+                refresh(key, loader, expirySeconds);
+            }
+            return entry.value;
+        }
+
+        CompletableFuture<V> load = new CompletableFuture<V>();
+        CompletableFuture<V> running = this.loads.putIfAbsent(key, load);
+        if (running != null) {
+            return join(running);
+        }
+        // a load may have completed since the miss
+        entry = lookup(key, System.nanoTime());
+        if (entry != null) {
+            this.loads.remove(key, load);
+            load.complete(entry.value);
+            return entry.value;
+        }
+        return load(key, loader, expirySeconds, load);
+    }
+
+    /**
+     * Reload a value in the background, unless it's already loading
+     *
+     * @param key the key to use
+     * @param loader the loader of the value
+     * @param expirySeconds the expiry of the loaded value
+     */
+    private void refresh(K key, Function<? super K, ? extends V> loader, int expirySeconds) {
+        CompletableFuture<V> load = new CompletableFuture<V>();
+        if (this.loads.putIfAbsent(key, load) != null) {
+            return;
+        }
+        try {
+            this.refreshExecutor.execute(() -> {
+                try {
+                    load(key, loader, expirySeconds, load);
+                } catch (RuntimeException | Error e) {
+                    // the value is kept until it expires, the next read loads it again
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.loads.remove(key, load);
+            load.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Load a value and cache it, completing its load
+     *
+     * @param key the key to use
+     * @param loader the loader of the value
+     * @param expirySeconds the expiry of the loaded value
+     * @param load the load, registered for the key
+     * @return the loaded value
+     */
+    private V load(K key, Function<? super K, ? extends V> loader, int expirySeconds, CompletableFuture<V> load) {
+        try {
+            V value = loader.apply(key);
+            if (value != null) {
+                put(key, value, expirySeconds, true);
+            }
+            load.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            this.loadFailures.inc();
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.loads.remove(key, load);
+        }
+    }
+
+    /**
+     * Wait for the load of another thread
+     *
+     * @param <V> the type of the value
+     * @param load the load
+     * @return the loaded value
+     */
+    private static <V> V join(CompletableFuture<V> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Read an entry, counting the hit or miss
+     *
+     * @param key the key to use
+     * @param now the current time, from System.nanoTime
+     * @return the entry, null if not present or expired
+     */
+    private Entry<V> read(K key, long now) {
+        Entry<V> entry = lookup(key, now);
+        if (entry == null) {
+            this.misses.inc();
+        } else {
+            this.hits.inc();
+        }
+        return entry;
+    }
+
+    /**
+     * Look up an entry, removing it if expired
+     *
+     * @param key the key to use
+     * @param now the current time, from System.nanoTime
+     * @return the entry, null if not present or expired
+     */
+    private Entry<V> lookup(K key, long now) {
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.entries.get(key);
+            if (entry != null && entry.isExpired(now)) {
+                segment.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Put a value, evicting the least recently used values of its segment over the maximum weight. A value heavier
+     * than a segment is not cached.
+     *
+     * @param key the key to use
+     * @param value the value
+     * @param expirySeconds the expiry of the value, 0 if the value doesn't expire
+     */
+    public void put(K key, V value, int expirySeconds) {
+        put(key, value, expirySeconds, false);
+    }
+
+    /**
+     * Put a value
+     *
+     * @param key the key to use
+     * @param value the value
+     * @param expirySeconds the expiry of the value, 0 if the value doesn't expire
+     * @param refreshAhead whether the value is reloaded after REFRESH_AHEAD_PERCENT of its expiry
+     */
+    private void put(K key, V value, int expirySeconds, boolean refreshAhead) {
+        int weight = this.weigher.weigh(key, value);
+        long expiresAt = Long.MAX_VALUE;
+        long refreshAt = Long.MAX_VALUE;
+        if (expirySeconds > 0) {
+            long now = System.nanoTime();
+            long expiry = TimeUnit.SECONDS.toNanos(expirySeconds);
+            expiresAt = now + expiry;
+            if (refreshAhead) {
+                refreshAt = now + expiry / 100 * REFRESH_AHEAD_PERCENT;
+            }
+        }
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            segment.remove(key);
+            if (weight > segment.maxWeight) {
+                return;
+            }
+            segment.entries.put(key, new Entry<V>(value, weight, expiresAt, refreshAt));
+            segment.weight += weight;
+            for (Iterator<Entry<V>> it = segment.entries.values().iterator(); segment.weight > segment.maxWeight;) {
+                segment.weight -= it.next().weight;
+                it.remove();
+                this.evictions.inc();
+            }
+        }
+    }
+
+    /**
+     * Delete a value
+     *
+     * @param key the key to use
+     * @return the deleted value, null if not present or expired
+     */
+    public V delete(K key) {
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.remove(key);
+            return entry == null || entry.isExpired(System.nanoTime()) ? null : entry.value;
+        }
+    }
+
+    /**
+     * Remove the expired values
+     *
+     * @return the number of removed values
+     */
+    public int sweep() {
+        int removed = 0;
+        for (Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                long now = System.nanoTime();
+                for (Iterator<Entry<V>> it = segment.entries.values().iterator(); it.hasNext();) {
+                    Entry<V> entry = it.next();
+                    if (entry.isExpired(now)) {
+                        segment.weight -= entry.weight;
+                        it.remove();
+                        removed++;
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Get the number of cached values, including the expired values not removed yet
+     *
+     * @return the number of values
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the weight of the cached values, including the expired values not removed yet
+     *
+     * @return the weight
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment<K, V> segment : this.segments) {
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Get the number of reads of a cached value
+     *
+     * @return the hits
+     */
+    public long getHits() {
+        return this.hits.getCount();
+    }
+
+    /**
+     * Get the number of reads of a missing or expired value
+     *
+     * @return the misses
+     */
+    public long getMisses() {
+        return this.misses.getCount();
+    }
+
+    /**
+     * Get the number of values evicted to keep the maximum weight
+     *
+     * @return the evictions
+     */
+    public long getEvictions() {
+        return this.evictions.getCount();
+    }
+
+    /**
+     * Get the number of failed loads
+     *
+     * @return the load failures
+     */
+    public long getLoadFailures() {
+        return this.loadFailures.getCount();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.manager;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.appirio.service.billingaccount.api.BudgetOperation;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * ConsumeOperationWorker applies the consume amount requests queued by BillingAccountManager.enqueueConsumeAmount.
+ *
+ * A poller reads the queued operations in queue order and hands each one to a worker thread chosen by its billing
+ * account, so different billing accounts are applied in parallel. The queue only returns the oldest unfinished
+ * operation of each billing account, and the operations are claimed in the database with a lease of this worker, so
+ * the operations of a billing account are applied one at a time in order even when several service instances share
+ * the queue.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class ConsumeOperationWorker implements Managed {
+
+    /**
+     * The default number of worker threads
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * The default interval between the polls of the queue, in milliseconds
+     */
+    public static final int DEFAULT_POLL_INTERVAL_MILLIS = 200;
+
+    /**
+     * The default time after which a running operation is taken over by another worker, in seconds
+     */
+    public static final int DEFAULT_LEASE_SECONDS = 300;
+
+    /**
+     * The default maximum number of attempts of an operation failing with an unexpected error
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    /**
+     * The maximum number of operations read per poll
+     */
+    private static final int POLL_SIZE = 100;
+
+    /**
+     * Logger for the class
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ConsumeOperationWorker.class);
+
+    /**
+     * The billing account manager
+     */
+    private final BillingAccountManager billingAccountManager;
+
+    /**
+     * The number of worker threads
+     */
+    private final int threads;
+
+    /**
+     * The interval between the polls of the queue, in milliseconds
+     */
+    private final int pollIntervalMillis;
+
+    /**
+     * The time after which a running operation is taken over by another worker, in seconds
+     */
+    private final int leaseSeconds;
+
+    /**
+     * The maximum number of attempts of an operation
+     */
+    private final int maxAttempts;
+
+    /**
+     * The id of this worker in the leases of the operations
+     */
+    private final String leaseOwner = UUID.randomUUID().toString();
+
+    /**
+     * The ids of the operations handed to the worker threads and not applied yet
+     */
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The executor polling the queue
+     */
+    private ScheduledExecutorService poller;
+
+    /**
+     * The single thread executors applying the operations, by billing account
+     */
+    private ExecutorService[] workers;
+
+    /**
+     * Create the instance
+     *
+     * @param billingAccountManager the billing account manager
+     * @param threads the number of worker threads, 0 to disable the workers
+     * @param pollIntervalMillis the interval between the polls of the queue, in milliseconds
+     * @param leaseSeconds the time after which a running operation is taken over by another worker, in seconds
+     * @param maxAttempts the maximum number of attempts of an operation failing with an unexpected error
+     */
+    public ConsumeOperationWorker(BillingAccountManager billingAccountManager, int threads, int pollIntervalMillis,
+                                  int leaseSeconds, int maxAttempts) {
+        if (threads < 0 || pollIntervalMillis <= 0 || leaseSeconds <= 0 || maxAttempts <= 0) {
+            throw new IllegalArgumentException(
+                    "The threads must not be negative, the interval, the lease and the attempts must be positive");
+        }
+        this.billingAccountManager = billingAccountManager;
+        this.threads = threads;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.leaseSeconds = leaseSeconds;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Register the number of operations handed to the worker threads and not applied yet
+     *
+     * @param registry the registry to use
+     */
+    public void registerMetrics(MetricRegistry registry) {
+        registry.register(MetricRegistry.name(ConsumeOperationWorker.class, "in-flight"),
+                (Gauge<Integer>) this.inFlight::size);
+    }
+
+    /**
+     * Start the workers
+     */
+    @Override
+    public void start() {
+        if (this.threads == 0) {
+            logger.info("The workers of the queued consume amount requests are disabled");
+            return;
+        }
+        this.workers = new ExecutorService[this.threads];
+        for (int i = 0; i < this.threads; i++) {
+            final String name = "consume-operation-worker-" + i;
+            this.workers[i] = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, name));
+        }
+        this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "consume-operation-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.poller.scheduleWithFixedDelay(this::poll, this.pollIntervalMillis, this.pollIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the workers, the operations handed to the worker threads are applied first. The operations not handed yet
+     * stay in the queue for the next start.
+     *
+     * @throws InterruptedException if interrupted while waiting for the worker threads
+     */
+    @Override
+    public void stop() throws InterruptedException {
+        if (this.poller == null) {
+            return;
+        }
+        this.poller.shutdown();
+        this.poller.awaitTermination(this.leaseSeconds, TimeUnit.SECONDS);
+        for (ExecutorService worker : this.workers) {
+            worker.shutdown();
+        }
+        for (ExecutorService worker : this.workers) {
+            worker.awaitTermination(this.leaseSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Read the queued operations and hand the ones not in flight to the worker thread of their billing account
+     *
+     * @return the number of operations handed to the worker threads
+     */
+    public int poll() {
+        int handed = 0;
+        try {
+            List<BudgetOperation> operations = this.billingAccountManager.getPendingOperations(POLL_SIZE);
+            for (BudgetOperation operation : operations) {
+                if (this.inFlight.add(operation.getOperationId())) {
+                    workerOf(operation.getBillingAccountId()).execute(() -> apply(operation));
+                    handed++;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Failed to poll the queued consume amount requests", e);
+        }
+        return handed;
+    }
+
+    /**
+     * Apply an operation in a worker thread
+     *
+     * @param operation the operation
+     */
+    private void apply(BudgetOperation operation) {
+        try {
+            this.billingAccountManager.processOperation(operation, this.leaseOwner, this.leaseSeconds,
+                    this.maxAttempts);
+        } catch (Exception e) {
+            logger.error("Failed to apply operation:" + operation.getOperationId(), e);
+        } finally {
+            this.inFlight.remove(operation.getOperationId());
+        }
+    }
+
+    /**
+     * Get the worker thread of a billing account
+     *
+     * @param billingAccountId the billing account id
+     * @return the single thread executor
+     */
+    private ExecutorService workerOf(long billingAccountId) {
+        return this.workers[(int) Math.floorMod(billingAccountId, (long) this.workers.length)];
+    }
+}
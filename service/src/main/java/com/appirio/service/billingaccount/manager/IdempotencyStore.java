@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.manager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.appirio.service.billingaccount.api.IdempotencyRecord;
+
+/**
+ * IdempotencyStore keeps the completed budget requests by their Idempotency-Key, so a retried request returns the
+ * stored result instead of being run again.
+ *
+ * The records are kept in process, bounded to a maximum size (the least recently used are dropped first) and expire
+ * after a fixed time. When the store is persistent, BillingAccountManager also saves the records in the
+ * budget_idempotency_key table with the budget writes, so the retries sent to another node are detected too.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class IdempotencyStore {
+
+    /**
+     * The default maximum number of records kept in process
+     */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /**
+     * The default expiry of the records, one day
+     */
+    public static final int DEFAULT_EXPIRY_SECONDS = 86400;
+
+    /**
+     * The records by key, in access order
+     */
+    private final Map<String, Entry> records;
+
+    /**
+     * The expiry of the records, in seconds
+     */
+    private final int expirySeconds;
+
+    /**
+     * Whether the records are also saved in the database
+     */
+    private final boolean persistent;
+
+    /**
+     * A stored record with its expiry time
+     */
+    private static class Entry {
+        /**
+         * The record
+         */
+        private final IdempotencyRecord record;
+
+        /**
+         * The expiry time, in milliseconds
+         */
+        private final long expiresAt;
+
+        /**
+         * Create the entry
+         *
+         * @param record the record
+         * @param expiresAt the expiry time, in milliseconds
+         */
+        Entry(IdempotencyRecord record, long expiresAt) {
+            this.record = record;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Create the instance
+     *
+     * @param maxSize the maximum number of records kept in process
+     * @param expirySeconds the expiry of the records, in seconds
+     * @param persistent whether the records are also saved in the database
+     */
+    public IdempotencyStore(final int maxSize, int expirySeconds, boolean persistent) {
+        if (maxSize <= 0 || expirySeconds <= 0) {
+            throw new IllegalArgumentException("The maximum size and the expiry must be positive");
+        }
+        this.expirySeconds = expirySeconds;
+        this.persistent = persistent;
+        this.records = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the record of a key
+     *
+     * @param key the key to use
+     * @return the record, null if not present or expired
+     */
+    public synchronized IdempotencyRecord get(String key) {
+        Entry entry = this.records.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            this.records.remove(key);
+            return null;
+        }
+        return entry.record;
+    }
+
+    /**
+     * Put the record of a key
+     *
+     * @param key the key to use
+     * @param record the record
+     */
+    public synchronized void put(String key, IdempotencyRecord record) {
+        this.records.put(key, new Entry(record, System.currentTimeMillis() + this.expirySeconds * 1000L));
+    }
+
+    /**
+     * Get the number of records kept in process, including the expired ones not removed yet
+     *
+     * @return the size
+     */
+    public synchronized int size() {
+        return this.records.size();
+    }
+
+    /**
+     * Get the expiry of the records
+     *
+     * @return the expiry, in seconds
+     */
+    public int getExpirySeconds() {
+        return this.expirySeconds;
+    }
+
+    /**
+     * Whether the records are also saved in the database
+     *
+     * @return true if the store is persistent
+     */
+    public boolean isPersistent() {
+        return this.persistent;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.manager;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * LockReleaseScheduler periodically releases the expired locks of the challenges through
+ * BillingAccountManager.releaseExpiredLocks, in bounded batches so one run never holds the budget locks for long.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class LockReleaseScheduler implements Managed {
+
+    /**
+     * The default interval between the runs, one minute
+     */
+    public static final int DEFAULT_INTERVAL_SECONDS = 60;
+
+    /**
+     * The default number of expired locks released per batch
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * The maximum number of batches of a run, the remaining expired locks are released by the next runs
+     */
+    private static final int MAX_BATCHES_PER_RUN = 10;
+
+    /**
+     * Logger for the class
+     */
+    private static final Logger logger = LoggerFactory.getLogger(LockReleaseScheduler.class);
+
+    /**
+     * The billing account manager
+     */
+    private final BillingAccountManager billingAccountManager;
+
+    /**
+     * The interval between the runs, in seconds
+     */
+    private final int intervalSeconds;
+
+    /**
+     * The number of expired locks released per batch
+     */
+    private final int batchSize;
+
+    /**
+     * The executor running the releases
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Create the instance
+     *
+     * @param billingAccountManager the billing account manager
+     * @param intervalSeconds the interval between the runs, in seconds, 0 to disable the releases
+     * @param batchSize the number of expired locks released per batch
+     */
+    public LockReleaseScheduler(BillingAccountManager billingAccountManager, int intervalSeconds, int batchSize) {
+        if (intervalSeconds < 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("The interval must not be negative and the batch size must be positive");
+        }
+        this.billingAccountManager = billingAccountManager;
+        this.intervalSeconds = intervalSeconds;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Start the releases
+     */
+    @Override
+    public void start() {
+        if (this.intervalSeconds == 0) {
+            logger.info("The release of the expired locks is disabled");
+            return;
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lock-release-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::run, this.intervalSeconds, this.intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the releases, the running batch is completed
+     *
+     * @throws InterruptedException if interrupted while waiting for the running batch
+     */
+    @Override
+    public void stop() throws InterruptedException {
+        if (this.executor != null) {
+            this.executor.shutdown();
+            this.executor.awaitTermination(this.intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Release the expired locks, batch after batch while the batches are full, up to MAX_BATCHES_PER_RUN batches
+     *
+     * @return the number of batches run
+     */
+    public int run() {
+        int batches = 0;
+        try {
+            while (batches < MAX_BATCHES_PER_RUN) {
+                batches++;
+                if (this.billingAccountManager.releaseExpiredLocks(this.batchSize) < this.batchSize) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Failed to release the expired locks", e);
+        }
+        return batches;
+    }
+}
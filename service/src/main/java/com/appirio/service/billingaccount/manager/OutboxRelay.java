@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.manager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.appirio.service.billingaccount.api.HarmonyPublisher;
+import com.appirio.service.billingaccount.api.IdDTO;
+import com.appirio.service.billingaccount.api.OutboxEvent;
+import com.appirio.service.billingaccount.dao.BillingAccountDAO;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * OutboxRelay publishes the events written to the budget_event_outbox table by the budget writes.
+ *
+ * The unsent events are read in the order they were written and claimed by the relay with a lease, as the queued
+ * operations are claimed by the ConsumeOperationWorker, so the relays of several service instances send disjoint
+ * batches. The claimed events are sent in batches to the Harmony publisher, then marked as sent if the relay still
+ * holds their lease. A failed batch is counted and released to be sent again by the next run, so an event is
+ * delivered at least once: it may be delivered twice if the service stops between the publication and the update of
+ * the table, or if the lease expired during the publication. While the circuit of the publisher is open, the runs are
+ * skipped and the events wait in the outbox, which is the only store of the unsent events.
+ *
+ * The events of a failed batch are sent again one by one, so only the events which can't be published count a failed
+ * attempt. An event failing its last attempt is moved to the dead letters of the outbox: it's not sent anymore, and
+ * the events written after it keep moving.
+ *
+ * The relay is the asynchronous path of the consumed amount events: the requests only write them to the outbox, and
+ * a pool of relay threads publishes them. The threads claim disjoint batches, so with more than one thread the events
+ * are not published in event_id order anymore. The outbox is the bounded buffer of the publisher: the threads only
+ * claim a batch once the previous one was accepted, and stop claiming while the circuit of the publisher is open, the
+ * events then wait in the table without being dropped. The backlog gauge counts the events waiting, and the events
+ * left at shutdown are published before the relay stops.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class OutboxRelay implements Managed {
+
+    /**
+     * The default number of relay threads
+     */
+    public static final int DEFAULT_THREADS = 1;
+
+    /**
+     * The default interval between the runs, in milliseconds
+     */
+    public static final int DEFAULT_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The default number of events published per batch
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * The default time after which the events claimed by a relay are claimed by another relay, in seconds
+     */
+    public static final int DEFAULT_LEASE_SECONDS = 60;
+
+    /**
+     * The default number of attempts of an event before it's moved to the dead letters
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+    /**
+     * The default retention of the sent events, three days
+     */
+    public static final int DEFAULT_RETENTION_HOURS = 72;
+
+    /**
+     * The maximum number of batches of a run, the remaining events are published by the next runs
+     */
+    private static final int MAX_BATCHES_PER_RUN = 10;
+
+    /**
+     * The maximum time spent publishing the events left at shutdown, in milliseconds
+     */
+    private static final long DRAIN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The interval between the purges of the sent events, one hour
+     */
+    private static final long PURGE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Logger for the class
+     */
+    private static final Logger logger = LoggerFactory.getLogger(OutboxRelay.class);
+
+    /**
+     * The billing account DAO
+     */
+    private final BillingAccountDAO billingAccountDAO;
+
+    /**
+     * The Harmony publisher
+     */
+    private final HarmonyPublisher harmonyPublisher;
+
+    /**
+     * The number of relay threads
+     */
+    private final int threads;
+
+    /**
+     * The interval between the runs, in milliseconds
+     */
+    private final int intervalMillis;
+
+    /**
+     * The number of events published per batch
+     */
+    private final int batchSize;
+
+    /**
+     * The time after which the events claimed by the relay are claimed by another relay, in seconds
+     */
+    private final int leaseSeconds;
+
+    /**
+     * The number of attempts of an event before it's moved to the dead letters
+     */
+    private final int maxAttempts;
+
+    /**
+     * The retention of the sent events, in hours
+     */
+    private final int retentionHours;
+
+    /**
+     * The id of the relay in the leases of the claimed events
+     */
+    private final String leaseOwner = UUID.randomUUID().toString();
+
+    /**
+     * The number of events sent
+     */
+    private final Counter sent = new Counter();
+
+    /**
+     * The number of failed publications
+     */
+    private final Counter failures = new Counter();
+
+    /**
+     * The number of events moved to the dead letters after their last attempt
+     */
+    private final Counter deadLettered = new Counter();
+
+    /**
+     * The number of runs skipped while the circuit of the publisher is open
+     */
+    private final Counter skipped = new Counter();
+
+    /**
+     * The age of the oldest unsent event at the last run, in milliseconds
+     */
+    private volatile long lag;
+
+    /**
+     * The number of unsent events in the outbox, out of the dead letters, at the last run
+     */
+    private volatile long backlog;
+
+    /**
+     * The time of the last count of the unsent events, in milliseconds
+     */
+    private long lastBacklogCount;
+
+    /**
+     * The time of the last purge of the sent events, in milliseconds
+     */
+    private long lastPurge;
+
+    /**
+     * The executor running the relay
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Create the instance
+     *
+     * @param billingAccountDAO the billing account DAO
+     * @param harmonyPublisher the Harmony publisher
+     * @param threads the number of relay threads
+     * @param intervalMillis the interval between the runs of each thread, in milliseconds, 0 to disable the relay
+     * @param batchSize the number of events published per batch
+     * @param leaseSeconds the time after which the events claimed by the relay are claimed by another relay, in
+     * seconds
+     * @param maxAttempts the number of attempts of an event before it's moved to the dead letters
+     * @param retentionHours the retention of the sent events, in hours
+     */
+    public OutboxRelay(BillingAccountDAO billingAccountDAO, HarmonyPublisher harmonyPublisher, int threads,
+                       int intervalMillis, int batchSize, int leaseSeconds, int maxAttempts, int retentionHours) {
+        if (threads <= 0 || intervalMillis < 0 || batchSize <= 0 || leaseSeconds <= 0 || maxAttempts <= 0
+                || retentionHours <= 0) {
+            throw new IllegalArgumentException("The interval must not be negative, the threads, the batch size, "
+                    + "the lease, the attempts and the retention must be positive");
+        }
+        this.billingAccountDAO = billingAccountDAO;
+        this.harmonyPublisher = harmonyPublisher;
+        this.threads = threads;
+        this.intervalMillis = intervalMillis;
+        this.batchSize = batchSize;
+        this.leaseSeconds = leaseSeconds;
+        this.maxAttempts = maxAttempts;
+        this.retentionHours = retentionHours;
+    }
+
+    /**
+     * Register the number of sent events, of failed publications, of dead letters, of skipped runs, the number of
+     * unsent events and the age of the oldest one
+     *
+     * @param registry the registry to use
+     */
+    public void registerMetrics(MetricRegistry registry) {
+        registry.register(MetricRegistry.name(OutboxRelay.class, "sent"), this.sent);
+        registry.register(MetricRegistry.name(OutboxRelay.class, "failures"), this.failures);
+        registry.register(MetricRegistry.name(OutboxRelay.class, "dead-lettered"), this.deadLettered);
+        registry.register(MetricRegistry.name(OutboxRelay.class, "skipped"), this.skipped);
+        registry.register(MetricRegistry.name(OutboxRelay.class, "lag-ms"), (Gauge<Long>) () -> this.lag);
+        registry.register(MetricRegistry.name(OutboxRelay.class, "backlog"), (Gauge<Long>) () -> this.backlog);
+    }
+
+    /**
+     * Start the relay
+     */
+    @Override
+    public void start() {
+        if (this.intervalMillis == 0) {
+            logger.info("The relay of the outbox events is disabled");
+            return;
+        }
+        AtomicInteger index = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "outbox-relay-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the runs of the threads are spread over the interval
+        for (int i = 0; i < this.threads; i++) {
+            this.executor.scheduleWithFixedDelay(this::run, this.intervalMillis + (long) i * this.intervalMillis
+                    / this.threads, this.intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the relay, the running batches are completed, then the events left in the outbox are published for up to
+     * DRAIN_TIMEOUT_MILLIS. The events still unsent are published after the next start.
+     *
+     * @throws InterruptedException if interrupted while waiting for the running batches
+     */
+    @Override
+    public void stop() throws InterruptedException {
+        if (this.executor == null) {
+            return;
+        }
+        this.executor.shutdown();
+        this.executor.awaitTermination(this.intervalMillis + DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        int drained = 0;
+        for (int count = run(); count > 0 && System.currentTimeMillis() < deadline; count = run()) {
+            drained += count;
+        }
+        if (drained > 0) {
+            logger.info("Published " + drained + " outbox events at shutdown");
+        }
+    }
+
+    /**
+     * Publish the unsent events, batch after batch while the batches are full, up to MAX_BATCHES_PER_RUN batches. Only
+     * the events of a batch claimed by this relay are sent, the others are sent by the relay which claimed them. The
+     * sent events older than the retention are purged once the outbox is empty, at most once an hour, and the unsent
+     * events are counted at most once per interval. The run is skipped while the circuit of the publisher is open.
+     *
+     * @return the number of events sent
+     */
+    public int run() {
+        int count = 0;
+        try {
+            for (int batches = 0; batches < MAX_BATCHES_PER_RUN; batches++) {
+                if (!this.harmonyPublisher.isCallPermitted()) {
+                    this.skipped.inc();
+                    break;
+                }
+                List<OutboxEvent> events = this.billingAccountDAO.getUnsentOutboxEvents(this.batchSize);
+                this.lag = events.isEmpty() ? 0 : System.currentTimeMillis() - events.get(0).getCreatedAt().getTime();
+                if (events.isEmpty()) {
+                    purge();
+                    break;
+                }
+                int[] claimed = this.billingAccountDAO.claimOutboxEvents(eventIds(events), this.leaseOwner,
+                        this.leaseSeconds);
+                List<OutboxEvent> batch = new ArrayList<>();
+                for (int i = 0; i < events.size(); i++) {
+                    if (claimed[i] > 0) {
+                        batch.add(events.get(i));
+                    }
+                }
+                if (batch.isEmpty()) {
+                    // the whole batch was claimed by another relay meanwhile
+                    continue;
+                }
+                try {
+                    if (!send(batch)) {
+                        // the circuit opened meanwhile, the events are sent again once their lease expires and the
+                        // circuit lets the calls through
+                        this.skipped.inc();
+                        break;
+                    }
+                } catch (Exception e) {
+                    this.failures.inc();
+                    if (batch.size() == 1) {
+                        retry(batch, e);
+                    } else {
+                        logger.warn("Failed to publish " + batch.size() + " outbox events from event:"
+                                + batch.get(0).getEventId() + ", they're published one by one", e);
+                        count += sendOneByOne(batch);
+                    }
+                    break;
+                }
+                markSent(batch);
+                count += batch.size();
+                if (events.size() < this.batchSize) {
+                    break;
+                }
+            }
+            countBacklog();
+        } catch (Exception e) {
+            logger.error("Failed to relay the outbox events", e);
+        }
+        return count;
+    }
+
+    /**
+     * Count the unsent events, out of the dead letters, at most once per interval whatever the number of threads
+     */
+    private void countBacklog() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now - this.lastBacklogCount < this.intervalMillis) {
+                return;
+            }
+            this.lastBacklogCount = now;
+        }
+        IdDTO count = this.billingAccountDAO.countUnsentOutboxEvents();
+        this.backlog = count == null || count.getId() == null ? 0 : count.getId();
+    }
+
+    /**
+     * Send events to the Harmony publisher
+     *
+     * @param events the events
+     * @return true if the events were sent, false if the circuit of the publisher is open
+     */
+    private boolean send(List<OutboxEvent> events) {
+        List<byte[]> payloads = new ArrayList<>();
+        for (OutboxEvent event : events) {
+            payloads.add(event.getPayload().getBytes(StandardCharsets.UTF_8));
+        }
+        return this.harmonyPublisher.sendBatch(payloads);
+    }
+
+    /**
+     * Send the events of a failed batch one by one, so only the events which can't be published count a failed
+     * attempt. The events left once the circuit of the publisher opens are sent again once their lease expires.
+     *
+     * @param events the events
+     * @return the number of events sent
+     */
+    private int sendOneByOne(List<OutboxEvent> events) {
+        int count = 0;
+        for (OutboxEvent event : events) {
+            List<OutboxEvent> single = Collections.singletonList(event);
+            try {
+                if (!send(single)) {
+                    this.skipped.inc();
+                    break;
+                }
+            } catch (Exception e) {
+                this.failures.inc();
+                retry(single, e);
+                continue;
+            }
+            markSent(single);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Mark events claimed by the relay as sent
+     *
+     * @param events the events
+     */
+    private void markSent(List<OutboxEvent> events) {
+        this.billingAccountDAO.markOutboxEventsSent(eventIds(events), this.leaseOwner);
+        this.sent.inc(events.size());
+    }
+
+    /**
+     * Count a failed attempt of events claimed by the relay, the events which failed their last attempt are moved to
+     * the dead letters and the others are sent again by the next run
+     *
+     * @param events the events
+     * @param e the failure
+     */
+    private void retry(List<OutboxEvent> events, Exception e) {
+        List<OutboxEvent> retried = new ArrayList<>();
+        List<OutboxEvent> failed = new ArrayList<>();
+        for (OutboxEvent event : events) {
+            if (event.getAttempts() + 1 >= this.maxAttempts) {
+                failed.add(event);
+            } else {
+                retried.add(event);
+            }
+        }
+        if (!retried.isEmpty()) {
+            this.billingAccountDAO.retryOutboxEvents(eventIds(retried), this.leaseOwner);
+            logger.error("Failed to publish " + retried.size() + " outbox events from event:"
+                    + retried.get(0).getEventId() + ", they're published again by the next run", e);
+        }
+        if (!failed.isEmpty()) {
+            this.billingAccountDAO.failOutboxEvents(eventIds(failed), this.leaseOwner);
+            this.deadLettered.inc(failed.size());
+            logger.error("Failed to publish the outbox events " + eventIds(failed) + " after " + this.maxAttempts
+                    + " attempts, they're moved to the dead letters", e);
+        }
+    }
+
+    /**
+     * Get the ids of events
+     *
+     * @param events the events
+     * @return the event ids
+     */
+    private static List<Long> eventIds(List<OutboxEvent> events) {
+        List<Long> eventIds = new ArrayList<>();
+        for (OutboxEvent event : events) {
+            eventIds.add(event.getEventId());
+        }
+        return eventIds;
+    }
+
+    /**
+     * Remove the sent events older than the retention, at most once per PURGE_INTERVAL_MILLIS
+     */
+    private synchronized void purge() {
+        long now = System.currentTimeMillis();
+        if (now - this.lastPurge < PURGE_INTERVAL_MILLIS) {
+            return;
+        }
+        this.lastPurge = now;
+        int purged = this.billingAccountDAO.purgeOutboxEvents(this.retentionHours);
+        if (purged > 0) {
+            logger.info("Purged " + purged + " sent outbox events");
+        }
+    }
+}
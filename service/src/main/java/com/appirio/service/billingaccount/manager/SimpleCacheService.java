@@ -1,131 +1,196 @@
 package com.appirio.service.billingaccount.manager;
 
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.codahale.metrics.MetricRegistry;
 
 /**
  * SimpleCacheService is used to perform the time-expired cache.
  * It can be used by BillingAccountManager to cache the lookup data or the result of any complex operations.
- * 
+ *
  * It's added in Topcoder - Create Challenge Fee Management APIs For Billing Accounts 1.0v
- * 
+ *
+ * <p>
+ * It's a facade of a Cache bounded to a maximum number of values. The expiry time is kept with the value: an expired
+ * value is removed when it's read, and the expired values never read again are removed by a periodic sweep, run by a
+ * daemon thread shared by all the caches. An expiry costs no timer task nor extra key.
+ * </p>
+ *
  * @author TCCoder
  * @version 1.0
  *
  */
 public class SimpleCacheService {
 
+    /**
+     * The default interval between the sweeps of the expired values, in seconds
+     */
+    public static final int DEFAULT_SWEEP_INTERVAL_SECONDS = 60;
+
+    /**
+     * The default maximum number of values
+     */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /**
+     * The executor sweeping the caches
+     */
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "simple-cache-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The executor reloading the values in the background, its threads are created on demand
+     */
+    private static final ExecutorService REFRESHER = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "simple-cache-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
      * The cache
      */
-    private Map<String, Object> cache = new ConcurrentHashMap<String, Object>();
+    private final Cache<String, Object> cache;
 
+    /**
+     * The sweep of a cache, cancelled once the cache is garbage collected
+     */
+    private static final class Sweep implements Runnable {
+        /**
+         * The cache to sweep
+         */
+        private final WeakReference<SimpleCacheService> cache;
+
+        /**
+         * The scheduled sweep
+         */
+        private volatile ScheduledFuture<?> future;
+
+        /**
+         * Create the sweep
+         *
+         * @param cache the cache to sweep
+         */
+        Sweep(SimpleCacheService cache) {
+            this.cache = new WeakReference<>(cache);
+        }
+
+        /**
+         * Sweep the cache, or cancel the sweep if the cache is collected
+         */
+        @Override
+        public void run() {
+            SimpleCacheService service = this.cache.get();
+            if (service == null) {
+                this.future.cancel(false);
+                return;
+            }
+            service.sweep();
+        }
+    }
 
     /**
-     * The timer
+     * Create the cache, holding up to DEFAULT_MAX_SIZE values swept every DEFAULT_SWEEP_INTERVAL_SECONDS
      */
-    private Timer timer = new Timer();
+    public SimpleCacheService() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_SWEEP_INTERVAL_SECONDS);
+    }
+
+    /**
+     * Create the cache
+     *
+     * @param maxSize the maximum number of values, the least recently used are evicted first
+     * @param sweepIntervalSeconds the interval between the sweeps of the expired values, in seconds
+     */
+    public SimpleCacheService(int maxSize, int sweepIntervalSeconds) {
+        if (maxSize <= 0 || sweepIntervalSeconds <= 0) {
+            throw new IllegalArgumentException("The maximum size and the sweep interval must be positive");
+        }
+        this.cache = new Cache<String, Object>(maxSize < Cache.DEFAULT_SEGMENTS ? 1 : Cache.DEFAULT_SEGMENTS, maxSize,
+                (key, value) -> 1, REFRESHER);
+        Sweep sweep = new Sweep(this);
+        sweep.future = SWEEPER.scheduleWithFixedDelay(sweep, sweepIntervalSeconds, sweepIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Register the hit, miss and eviction statistics of the cache
+     *
+     * @param registry the registry to use
+     * @param name the name prefix of the metrics
+     */
+    public void registerMetrics(MetricRegistry registry, String name) {
+        cache.registerMetrics(registry, name);
+    }
 
     /**
      * Put the key and value
      *
      * @param key the key to use
      * @param value the value
-     * @param expirySeconds the expirySeconds to use
+     * @param expirySeconds the expirySeconds to use, 0 if the value doesn't expire
      */
     public void put(String key, Object value, int expirySeconds) {
-        cache.put(key, value);
-        updateExpireTask(key, expirySeconds);
+        cache.put(key, value, expirySeconds);
     }
 
     /**
-     * Update expire task
+     * Get the value
      *
      * @param key the key to use
-     * @param expirySeconds the expirySeconds to use
+     * @return the cached result, null if not present or expired
      */
-    protected void updateExpireTask(String key, int expirySeconds) {
-        String taskKey = ExpireTask.createKey(key);
-        ExpireTask oldTask = (ExpireTask) cache.remove(taskKey);
-        if (oldTask != null) {
-            oldTask.cancel();
-        }
-        if (expirySeconds > 0) {
-            ExpireTask task = new ExpireTask(key, cache);
-            timer.schedule(task, expirySeconds * 1000L);
-            cache.put(taskKey, task);
-        }
+    public Object get(String key) {
+        return cache.get(key);
     }
 
     /**
-     * Get the value
+     * Get the value, loading it on a miss. The concurrent misses of the key wait for a single load, and the value is
+     * reloaded in the background when it's read close to its expiry.
      *
      * @param key the key to use
-     * @return the cached result, null if not present
+     * @param loader the loader of the value
+     * @param expirySeconds the expirySeconds to use, 0 if the value doesn't expire
+     * @return the cached or loaded result, null if loaded as null
      */
-    public Object get(String key) {
-        return cache.get(key);
+    public Object get(String key, Function<String, ?> loader, int expirySeconds) {
+        return cache.get(key, loader, expirySeconds);
     }
 
     /**
      * Delete by key
      *
      * @param key the key to use
-     * @return the cached result, null if not present
+     * @return the cached result, null if not present or expired
      */
     public Object delete(String key) {
-        return cache.remove(key);
+        return cache.delete(key);
     }
 
     /**
-     * ExpireTask is used to check the cache.
-     * 
-     * @author TCCoder
-     * @version 1.0
+     * Get the number of cached values, including the expired values not removed yet
      *
+     * @return the number of values
      */
-    protected static class ExpireTask extends TimerTask {
-        /**
-         * The key
-         */
-        String key;
-
-
-        /**
-         * The cache
-         */
-        Map<String, Object> cache;
-
-        /**
-         * Create the instance
-         * 
-         * @param key the key
-         * @param cache the cache
-         */
-        ExpireTask(String key, Map<String, Object> cache) {
-            this.key = key;
-            this.cache = cache;
-        }
-
-        /**
-         * The run method
-         */
-        @Override
-        public void run() {
-            this.cache.remove(key);
-            this.cache.remove(createKey(key));
-        }
+    public int size() {
+        return cache.size();
+    }
 
-        /**
-         * the create key method
-         * 
-         * @param key the key
-         * @return the key
-         */
-        protected static String createKey(String key) {
-            return "ExpireTask-" + key;
-        }
+    /**
+     * Remove the expired values
+     *
+     * @return the number of removed values
+     */
+    public int sweep() {
+        return cache.sweep();
     }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.billingaccount.manager;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.appirio.supply.SupplyException;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * StripedLock serializes the actions sharing the same key, while actions of keys mapped to other stripes
+ * run in parallel. The locks are fair, so the waiting actions of a stripe are run in arrival order.
+ *
+ * It's used by BillingAccountManager to serialize the budget mutations of a billing account.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class StripedLock {
+
+    /**
+     * The locks, one per stripe
+     */
+    private final ReentrantLock[] locks;
+
+    /**
+     * The time spent waiting for the lock, one timer per stripe
+     */
+    private final Timer[] waitTimers;
+
+    /**
+     * The mask to map a key hash to a stripe
+     */
+    private final int mask;
+
+    /**
+     * An action run while holding the lock of a stripe.
+     *
+     * @param <T> the result type
+     */
+    public interface Action<T> {
+        /**
+         * Run the action
+         *
+         * @return the result
+         * @throws SupplyException if any error occurs
+         */
+        T run() throws SupplyException;
+    }
+
+    /**
+     * Create the instance
+     *
+     * @param stripes the number of stripes, rounded up to a power of two
+     */
+    public StripedLock(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("The number of stripes must be positive");
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.locks = new ReentrantLock[size];
+        this.waitTimers = new Timer[size];
+        for (int i = 0; i < size; i++) {
+            this.locks[i] = new ReentrantLock(true);
+            this.waitTimers[i] = new Timer();
+        }
+    }
+
+    /**
+     * Run the action while holding the lock of the stripe of the key
+     *
+     * @param key the key to use
+     * @param action the action to run
+     * @param <T> the result type
+     * @return the result of the action
+     * @throws SupplyException if the action fails
+     */
+    public <T> T execute(long key, Action<T> action) throws SupplyException {
+        int stripe = stripeOf(key);
+        ReentrantLock lock = this.locks[stripe];
+
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            this.waitTimers[stripe].update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return action.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the stripe of the key
+     *
+     * @param key the key to use
+     * @return the stripe index
+     */
+    public int stripeOf(long key) {
+        int h = Long.hashCode(key);
+        h ^= (h >>> 16);
+        return h & this.mask;
+    }
+
+    /**
+     * Get the number of stripes
+     *
+     * @return the number of stripes
+     */
+    public int getStripes() {
+        return this.locks.length;
+    }
+
+    /**
+     * Get the number of actions waiting for the lock of a stripe
+     *
+     * @param stripe the stripe index
+     * @return the queue depth
+     */
+    public int getQueueDepth(int stripe) {
+        return this.locks[stripe].getQueueLength();
+    }
+
+    /**
+     * Register the wait time and the queue depth of each stripe
+     *
+     * @param registry the registry to use
+     * @param name the name prefix of the metrics
+     */
+    public void registerMetrics(MetricRegistry registry, String name) {
+        for (int i = 0; i < this.locks.length; i++) {
+            final int stripe = i;
+            registry.register(MetricRegistry.name(name, "stripe-" + i, "wait"), this.waitTimers[i]);
+            registry.register(MetricRegistry.name(name, "stripe-" + i, "queue-depth"),
+                    (Gauge<Integer>) () -> getQueueDepth(stripe));
+        }
+    }
+}
@@ -3,16 +3,22 @@
  */
 package com.appirio.service.billingaccount.resources;
 
+import com.appirio.supply.ErrorHandler;
 import com.appirio.supply.SupplyException;
 import com.appirio.tech.core.api.v3.request.OrderByQuery;
 import com.appirio.tech.core.api.v3.request.QueryParameter;
+import com.appirio.tech.core.api.v3.response.ApiResponse;
 import com.appirio.tech.core.auth.AuthUser;
 
+import org.slf4j.Logger;
+
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 
+import javax.ws.rs.core.Response;
+
 /**
  * This is the base class of all resources defined in this service. It provides a helper method to check whether the
  * authenticated user is an administrator.
@@ -102,4 +108,15 @@ public class BaseResource {
             throw new SupplyException("method should be either POST , PUT, PATCH", 400);
         }
     }
+
+    /**
+     * Handle the error of an endpoint answering a Response, the response keeps the status of the handled error.
+     * @param e the error
+     * @param logger the logger of the resource
+     * @return the error response
+     */
+    protected Response handleError(Exception e, Logger logger) {
+        ApiResponse response = ErrorHandler.handle(e, logger);
+        return Response.status(response.getResult().getStatus()).entity(response).build();
+    }
 }
\ No newline at end of file
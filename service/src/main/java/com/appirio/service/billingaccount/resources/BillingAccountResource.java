@@ -10,6 +10,7 @@ import com.appirio.service.billingaccount.api.BillingAccountUser;
 import com.appirio.service.billingaccount.api.UserIdDTO;
 import com.appirio.service.billingaccount.api.ConsumeAmountDTO;
 import com.appirio.service.billingaccount.api.LockAmountDTO;
+import com.appirio.service.billingaccount.api.TransferAmountDTO;
 import com.appirio.service.billingaccount.manager.BillingAccountManager;
 import com.appirio.service.supply.resources.MetadataApiResponseFactory;
 import com.appirio.supply.ErrorHandler;
@@ -28,7 +29,9 @@ import org.slf4j.LoggerFactory;
 import javax.validation.Valid;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
@@ -36,6 +39,8 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import java.util.Arrays;
 import java.util.List;
@@ -140,21 +145,96 @@ public class BillingAccountResource extends BaseResource {
     }
 
     /**
-     * Get a billing account by id.
+     * Get a billing account by id, with all, a page or none of its challenge budgets.
      *
      * @param user
      *            the currently logged in user
      * @param billingAccountId
      *            the billing account id
+     * @param includeChallengeBudgets
+     *            false to get only the available budget without the challenge budgets
+     * @param afterChallengeId
+     *            the nextChallengeId of the previous page, to get the next page of challenge budgets
+     * @param limit
+     *            the page size of the challenge budgets
      * @return the api response
      */
     @GET
     @Path("billing-accounts/{billingAccountId}")
-    public ApiResponse getBillingAccountsById(@Auth AuthUser user, @PathParam("billingAccountId") Long billingAccountId) {
+    public ApiResponse getBillingAccountsById(@Auth AuthUser user, @PathParam("billingAccountId") Long billingAccountId,
+            @QueryParam("includeChallengeBudgets") @DefaultValue("true") boolean includeChallengeBudgets,
+            @QueryParam("afterChallengeId") String afterChallengeId,
+            @QueryParam("limit") Integer limit) {
         try {
             checkAdmin(user, new String[] { READ_BILLING_ACCOUNT_SCOPE });
             List<BillingAccount> response = getBillingAccounts(billingAccountId);
-            return ApiResponseFactory.createResponse(billingAccountManager.populateChallengeBudgets(response.get(0)));
+            return ApiResponseFactory.createResponse(billingAccountManager.populateChallengeBudgets(response.get(0),
+                    includeChallengeBudgets, afterChallengeId, limit));
+        } catch (Exception e) {
+            return ErrorHandler.handle(e, logger);
+        }
+    }
+
+    /**
+     * Stream all the challenge budgets of a billing account as a JSON array, without loading them in memory.
+     *
+     * @param user
+     *            the currently logged in user
+     * @param billingAccountId
+     *            the billing account id
+     * @return the streamed response
+     */
+    @GET
+    @Path("billing-accounts/{billingAccountId}/challenge-budgets")
+    public Response streamChallengeBudgets(@Auth AuthUser user, @PathParam("billingAccountId") Long billingAccountId) {
+        try {
+            checkAdmin(user, new String[] { READ_BILLING_ACCOUNT_SCOPE });
+            getBillingAccounts(billingAccountId);
+            StreamingOutput output = out -> billingAccountManager.writeChallengeBudgets(billingAccountId, out);
+            return Response.ok(output, MediaType.APPLICATION_JSON).build();
+        } catch (Exception e) {
+            return handleError(e, logger);
+        }
+    }
+
+    /**
+     * Get the budget issues of the billing accounts found by the reconciler, in issue id order.
+     *
+     * @param user
+     *            the currently logged in user
+     * @param afterIssueId
+     *            the last issue id of the previous page
+     * @param limit
+     *            the page size
+     * @return the api response
+     */
+    @GET
+    @Path("billing-accounts/reconciliation-issues")
+    public ApiResponse getReconciliationIssues(@Auth AuthUser user, @QueryParam("afterIssueId") Long afterIssueId,
+            @QueryParam("limit") Integer limit) {
+        try {
+            checkAdmin(user, new String[] { READ_BILLING_ACCOUNT_SCOPE });
+            return ApiResponseFactory.createResponse(billingAccountManager.getReconciliationIssues(afterIssueId, limit));
+        } catch (Exception e) {
+            return ErrorHandler.handle(e, logger);
+        }
+    }
+
+    /**
+     * Get the budget, locked, consumed and available amounts of a billing account.
+     *
+     * @param user
+     *            the currently logged in user
+     * @param billingAccountId
+     *            the billing account id
+     * @return the api response
+     */
+    @GET
+    @Path("billing-accounts/{billingAccountId}/available-budget")
+    public ApiResponse getAvailableBudget(@Auth AuthUser user, @PathParam("billingAccountId") Long billingAccountId) {
+        try {
+            checkAdmin(user, new String[] { READ_BILLING_ACCOUNT_SCOPE });
+            return ApiResponseFactory.createResponse(billingAccountManager.getAvailableBudget(billingAccountId));
         } catch (Exception e) {
             return ErrorHandler.handle(e, logger);
         }
@@ -316,18 +396,46 @@ public class BillingAccountResource extends BaseResource {
      *            the query parameters
      * @param lockAmount
      *            the amount requested for locking from available budget ( availableAmount ) : Update the lockAmount
+     * @param idempotencyKey
+     *            the optional key of the request, a retry with the same key returns the result of the first request
      * @return the api response
      */
     //billing-accounts/{billingAccountId}/lock-amount
     @PATCH
     @Path("billing-accounts/{billingAccountId}/lock-amount")
     public ApiResponse lockAmountFromBillingAccount(@Auth AuthUser user, @PathParam("billingAccountId") Long billingAccountId,
-            @Valid PostPutRequest<LockAmountDTO> lockAmountDTO) {
+            @Valid PostPutRequest<LockAmountDTO> lockAmountDTO, @HeaderParam("Idempotency-Key") String idempotencyKey) {
         try {
             checkAdmin(user, new String[] { WRITE_BILLING_ACCOUNT_SCOPE });
             return MetadataApiResponseFactory.createResponse(billingAccountManager.lockAmount(billingAccountId, 
                                                              lockAmountDTO.getParam().getChallengeId(), 
-                                                             lockAmountDTO.getParam().getLockAmount()));
+                                                             lockAmountDTO.getParam().getLockCents(),
+                                                             lockAmountDTO.getParam().getTtlSeconds(),
+                                                             idempotencyKey));
+        } catch (Exception e) {
+            return ErrorHandler.handle(e, logger);
+        }
+    }
+
+    /**
+     * Lock amounts for several challenges from the total BudgetAmount, either all amounts are locked or none.
+     *
+     * @param user
+     *            the currently logged in user
+     * @param billingAccountId
+     *            the billing account id
+     * @param lockAmountDTOs
+     *            the amounts requested for locking, one per challenge
+     * @return the api response
+     */
+    @PATCH
+    @Path("billing-accounts/{billingAccountId}/lock-amounts")
+    public ApiResponse lockAmountsFromBillingAccount(@Auth AuthUser user, @PathParam("billingAccountId") Long billingAccountId,
+            @Valid PostPutRequest<List<LockAmountDTO>> lockAmountDTOs) {
+        try {
+            checkAdmin(user, new String[] { WRITE_BILLING_ACCOUNT_SCOPE });
+            return MetadataApiResponseFactory.createResponse(billingAccountManager.lockAmounts(billingAccountId,
+                                                             lockAmountDTOs.getParam()));
         } catch (Exception e) {
             return ErrorHandler.handle(e, logger);
         }
@@ -344,19 +452,104 @@ public class BillingAccountResource extends BaseResource {
      *            ConsumedAmount : Actual amount spent for a challange
      *            ChallengeId : Challenge Id
      *            MarkUp : mark up value
+     * @param idempotencyKey
+     *            the optional key of the request, a retry with the same key returns the result of the first request
+     * @param async
+     *            true to queue the request and return 202 with the operation to poll
      * @return the api response
      */
     
     @PATCH
     @Path("billing-accounts/{billingAccountId}/consume-amount")
-    public ApiResponse consumeAmountFromBillingAccount(@Auth AuthUser user, @PathParam("billingAccountId") Long billingAccountId,
-            @Valid PostPutRequest<ConsumeAmountDTO> consumeAmountDTO) {
+    public Response consumeAmountFromBillingAccount(@Auth AuthUser user, @PathParam("billingAccountId") Long billingAccountId,
+            @Valid PostPutRequest<ConsumeAmountDTO> consumeAmountDTO, @HeaderParam("Idempotency-Key") String idempotencyKey,
+            @QueryParam("async") boolean async) {
+        try {
+            checkAdmin(user, new String[] { WRITE_BILLING_ACCOUNT_SCOPE });
+            ConsumeAmountDTO param = consumeAmountDTO.getParam();
+            if (async) {
+                return Response.status(Response.Status.ACCEPTED)
+                        .entity(ApiResponseFactory.createResponse(billingAccountManager.enqueueConsumeAmount(
+                                billingAccountId, param.getChallengeId(), param.getConsumeCents(), param.getMarkup(),
+                                idempotencyKey)))
+                        .build();
+            }
+            return Response.ok(MetadataApiResponseFactory.createResponse(billingAccountManager.consumeAmount(billingAccountId, 
+                                                             param.getChallengeId(),
+                                                             param.getConsumeCents(),
+                                                             param.getMarkup(),
+                                                             idempotencyKey))).build();
+        } catch (Exception e) {
+            return handleError(e, logger);
+        }
+    }
+
+    /**
+     * Get a consume amount request queued with async=true.
+     *
+     * @param user
+     *            the currently logged in user
+     * @param billingAccountId
+     *            the billing account id
+     * @param operationId
+     *            the operation id returned when the request was queued
+     * @return the api response
+     */
+    @GET
+    @Path("billing-accounts/{billingAccountId}/operations/{operationId}")
+    public ApiResponse getOperation(@Auth AuthUser user, @PathParam("billingAccountId") Long billingAccountId,
+            @PathParam("operationId") String operationId) {
+        try {
+            checkAdmin(user, new String[] { READ_BILLING_ACCOUNT_SCOPE });
+            return ApiResponseFactory.createResponse(billingAccountManager.getOperation(billingAccountId, operationId));
+        } catch (Exception e) {
+            return ErrorHandler.handle(e, logger);
+        }
+    }
+
+    /**
+     * Consume amounts for several challenges from the availableAmount, either all amounts are consumed or none.
+     *
+     * @param user
+     *            the currently logged in user
+     * @param billingAccountId
+     *            the billing account id
+     * @param consumeAmountDTOs
+     *            the actual amounts spent, one per challenge
+     * @return the api response
+     */
+    @PATCH
+    @Path("billing-accounts/{billingAccountId}/consume-amounts")
+    public ApiResponse consumeAmountsFromBillingAccount(@Auth AuthUser user, @PathParam("billingAccountId") Long billingAccountId,
+            @Valid PostPutRequest<List<ConsumeAmountDTO>> consumeAmountDTOs) {
+        try {
+            checkAdmin(user, new String[] { WRITE_BILLING_ACCOUNT_SCOPE });
+            return MetadataApiResponseFactory.createResponse(billingAccountManager.consumeAmounts(billingAccountId,
+                                                             consumeAmountDTOs.getParam()));
+        } catch (Exception e) {
+            return ErrorHandler.handle(e, logger);
+        }
+    }
+
+    /**
+     * Move an amount of budget to another billing account of the same client, in one transaction.
+     *
+     * @param user
+     *            the currently logged in user
+     * @param billingAccountId
+     *            the id of the billing account giving the amount
+     * @param request
+     *            the billing account receiving the amount and the amount to move
+     * @return the api response
+     */
+    @POST
+    @Path("billing-accounts/{billingAccountId}/transfers")
+    public ApiResponse transferAmountFromBillingAccount(@Auth AuthUser user,
+            @PathParam("billingAccountId") Long billingAccountId, @Valid PostPutRequest<TransferAmountDTO> request) {
         try {
             checkAdmin(user, new String[] { WRITE_BILLING_ACCOUNT_SCOPE });
-            return MetadataApiResponseFactory.createResponse(billingAccountManager.consumeAmount(billingAccountId, 
-                                                             consumeAmountDTO.getParam().getChallengeId(),
-                                                             consumeAmountDTO.getParam().getConsumeAmount(),
-                                                             consumeAmountDTO.getParam().getMarkup()));
+            return ApiResponseFactory.createResponse(billingAccountManager.transferAmount(user, billingAccountId,
+                    request.getParam().getToBillingAccountId(), request.getParam().getAmountCents()));
         } catch (Exception e) {
             return ErrorHandler.handle(e, logger);
         }
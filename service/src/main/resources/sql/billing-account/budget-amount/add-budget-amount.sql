@@ -0,0 +1,8 @@
+UPDATE project
+    SET budget = NVL(budget, 0) + :amount,
+        modification_user = :userId,
+        modification_date = current
+    WHERE project_id = :projectId
+    AND (:amount >= 0
+         OR ROUND(NVL(budget, 0) + :amount, 2)
+            >= (SELECT total_locked + total_consumed FROM project_budget_total WHERE project_id = :projectId))
\ No newline at end of file
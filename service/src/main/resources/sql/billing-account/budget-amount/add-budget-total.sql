@@ -0,0 +1,6 @@
+UPDATE project_budget_total
+    SET total_locked = total_locked + :lockedDelta,
+        total_consumed = total_consumed + :consumedDelta,
+        version = version + 1
+    WHERE project_id = :projectId
+    AND version = :version
\ No newline at end of file
@@ -0,0 +1,3 @@
+UPDATE project_budget_total
+    SET version = version + 1
+    WHERE project_id = :projectId
\ No newline at end of file
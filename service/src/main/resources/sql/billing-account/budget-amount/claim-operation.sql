@@ -0,0 +1,7 @@
+UPDATE budget_operation
+    SET status = 'RUNNING',
+        lease_owner = :leaseOwner,
+        lease_expiry = CURRENT + :leaseSeconds UNITS SECOND,
+        update_date = CURRENT
+    WHERE operation_id = :operationId
+    AND (status = 'PENDING' OR (status = 'RUNNING' AND lease_expiry < CURRENT))
\ No newline at end of file
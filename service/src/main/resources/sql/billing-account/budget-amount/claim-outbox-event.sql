@@ -0,0 +1,7 @@
+UPDATE budget_event_outbox
+    SET lease_owner = :leaseOwner,
+        lease_expiry = CURRENT + :leaseSeconds UNITS SECOND
+    WHERE event_id = :eventId
+    AND sent_date IS NULL
+    AND failed_date IS NULL
+    AND (lease_expiry IS NULL OR lease_expiry < CURRENT)
\ No newline at end of file
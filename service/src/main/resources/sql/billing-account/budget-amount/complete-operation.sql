@@ -0,0 +1,10 @@
+UPDATE budget_operation
+    SET status = :status,
+        status_code = :statusCode,
+        message = :message,
+        lease_owner = NULL,
+        lease_expiry = NULL,
+        update_date = CURRENT
+    WHERE operation_id = :operationId
+    AND status = 'RUNNING'
+    AND lease_owner = :leaseOwner
\ No newline at end of file
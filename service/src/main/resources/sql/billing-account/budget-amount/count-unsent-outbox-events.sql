@@ -0,0 +1,4 @@
+SELECT COUNT(*) AS id
+    FROM budget_event_outbox
+    WHERE sent_date IS NULL
+    AND failed_date IS NULL
\ No newline at end of file
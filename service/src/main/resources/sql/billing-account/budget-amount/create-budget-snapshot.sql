@@ -0,0 +1,12 @@
+INSERT INTO budget_snapshot (project_id, last_entry_id, total_locked, total_consumed, create_date)
+SELECT e.project_id,
+       MAX(e.ledger_entry_id),
+       NVL(s.total_locked, 0) + SUM(e.locked_delta),
+       NVL(s.total_consumed, 0) + SUM(e.consumed_delta),
+       CURRENT
+    FROM budget_ledger_entry e
+    LEFT OUTER JOIN budget_snapshot s ON s.project_id = e.project_id
+        AND s.last_entry_id = (SELECT MAX(last_entry_id) FROM budget_snapshot WHERE project_id = :projectId)
+    WHERE e.project_id = :projectId
+    AND e.ledger_entry_id > NVL(s.last_entry_id, 0)
+    GROUP BY e.project_id, s.total_locked, s.total_consumed
\ No newline at end of file
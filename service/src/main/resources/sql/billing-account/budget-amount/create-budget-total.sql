@@ -0,0 +1,7 @@
+INSERT INTO project_budget_total (project_id, total_locked, total_consumed)
+SELECT p.project_id,
+       NVL((SELECT SUM(locked_amount) FROM project_challenge_budget WHERE project_id = p.project_id), 0),
+       NVL((SELECT SUM(consumed_amount) FROM project_challenge_budget WHERE project_id = p.project_id), 0)
+    FROM project p
+    WHERE p.project_id = :projectId
+    AND NOT EXISTS (SELECT 1 FROM project_budget_total t WHERE t.project_id = p.project_id)
\ No newline at end of file
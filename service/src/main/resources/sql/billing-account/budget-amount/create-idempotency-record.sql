@@ -0,0 +1,2 @@
+INSERT INTO budget_idempotency_key (idempotency_key, challenge_id, amount, create_date)
+VALUES (:idempotencyKey, :challengeId, :amount, CURRENT)
\ No newline at end of file
@@ -0,0 +1,10 @@
+INSERT INTO budget_ledger_entry (project_id, challenge_id, entry_type, locked_delta, consumed_delta, create_date)
+SELECT CAST(:projectId AS INTEGER),
+       CAST(:challengeId AS VARCHAR(255)),
+       CAST(:entryType AS VARCHAR(16)),
+       :lockedAmount - NVL(SUM(locked_amount), 0),
+       :consumedAmount - NVL(SUM(consumed_amount), 0),
+       CURRENT
+    FROM project_challenge_budget
+    WHERE project_id = :projectId
+    AND challenge_id = :challengeId
\ No newline at end of file
@@ -0,0 +1,3 @@
+INSERT INTO budget_operation (operation_id, project_id, challenge_id, amount, markup, idempotency_key, status,
+                              attempts, create_date, update_date)
+VALUES (:operationId, :projectId, :challengeId, :amount, :markup, :idempotencyKey, 'PENDING', 0, CURRENT, CURRENT)
\ No newline at end of file
@@ -0,0 +1,2 @@
+INSERT INTO budget_event_outbox (project_id, payload, attempts, create_date)
+VALUES (:projectId, :payload, 0, CURRENT)
\ No newline at end of file
@@ -0,0 +1,3 @@
+INSERT INTO budget_reconciliation_issue (project_id, challenge_id, issue_type, expected_amount, actual_amount, detail,
+                                         create_date)
+VALUES (:projectId, :challengeId, :issueType, :expectedAmount, :actualAmount, :detail, CURRENT)
\ No newline at end of file
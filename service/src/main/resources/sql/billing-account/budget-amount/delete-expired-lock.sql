@@ -0,0 +1,4 @@
+DELETE FROM budget_lock_expiry
+    WHERE project_id = :projectId
+    AND challenge_id = :challengeId
+    AND expiry_date <= CURRENT
\ No newline at end of file
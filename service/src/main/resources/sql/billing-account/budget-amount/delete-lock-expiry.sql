@@ -0,0 +1,3 @@
+DELETE FROM budget_lock_expiry
+    WHERE project_id = :projectId
+    AND challenge_id = :challengeId
\ No newline at end of file
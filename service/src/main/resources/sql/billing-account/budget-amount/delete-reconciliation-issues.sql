@@ -0,0 +1,3 @@
+DELETE FROM budget_reconciliation_issue
+    WHERE project_id > :afterProjectId
+    AND project_id <= :lastProjectId
\ No newline at end of file
@@ -0,0 +1,7 @@
+UPDATE budget_event_outbox
+    SET attempts = attempts + 1,
+        failed_date = CURRENT,
+        lease_owner = NULL,
+        lease_expiry = NULL
+    WHERE event_id = :eventId
+    AND lease_owner = :leaseOwner
\ No newline at end of file
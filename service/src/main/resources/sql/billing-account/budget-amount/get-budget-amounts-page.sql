@@ -0,0 +1,7 @@
+SELECT FIRST :limit challenge_id as challengeId,
+       CAST(ROUND(NVL(locked_amount, 0) * 100, 0) AS INT8) as lockedCents,
+       CAST(ROUND(NVL(consumed_amount, 0) * 100, 0) AS INT8) as consumedCents
+    FROM project_challenge_budget
+    WHERE project_id = :projectId
+    AND challenge_id > :afterChallengeId
+    ORDER BY challenge_id
\ No newline at end of file
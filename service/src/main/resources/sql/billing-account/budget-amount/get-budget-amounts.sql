@@ -1,3 +1,5 @@
-SELECT challenge_id as challengeId, locked_amount as lockedAmount, consumed_amount as consumedAmount
+SELECT challenge_id as challengeId,
+       CAST(ROUND(NVL(locked_amount, 0) * 100, 0) AS INT8) as lockedCents,
+       CAST(ROUND(NVL(consumed_amount, 0) * 100, 0) AS INT8) as consumedCents
     FROM project_challenge_budget 
     WHERE project_id = :projectId
\ No newline at end of file
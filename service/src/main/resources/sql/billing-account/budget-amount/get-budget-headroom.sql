@@ -0,0 +1,12 @@
+SELECT CAST(ROUND(NVL(p.budget, 0) * 100, 0) AS INT8) AS budgetCents,
+       CAST(ROUND(t.total_locked * 100, 0) AS INT8) AS lockedCents,
+       CAST(ROUND(t.total_consumed * 100, 0) AS INT8) AS consumedCents,
+       CAST(ROUND(NVL((SELECT MAX(NVL(locked_amount, 0) + NVL(consumed_amount, 0))
+                         FROM project_challenge_budget
+                        WHERE project_id = p.project_id), 0) * 100, 0) AS INT8) AS maxEntryCents,
+       CAST(ROUND(NVL((SELECT MAX(NVL(consumed_amount, 0))
+                         FROM project_challenge_budget
+                        WHERE project_id = p.project_id), 0) * 100, 0) AS INT8) AS maxConsumedCents
+    FROM project p, project_budget_total t
+    WHERE p.project_id = :projectId
+    AND t.project_id = p.project_id
\ No newline at end of file
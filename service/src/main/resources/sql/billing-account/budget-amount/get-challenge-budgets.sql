@@ -0,0 +1,7 @@
+SELECT challenge_id as challengeId,
+       CAST(ROUND(NVL(locked_amount, 0) * 100, 0) AS INT8) as lockedCents,
+       CAST(ROUND(NVL(consumed_amount, 0) * 100, 0) AS INT8) as consumedCents,
+       version
+    FROM project_challenge_budget 
+    WHERE project_id = :projectId
+    AND {filter}
\ No newline at end of file
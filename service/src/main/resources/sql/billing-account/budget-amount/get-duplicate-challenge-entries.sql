@@ -0,0 +1,12 @@
+SELECT challenge_id as challengeId,
+       CAST(ROUND(NVL(locked_amount, 0) * 100, 0) AS INT8) as lockedCents,
+       CAST(ROUND(NVL(consumed_amount, 0) * 100, 0) AS INT8) as consumedCents,
+       version
+    FROM project_challenge_budget
+    WHERE project_id = :projectId
+    AND challenge_id IN (SELECT challenge_id
+                           FROM project_challenge_budget
+                          WHERE project_id = :projectId
+                          GROUP BY challenge_id
+                          HAVING COUNT(*) > 1)
+    ORDER BY challenge_id
\ No newline at end of file
@@ -0,0 +1,6 @@
+SELECT FIRST :limit project_id AS projectId,
+       challenge_id AS challengeId,
+       expiry_date AS expiryDate
+    FROM budget_lock_expiry
+    WHERE expiry_date <= CURRENT
+    ORDER BY expiry_date
\ No newline at end of file
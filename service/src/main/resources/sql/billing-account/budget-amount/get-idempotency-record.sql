@@ -0,0 +1,4 @@
+SELECT challenge_id AS challengeId, CAST(ROUND(amount * 100, 0) AS INT8) AS amountCents
+    FROM budget_idempotency_key
+    WHERE idempotency_key = :idempotencyKey
+    AND create_date > CURRENT - :expirySeconds UNITS SECOND
\ No newline at end of file
@@ -0,0 +1,13 @@
+SELECT CAST(ROUND(NVL(p.budget, 0) * 100, 0) AS INT8) AS budgetCents,
+       CAST(ROUND((NVL(s.total_locked, 0)
+           + NVL((SELECT SUM(e.locked_delta) FROM budget_ledger_entry e
+                   WHERE e.project_id = p.project_id
+                   AND e.ledger_entry_id > NVL(s.last_entry_id, 0)), 0)) * 100, 0) AS INT8) AS lockedCents,
+       CAST(ROUND((NVL(s.total_consumed, 0)
+           + NVL((SELECT SUM(e.consumed_delta) FROM budget_ledger_entry e
+                   WHERE e.project_id = p.project_id
+                   AND e.ledger_entry_id > NVL(s.last_entry_id, 0)), 0)) * 100, 0) AS INT8) AS consumedCents
+    FROM project p
+    LEFT OUTER JOIN budget_snapshot s ON s.project_id = p.project_id
+        AND s.last_entry_id = (SELECT MAX(last_entry_id) FROM budget_snapshot WHERE project_id = p.project_id)
+    WHERE p.project_id = :projectId
\ No newline at end of file
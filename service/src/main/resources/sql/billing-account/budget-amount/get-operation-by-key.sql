@@ -0,0 +1,15 @@
+SELECT operation_id AS operationId,
+       project_id AS billingAccountId,
+       challenge_id AS challengeId,
+       CAST(ROUND(amount * 100, 0) AS INT8) AS consumeCents,
+       markup,
+       idempotency_key AS idempotencyKey,
+       status,
+       status_code AS statusCode,
+       message,
+       attempts,
+       create_date AS createdAt,
+       update_date AS updatedAt
+    FROM budget_operation
+    WHERE project_id = :projectId
+    AND idempotency_key = :idempotencyKey
\ No newline at end of file
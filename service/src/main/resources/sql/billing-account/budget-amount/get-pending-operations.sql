@@ -0,0 +1,20 @@
+SELECT FIRST :limit o.operation_id AS operationId,
+       o.project_id AS billingAccountId,
+       o.challenge_id AS challengeId,
+       CAST(ROUND(o.amount * 100, 0) AS INT8) AS consumeCents,
+       o.markup,
+       o.idempotency_key AS idempotencyKey,
+       o.status,
+       o.status_code AS statusCode,
+       o.message,
+       o.attempts,
+       o.create_date AS createdAt,
+       o.update_date AS updatedAt
+    FROM budget_operation o
+    WHERE (o.status = 'PENDING' OR (o.status = 'RUNNING' AND o.lease_expiry < CURRENT))
+    AND NOT EXISTS (SELECT 1
+                      FROM budget_operation p
+                     WHERE p.project_id = o.project_id
+                       AND p.operation_seq < o.operation_seq
+                       AND p.status IN ('PENDING', 'RUNNING'))
+    ORDER BY o.operation_seq
\ No newline at end of file
@@ -0,0 +1,5 @@
+SELECT e.project_id AS id
+    FROM budget_ledger_entry e
+    WHERE e.ledger_entry_id > NVL((SELECT MAX(s.last_entry_id) FROM budget_snapshot s
+                                    WHERE s.project_id = e.project_id), 0)
+    GROUP BY e.project_id
\ No newline at end of file
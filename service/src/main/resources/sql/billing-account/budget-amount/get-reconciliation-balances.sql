@@ -0,0 +1,24 @@
+SELECT FIRST :limit p.project_id AS projectId,
+       CAST(ROUND(NVL(p.budget, 0) * 100, 0) AS INT8) AS budgetCents,
+       CAST(ROUND(t.total_locked * 100, 0) AS INT8) AS totalLockedCents,
+       CAST(ROUND(t.total_consumed * 100, 0) AS INT8) AS totalConsumedCents,
+       CAST(ROUND(NVL((SELECT SUM(NVL(locked_amount, 0)) FROM project_challenge_budget
+                        WHERE project_id = p.project_id), 0) * 100, 0) AS INT8) AS entryLockedCents,
+       CAST(ROUND(NVL((SELECT SUM(NVL(consumed_amount, 0)) FROM project_challenge_budget
+                        WHERE project_id = p.project_id), 0) * 100, 0) AS INT8) AS entryConsumedCents,
+       (SELECT COUNT(*) - COUNT(DISTINCT challenge_id) FROM project_challenge_budget
+         WHERE project_id = p.project_id) AS duplicateEntries,
+       CAST(ROUND((NVL(s.total_locked, 0)
+           + NVL((SELECT SUM(e.locked_delta) FROM budget_ledger_entry e
+                   WHERE e.project_id = p.project_id
+                   AND e.ledger_entry_id > NVL(s.last_entry_id, 0)), 0)) * 100, 0) AS INT8) AS ledgerLockedCents,
+       CAST(ROUND((NVL(s.total_consumed, 0)
+           + NVL((SELECT SUM(e.consumed_delta) FROM budget_ledger_entry e
+                   WHERE e.project_id = p.project_id
+                   AND e.ledger_entry_id > NVL(s.last_entry_id, 0)), 0)) * 100, 0) AS INT8) AS ledgerConsumedCents
+    FROM project p
+    LEFT OUTER JOIN project_budget_total t ON t.project_id = p.project_id
+    LEFT OUTER JOIN budget_snapshot s ON s.project_id = p.project_id
+        AND s.last_entry_id = (SELECT MAX(last_entry_id) FROM budget_snapshot WHERE project_id = p.project_id)
+    WHERE p.project_id > :afterProjectId
+    ORDER BY p.project_id
\ No newline at end of file
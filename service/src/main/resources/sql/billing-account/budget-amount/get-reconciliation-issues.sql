@@ -0,0 +1,11 @@
+SELECT FIRST :limit issue_id AS issueId,
+       project_id AS billingAccountId,
+       challenge_id AS challengeId,
+       issue_type AS issueType,
+       CAST(ROUND(expected_amount * 100, 0) AS INT8) AS expectedCents,
+       CAST(ROUND(actual_amount * 100, 0) AS INT8) AS actualCents,
+       detail,
+       create_date AS createdAt
+    FROM budget_reconciliation_issue
+    WHERE issue_id > :afterIssueId
+    ORDER BY issue_id
\ No newline at end of file
@@ -1,4 +0,0 @@
-SELECT SUM(consumed_amount) as floatValue
-    FROM project_challenge_budget 
-    WHERE project_id = :projectId 
-    AND challenge_id <> :challengeId
\ No newline at end of file
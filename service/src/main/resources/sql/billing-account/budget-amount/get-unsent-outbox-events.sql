@@ -0,0 +1,10 @@
+SELECT FIRST :limit event_id AS eventId,
+       project_id AS billingAccountId,
+       payload,
+       attempts,
+       create_date AS createdAt
+    FROM budget_event_outbox
+    WHERE sent_date IS NULL
+    AND failed_date IS NULL
+    AND (lease_expiry IS NULL OR lease_expiry < CURRENT)
+    ORDER BY event_id
\ No newline at end of file
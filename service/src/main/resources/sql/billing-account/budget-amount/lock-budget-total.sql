@@ -0,0 +1,3 @@
+UPDATE project_budget_total
+    SET total_locked = total_locked
+    WHERE project_id = :projectId
\ No newline at end of file
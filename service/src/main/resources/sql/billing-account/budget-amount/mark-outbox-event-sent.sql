@@ -0,0 +1,6 @@
+UPDATE budget_event_outbox
+    SET sent_date = CURRENT,
+        lease_owner = NULL,
+        lease_expiry = NULL
+    WHERE event_id = :eventId
+    AND lease_owner = :leaseOwner
\ No newline at end of file
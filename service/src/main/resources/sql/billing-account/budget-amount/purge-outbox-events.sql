@@ -0,0 +1,2 @@
+DELETE FROM budget_event_outbox
+    WHERE sent_date < CURRENT - :retentionHours UNITS HOUR
\ No newline at end of file
@@ -0,0 +1,23 @@
+UPDATE project_budget_total
+    SET total_locked = total_locked
+                       - NVL((SELECT SUM(locked_amount)
+                                FROM project_challenge_budget
+                               WHERE project_id = :projectId
+                                 AND challenge_id = :challengeId), 0),
+        total_consumed = total_consumed + :consumedAmount
+                       - NVL((SELECT SUM(consumed_amount)
+                                FROM project_challenge_budget
+                               WHERE project_id = :projectId
+                                 AND challenge_id = :challengeId), 0),
+        version = version + 1
+    WHERE project_id = :projectId
+    AND (SELECT COUNT(*)
+           FROM project_challenge_budget
+          WHERE project_id = :projectId
+            AND challenge_id = :challengeId) <= 1
+    AND ROUND(:consumedAmount + total_consumed
+              - NVL((SELECT SUM(consumed_amount)
+                       FROM project_challenge_budget
+                      WHERE project_id = :projectId
+                        AND challenge_id = :challengeId), 0), 2)
+        <= (SELECT NVL(budget, 0) FROM project WHERE project_id = :projectId)
\ No newline at end of file
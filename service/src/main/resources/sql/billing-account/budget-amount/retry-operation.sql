@@ -0,0 +1,9 @@
+UPDATE budget_operation
+    SET status = 'PENDING',
+        attempts = attempts + 1,
+        lease_owner = NULL,
+        lease_expiry = NULL,
+        update_date = CURRENT
+    WHERE operation_id = :operationId
+    AND status = 'RUNNING'
+    AND lease_owner = :leaseOwner
\ No newline at end of file
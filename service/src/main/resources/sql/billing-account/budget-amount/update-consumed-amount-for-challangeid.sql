@@ -1,5 +1,7 @@
 UPDATE project_challenge_budget
     SET locked_amount = :lockedAmount, 
-        consumed_amount = :consumedAmount
+        consumed_amount = :consumedAmount,
+        version = version + 1
     WHERE project_id = :projectId
-    AND challenge_id = :challengeId
\ No newline at end of file
+    AND challenge_id = :challengeId
+    AND version = :version
\ No newline at end of file
@@ -0,0 +1,13 @@
+MERGE INTO project_challenge_budget AS pcb
+USING (SELECT project_id
+         FROM project_budget_total
+        WHERE project_id = :projectId) AS total
+ON pcb.project_id = total.project_id
+   AND pcb.challenge_id = :challengeId
+WHEN MATCHED THEN
+    UPDATE SET locked_amount = :lockedAmount,
+               consumed_amount = :consumedAmount,
+               version = pcb.version + 1
+WHEN NOT MATCHED THEN
+    INSERT (project_id, challenge_id, locked_amount, consumed_amount)
+    VALUES (total.project_id, :challengeId, :lockedAmount, :consumedAmount)
\ No newline at end of file
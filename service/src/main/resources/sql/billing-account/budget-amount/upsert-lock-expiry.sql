@@ -0,0 +1,11 @@
+MERGE INTO budget_lock_expiry AS e
+USING (SELECT project_id
+         FROM project_budget_total
+        WHERE project_id = :projectId) AS total
+ON e.project_id = total.project_id
+   AND e.challenge_id = :challengeId
+WHEN MATCHED THEN
+    UPDATE SET expiry_date = CURRENT + :ttlSeconds UNITS SECOND
+WHEN NOT MATCHED THEN
+    INSERT (project_id, challenge_id, expiry_date)
+    VALUES (total.project_id, :challengeId, CURRENT + :ttlSeconds UNITS SECOND)
\ No newline at end of file
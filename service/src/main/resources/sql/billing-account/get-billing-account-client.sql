@@ -0,0 +1,3 @@
+SELECT cp.client_id AS id
+FROM client_project cp
+WHERE cp.project_id = :billingAccountId
\ No newline at end of file
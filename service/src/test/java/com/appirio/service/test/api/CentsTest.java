@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.appirio.service.billingaccount.api.Cents;
+import com.appirio.service.billingaccount.api.ChallengeBudget;
+import com.appirio.service.billingaccount.api.LockAmountDTO;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+
+/**
+ * Unit test of Cents.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class CentsTest {
+    /**
+     * The mapper used for testing.
+     */
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Test Cents.of.
+     */
+    @Test
+    public void testOf() {
+        assertEquals(1999L, Cents.of(new BigDecimal("19.99")));
+        assertEquals(1000L, Cents.of(new BigDecimal("9.995")));
+        assertEquals(1999L, Cents.of(19.99f));
+        assertEquals(0L, Cents.of((Float) null));
+    }
+
+    /**
+     * Test Cents.toAmount.
+     */
+    @Test
+    public void testToAmount() {
+        assertEquals(new BigDecimal("19.99"), Cents.toAmount(1999L));
+        assertEquals(new BigDecimal("-0.50"), Cents.toAmount(-50L));
+    }
+
+    /**
+     * Test the amounts are serialized as decimal amounts.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testSerialize() throws Exception {
+        String json = mapper.writeValueAsString(new ChallengeBudget("c1", 1999L, 5L));
+
+        assertEquals("{\"challengeId\":\"c1\",\"lockedAmount\":19.99,\"consumedAmount\":0.05}", json);
+    }
+
+    /**
+     * Test the amounts are deserialized to cents without float rounding.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testDeserialize() throws Exception {
+        LockAmountDTO dto = mapper.readValue("{\"challengeId\":\"c1\",\"lockAmount\":16777217.01}", LockAmountDTO.class);
+        assertEquals(1677721701L, dto.getLockCents().longValue());
+
+        dto = mapper.readValue("{\"challengeId\":\"c1\"}", LockAmountDTO.class);
+        assertNull(dto.getLockCents());
+    }
+}
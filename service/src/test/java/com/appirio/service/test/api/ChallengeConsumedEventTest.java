@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.appirio.service.billingaccount.api.ChallengeConsumedEvent;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+
+/**
+ * Unit test of ChallengeConsumedEvent.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class ChallengeConsumedEventTest {
+    /**
+     * Test ChallengeConsumedEvent.toJson writes the fields of the challenge-ba-consumed event.
+     */
+    @Test
+    public void testToJson() {
+        String event = new ChallengeConsumedEvent(1L, "c1", 12345L, 0.5f).toJson();
+        JSONObject json = new JSONObject(event);
+
+        assertEquals("tc-billing-account-service", json.getString("source"));
+        assertEquals("tc-billing-account-service.api", json.getString("publisher"));
+        assertEquals("challenge-ba-consumed", json.getString("eventType"));
+        assertEquals("challenge-ba-consumed", json.getString("payloadType"));
+        assertEquals(1, json.getInt("payloadVersion"));
+        JSONObject payload = json.getJSONObject("payload");
+        assertEquals(1L, payload.getLong("billingAccountId"));
+        assertTrue(event.contains("\"actualSpent\":123.45,"));
+        assertEquals("c1", payload.getString("challengeId"));
+        assertEquals(0.5, payload.getDouble("markup"), 0);
+    }
+
+    /**
+     * Test ChallengeConsumedEvent.toJson omits the unknown markup.
+     */
+    @Test
+    public void testToJson_NoMarkup() {
+        String event = new ChallengeConsumedEvent(1L, "c1", 100L, null).toJson();
+        JSONObject payload = new JSONObject(event).getJSONObject("payload");
+        assertEquals("c1", payload.getString("challengeId"));
+        assertTrue(event.contains("\"actualSpent\":1.00,"));
+        assertFalse(payload.has("markup"));
+    }
+}
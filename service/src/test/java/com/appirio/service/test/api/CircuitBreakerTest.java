@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.appirio.service.billingaccount.api.CircuitBreaker;
+
+import org.junit.Test;
+
+
+/**
+ * Unit test of CircuitBreaker.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class CircuitBreakerTest {
+    /**
+     * Test CircuitBreaker opens after the consecutive failures, lets one trial call through after the open time, and
+     * opens again when it fails.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testOpenAndTrial() throws Exception {
+        CircuitBreaker unit = new CircuitBreaker(2, 100);
+        unit.recordFailure();
+        unit.recordSuccess();
+        unit.recordFailure();
+        assertTrue(unit.allowRequest());
+        unit.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, unit.getState());
+        assertFalse(unit.allowRequest());
+
+        Thread.sleep(150);
+        assertTrue(unit.isCallPermitted());
+        assertTrue(unit.allowRequest());
+        assertFalse(unit.allowRequest());
+        unit.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, unit.getState());
+
+        Thread.sleep(150);
+        assertTrue(unit.allowRequest());
+        unit.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, unit.getState());
+    }
+
+    /**
+     * Test CircuitBreaker rejects a failure threshold that is not positive.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreate_InvalidThreshold() {
+        new CircuitBreaker(0, 100);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.amazonaws.services.lambda.model.TooManyRequestsException;
+import com.appirio.service.billingaccount.api.CircuitBreaker;
+import com.appirio.service.billingaccount.api.HarmonyPublisher;
+import com.appirio.service.billingaccount.api.HarmonyPublisherHealthCheck;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+
+/**
+ * Unit test of HarmonyPublisher.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class HarmonyPublisherTest {
+    /**
+     * The local Lambda client used for testing.
+     */
+    private final StubLambda lambda = new StubLambda();
+
+    /**
+     * Get the UTF-8 bytes of a message.
+     *
+     * @param msg the message
+     * @return the bytes
+     */
+    private static byte[] bytes(String msg) {
+        return msg.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Test HarmonyPublisher.sendBatch packs the messages in JSON arrays up to the maximum payload size, and sends a
+     * message left alone as is.
+     */
+    @Test
+    public void testSendBatch() {
+        HarmonyPublisher unit = new HarmonyPublisher(lambda, "publisher", 20, null);
+
+        assertTrue(unit.sendBatch(Arrays.asList(bytes("{\"id\":1}"), bytes("{\"id\":2}"), bytes("{\"id\":3}"))));
+
+        assertEquals(Arrays.asList("[{\"id\":1},{\"id\":2}]", "{\"id\":3}"), lambda.getPayloads());
+    }
+
+    /**
+     * Test HarmonyPublisher.sendBatch sends a single message as is, not wrapped in an array.
+     */
+    @Test
+    public void testSendBatch_SingleMessage() {
+        HarmonyPublisher unit = new HarmonyPublisher(lambda, "publisher", HarmonyPublisher.DEFAULT_MAX_PAYLOAD_BYTES,
+            null);
+
+        assertTrue(unit.sendBatch(Collections.singletonList(bytes("{\"id\":1}"))));
+
+        assertEquals(Collections.singletonList("{\"id\":1}"), lambda.getPayloads());
+    }
+
+    /**
+     * Test HarmonyPublisher.sendBatch throws the failed invocations, and opens the circuit after the consecutive
+     * failures.
+     */
+    @Test
+    public void testSendBatch_Failed() {
+        lambda.setThrottled(true);
+        CircuitBreaker circuitBreaker = new CircuitBreaker(2, 60000);
+        HarmonyPublisher unit = new HarmonyPublisher(lambda, "publisher", HarmonyPublisher.DEFAULT_MAX_PAYLOAD_BYTES,
+            circuitBreaker);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                unit.sendBatch(Collections.singletonList(bytes("{\"id\":1}")));
+                fail("The throttled invocation should be thrown");
+            } catch (TooManyRequestsException e) {
+                // expected
+            }
+        }
+
+        assertEquals(2, lambda.getInvocations());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    /**
+     * Test HarmonyPublisher.sendBatch returns false without invoking the function while the circuit is open.
+     */
+    @Test
+    public void testSendBatch_CircuitOpen() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(1, 60000);
+        circuitBreaker.recordFailure();
+        HarmonyPublisher unit = new HarmonyPublisher(lambda, "publisher", HarmonyPublisher.DEFAULT_MAX_PAYLOAD_BYTES,
+            circuitBreaker);
+
+        assertFalse(unit.isCallPermitted());
+        assertFalse(unit.sendBatch(Arrays.asList(bytes("{\"id\":1}"), bytes("{\"id\":2}"))));
+        assertEquals(0, lambda.getInvocations());
+    }
+
+    /**
+     * Test HarmonyPublisher.start warms the Lambda client with a dry run invocation, and the health check reports the
+     * publisher ready once warmed.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testStart_WarmUp() throws Exception {
+        HarmonyPublisher unit = new HarmonyPublisher(lambda, "publisher", HarmonyPublisher.DEFAULT_MAX_PAYLOAD_BYTES,
+            null);
+        HarmonyPublisherHealthCheck healthCheck = new HarmonyPublisherHealthCheck(unit);
+        assertFalse(unit.isReady());
+        assertFalse(healthCheck.execute().isHealthy());
+
+        unit.start();
+        for (int i = 0; i < 50 && !unit.isReady(); i++) {
+            Thread.sleep(100);
+        }
+        unit.stop();
+        assertTrue(healthCheck.execute().isHealthy());
+        assertEquals(1, lambda.getInvocations());
+        assertEquals(0, lambda.getPayloads().size());
+    }
+
+    /**
+     * Test HarmonyPublisher.start skips the warm up when the name of the function is not configured.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testStart_NoFunctionName() throws Exception {
+        HarmonyPublisher unit = new HarmonyPublisher(lambda, "", HarmonyPublisher.DEFAULT_MAX_PAYLOAD_BYTES, null);
+
+        unit.start();
+        Thread.sleep(500);
+        unit.stop();
+        assertFalse(unit.isReady());
+        assertEquals(0, lambda.getInvocations());
+    }
+
+    /**
+     * Test HarmonyPublisher rejects a maximum payload size that is not positive.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreate_InvalidMaxPayloadBytes() {
+        new HarmonyPublisher(lambda, "publisher", 0, null);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.api;
+
+import com.amazonaws.services.lambda.AbstractAWSLambda;
+import com.amazonaws.services.lambda.model.InvocationType;
+import com.amazonaws.services.lambda.model.InvokeRequest;
+import com.amazonaws.services.lambda.model.InvokeResult;
+import com.amazonaws.services.lambda.model.TooManyRequestsException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A local Lambda client recording the invoked payloads, which can be throttled to test the publisher offline. The dry
+ * run invocations are counted but have no payload.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class StubLambda extends AbstractAWSLambda {
+    /**
+     * The payloads of the successful invocations.
+     */
+    private final List<String> payloads = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * The number of invocations, successful or not.
+     */
+    private final AtomicInteger invocations = new AtomicInteger();
+
+    /**
+     * Whether the invocations are throttled.
+     */
+    private volatile boolean throttled;
+
+    /**
+     * Record the payload, or throw as a throttled function.
+     *
+     * @param request the invoke request
+     * @return the invoke result
+     */
+    @Override
+    public InvokeResult invoke(InvokeRequest request) {
+        invocations.incrementAndGet();
+        if (throttled) {
+            throw new TooManyRequestsException("Rate Exceeded.");
+        }
+        if (InvocationType.DryRun.toString().equals(request.getInvocationType())) {
+            return new InvokeResult().withStatusCode(204);
+        }
+        payloads.add(new String(request.getPayload().array(), StandardCharsets.UTF_8));
+        return new InvokeResult().withStatusCode(202);
+    }
+
+    /**
+     * Set whether the invocations are throttled.
+     *
+     * @param throttled true to throttle the invocations
+     */
+    public void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+    }
+
+    /**
+     * Get the payloads of the successful invocations.
+     *
+     * @return the payloads
+     */
+    public List<String> getPayloads() {
+        return payloads;
+    }
+
+    /**
+     * Get the number of invocations, successful or not.
+     *
+     * @return the number of invocations
+     */
+    public int getInvocations() {
+        return invocations.get();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.benchmark;
+
+import com.appirio.service.billingaccount.api.ChallengeBudget;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmark of the sum of the locked and consumed amounts of the challenge budgets of a billing account, with the
+ * boxed Float arithmetic rounded through Math.round(f * 100) against the long cents arithmetic.
+ *
+ * <p>
+ * Run it with the test classpath, for example:
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=com.appirio.service.test.benchmark.BudgetArithmeticBenchmark
+ * </p>
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BudgetArithmeticBenchmark {
+    /**
+     * The number of challenges of the billing account
+     */
+    @Param({ "100", "10000" })
+    private int challenges;
+
+    /**
+     * The challenge budgets with Float amounts
+     */
+    private List<FloatBudget> floatBudgets;
+
+    /**
+     * The challenge budgets with cents amounts
+     */
+    private List<ChallengeBudget> centsBudgets;
+
+    /**
+     * A challenge budget with Float amounts
+     */
+    private static class FloatBudget {
+        /**
+         * The locked amount
+         */
+        private final Float lockedAmount;
+
+        /**
+         * The consumed amount
+         */
+        private final Float consumedAmount;
+
+        /**
+         * Create the instance
+         *
+         * @param lockedAmount the locked amount
+         * @param consumedAmount the consumed amount
+         */
+        FloatBudget(Float lockedAmount, Float consumedAmount) {
+            this.lockedAmount = lockedAmount;
+            this.consumedAmount = consumedAmount;
+        }
+    }
+
+    /**
+     * Create the challenge budgets
+     */
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        floatBudgets = new ArrayList<>(challenges);
+        centsBudgets = new ArrayList<>(challenges);
+        for (int i = 0; i < challenges; i++) {
+            long locked = random.nextInt(1000000);
+            long consumed = random.nextInt(1000000);
+            floatBudgets.add(new FloatBudget(locked / 100f, consumed / 100f));
+            centsBudgets.add(new ChallengeBudget(String.valueOf(i), locked, consumed));
+        }
+    }
+
+    /**
+     * Sum the amounts with the boxed Float arithmetic
+     *
+     * @return the sum
+     */
+    @Benchmark
+    public Float floatSum() {
+        Float sum = 0f;
+        for (FloatBudget cb : floatBudgets) {
+            if (cb.consumedAmount != null && cb.consumedAmount.compareTo(0f) != 0) {
+                sum = floatAdd(sum, cb.consumedAmount);
+            }
+            if (cb.lockedAmount != null && cb.lockedAmount.compareTo(0f) != 0) {
+                sum = floatAdd(sum, cb.lockedAmount);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Sum the amounts with the long cents arithmetic
+     *
+     * @return the sum
+     */
+    @Benchmark
+    public long centsSum() {
+        long sum = 0;
+        for (ChallengeBudget cb : centsBudgets) {
+            sum += cb.getLockedCents() + cb.getConsumedCents();
+        }
+        return sum;
+    }
+
+    /**
+     * Add two Float values with 2 decimal precision, as the budget path did before the cents arithmetic
+     *
+     * @param f1 the first value
+     * @param f2 the second value
+     * @return the sum
+     */
+    private static Float floatAdd(Float f1, Float f2) {
+        return Math.round((f1 * 100 + f2 * 100)) / 100f;
+    }
+
+    /**
+     * Run the benchmark
+     *
+     * @param args the arguments
+     * @throws RunnerException if the benchmark fails
+     */
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BudgetArithmeticBenchmark.class.getSimpleName()).build()).run();
+    }
+}
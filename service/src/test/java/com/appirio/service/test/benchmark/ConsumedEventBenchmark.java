@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.benchmark;
+
+import com.appirio.service.billingaccount.api.Cents;
+import com.appirio.service.billingaccount.api.ChallengeConsumedEvent;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmark of the build of the challenge-ba-consumed event stored in the outbox, with the two org.json JSONObject
+ * maps the consume path used before against the ChallengeConsumedEvent streaming writer, then of its encoding to the
+ * bytes sent by the OutboxRelay. Run it with -prof gc to compare the allocations too.
+ *
+ * <p>
+ * Run it with the test classpath, for example:
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=com.appirio.service.test.benchmark.ConsumedEventBenchmark
+ * </p>
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsumedEventBenchmark {
+    /**
+     * The billing account id
+     */
+    private long billingAccountId = 1234L;
+
+    /**
+     * The challenge id
+     */
+    private String challengeId = "30054321";
+
+    /**
+     * The consumed amount, in cents
+     */
+    private long consumeCents = 123456L;
+
+    /**
+     * The markup
+     */
+    private Float markup = 0.45f;
+
+    /**
+     * The event stored in the outbox
+     */
+    private String event = new ChallengeConsumedEvent(billingAccountId, challengeId, consumeCents, markup).toJson();
+
+    /**
+     * Build the event with the JSONObject maps
+     *
+     * @return the event
+     */
+    @Benchmark
+    public String jsonObject() {
+        JSONObject json = new JSONObject();
+        json.put("source", "tc-billing-account-service");
+        json.put("publisher", "tc-billing-account-service.api");
+        json.put("eventType", "challenge-ba-consumed");
+        json.put("payloadType", "challenge-ba-consumed");
+        json.put("payloadVersion", 1);
+
+        JSONObject payload = new JSONObject();
+        payload.put("billingAccountId", billingAccountId);
+        payload.put("actualSpent", Cents.toAmount(consumeCents));
+        payload.put("challengeId", challengeId);
+        payload.put("markup", markup);
+        json.put("payload", payload);
+
+        return json.toString();
+    }
+
+    /**
+     * Build the event with the streaming writer, as the consume path does
+     *
+     * @return the event
+     */
+    @Benchmark
+    public String streaming() {
+        return new ChallengeConsumedEvent(billingAccountId, challengeId, consumeCents, markup).toJson();
+    }
+
+    /**
+     * Encode the stored event to the payload sent by the relay
+     *
+     * @return the payload
+     */
+    @Benchmark
+    public byte[] encode() {
+        return event.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Run the benchmark
+     *
+     * @param args the arguments
+     * @throws RunnerException if the benchmark fails
+     */
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ConsumedEventBenchmark.class.getSimpleName()).build()).run();
+    }
+}
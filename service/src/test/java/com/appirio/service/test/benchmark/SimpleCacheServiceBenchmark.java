@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.benchmark;
+
+import com.appirio.service.billingaccount.manager.SimpleCacheService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmark of the expiring put and the get of SimpleCacheService filled with 1M values, against the timer task per
+ * value the cache used before, which kept a task and its key in the map next to each value.
+ *
+ * <p>
+ * Run it with the test classpath, for example:
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=com.appirio.service.test.benchmark.SimpleCacheServiceBenchmark
+ * </p>
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimpleCacheServiceBenchmark {
+    /**
+     * The number of cached values
+     */
+    @Param("1000000")
+    private int entries;
+
+    /**
+     * The cache keys
+     */
+    private String[] keys;
+
+    /**
+     * The cache with the expiry kept with the values
+     */
+    private SimpleCacheService cache;
+
+    /**
+     * The cache with a timer task per value
+     */
+    private TimerCache timerCache;
+
+    /**
+     * The cache with a timer task per value, as SimpleCacheService was before
+     */
+    private static class TimerCache {
+        /**
+         * The values and the expire tasks
+         */
+        private final Map<String, Object> cache = new ConcurrentHashMap<String, Object>();
+
+        /**
+         * The timer
+         */
+        private final Timer timer = new Timer(true);
+
+        /**
+         * Put the key and value, replacing the expire task
+         *
+         * @param key the key to use
+         * @param value the value
+         * @param expirySeconds the expirySeconds to use
+         */
+        void put(String key, Object value, int expirySeconds) {
+            cache.put(key, value);
+            String taskKey = "ExpireTask-" + key;
+            TimerTask oldTask = (TimerTask) cache.remove(taskKey);
+            if (oldTask != null) {
+                oldTask.cancel();
+            }
+            TimerTask task = new TimerTask() {
+                @Override
+                public void run() {
+                    cache.remove(key);
+                    cache.remove(taskKey);
+                }
+            };
+            timer.schedule(task, expirySeconds * 1000L);
+            cache.put(taskKey, task);
+        }
+
+        /**
+         * Get the value
+         *
+         * @param key the key to use
+         * @return the cached value
+         */
+        Object get(String key) {
+            return cache.get(key);
+        }
+    }
+
+    /**
+     * Fill the caches
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        keys = new String[entries];
+        cache = new SimpleCacheService();
+        timerCache = new TimerCache();
+        for (int i = 0; i < entries; i++) {
+            keys[i] = "AVAILABLE_BUDGET_" + i;
+            cache.put(keys[i], i, 600);
+            timerCache.put(keys[i], i, 600);
+        }
+    }
+
+    /**
+     * Stop the timer
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        timerCache.timer.cancel();
+    }
+
+    /**
+     * Get a random key
+     *
+     * @return the key
+     */
+    private String key() {
+        return keys[ThreadLocalRandom.current().nextInt(entries)];
+    }
+
+    /**
+     * Put a value with an expiry into SimpleCacheService
+     */
+    @Benchmark
+    public void put() {
+        cache.put(key(), Boolean.TRUE, 600);
+    }
+
+    /**
+     * Put a value with an expiry into the timer cache
+     */
+    @Benchmark
+    public void timerPut() {
+        timerCache.put(key(), Boolean.TRUE, 600);
+    }
+
+    /**
+     * Get a value from SimpleCacheService
+     *
+     * @return the value
+     */
+    @Benchmark
+    public Object get() {
+        return cache.get(key());
+    }
+
+    /**
+     * Get a value from the timer cache
+     *
+     * @return the value
+     */
+    @Benchmark
+    public Object timerGet() {
+        return timerCache.get(key());
+    }
+
+    /**
+     * Run the benchmark
+     *
+     * @param args the arguments
+     * @throws RunnerException if the benchmark fails
+     */
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SimpleCacheServiceBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -8,33 +8,48 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyFloat;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.appirio.service.billingaccount.api.AvailableBudget;
 import com.appirio.service.billingaccount.api.BillingAccount;
+import com.appirio.service.billingaccount.api.BillingAccountBudget;
 import com.appirio.service.billingaccount.api.BillingAccountFees;
 import com.appirio.service.billingaccount.api.BillingAccountUser;
+import com.appirio.service.billingaccount.api.BudgetHeadroom;
+import com.appirio.service.billingaccount.api.BudgetOperation;
+import com.appirio.service.billingaccount.api.BudgetTotal;
+import com.appirio.service.billingaccount.api.BudgetTransfer;
+import com.appirio.service.billingaccount.api.Cents;
+import com.appirio.service.billingaccount.api.ChallengeBudget;
 import com.appirio.service.billingaccount.api.ChallengeFee;
 import com.appirio.service.billingaccount.api.ChallengeFeePercentage;
 import com.appirio.service.billingaccount.api.ChallengeType;
-import com.appirio.service.billingaccount.api.HarmonyPublisher;
+import com.appirio.service.billingaccount.api.ConsumeAmountDTO;
 import com.appirio.service.billingaccount.api.IdDTO;
+import com.appirio.service.billingaccount.api.IdempotencyRecord;
 import com.appirio.service.billingaccount.api.IdSequence;
+import com.appirio.service.billingaccount.api.LockAmountDTO;
+import com.appirio.service.billingaccount.api.LockExpiry;
 import com.appirio.service.billingaccount.api.PaymentTermsDTO;
 import com.appirio.service.billingaccount.dao.BillingAccountDAO;
 import com.appirio.service.billingaccount.dao.SequenceDAO;
 import com.appirio.service.billingaccount.dto.TCUserDTO;
 import com.appirio.service.billingaccount.manager.BillingAccountManager;
+import com.appirio.service.billingaccount.manager.IdempotencyStore;
 import com.appirio.service.test.BaseTest;
 import com.appirio.supply.SupplyException;
 import com.appirio.supply.dataaccess.QueryResult;
@@ -42,8 +57,15 @@ import com.appirio.supply.dataaccess.db.IdGenerator;
 import com.appirio.tech.core.api.v3.request.QueryParameter;
 
 import org.junit.Test;
+import org.mockito.InOrder;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.exceptions.TransactionFailedException;
 
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -80,16 +102,11 @@ public class BillingAccountManagerTest extends BaseTest {
      */
     private SequenceDAO sequenceDAO = mock(SequenceDAO.class);
 
-    /**
-     * The Harmony publisher used for testing.
-     */
-    private HarmonyPublisher publisher = mock(HarmonyPublisher.class);
-
     /**
      * Manager being tested
      */
     private BillingAccountManager unit = new BillingAccountManager(billingAccountDAO, generator, generator,
-        sequenceDAO, publisher);
+        sequenceDAO);
 
     /**
      * Test BillingAccountManager.searchBillingAccounts to find all billing accounts in persistence.
@@ -1090,6 +1107,1067 @@ public class BillingAccountManagerTest extends BaseTest {
         }
     }
 
+    /**
+     * Test BillingAccountManager.lockAmount when the budget has enough headroom.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmount() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.reserveLockedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(1);
+
+        BigDecimal result = unit.lockAmount(1L, "c1", 10000L, null, null);
+
+        assertEquals(Cents.toAmount(10000), result);
+        verify(billingAccountDAO).upsertChallengeBudget(1L, "c1", Cents.toAmount(10000), BigDecimal.ZERO);
+        verify(billingAccountDAO, times(0)).createBudgetTotal(anyLong());
+        verify(billingAccountDAO, times(0)).getProjectChallengeBudget(anyLong());
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmount creates the running totals of a billing account which has none yet.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmount_NoBudgetTotal() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.reserveLockedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(0, 1);
+        when(billingAccountDAO.createBudgetTotal(1L)).thenReturn(1);
+
+        BigDecimal result = unit.lockAmount(1L, "c1", 10000L, null, null);
+
+        assertEquals(Cents.toAmount(10000), result);
+        verify(billingAccountDAO, times(2)).reserveLockedTotal(1L, "c1", Cents.toAmount(10000));
+        verify(billingAccountDAO).createLedgerEntry(1L, "c1", "LOCK", Cents.toAmount(10000), BigDecimal.ZERO);
+        verify(billingAccountDAO).upsertChallengeBudget(1L, "c1", Cents.toAmount(10000), BigDecimal.ZERO);
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmount with a time to live, the expiry of the lock is saved.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmount_WithTtl() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.reserveLockedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(1);
+
+        unit.lockAmount(1L, "c1", 10000L, 3600, null);
+
+        verify(billingAccountDAO).upsertLockExpiry(1L, "c1", 3600);
+        verify(billingAccountDAO, times(0)).deleteLockExpiry(anyLong(), anyString());
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmount with a time to live not positive.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmount_InvalidTtl() throws Exception {
+        try {
+            unit.lockAmount(1L, "c1", 10000L, 0, null);
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.getStatusCode());
+        }
+        verify(billingAccountDAO, times(0)).reserveLockedTotal(anyLong(), anyString(), anyObject());
+    }
+
+    /**
+     * Test BillingAccountManager.releaseExpiredLocks releases the expired locks, and skips the locks renewed meanwhile.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testReleaseExpiredLocks() throws Exception {
+        mockTransaction();
+        Date expiry = new Date(System.currentTimeMillis() - 1000);
+        when(billingAccountDAO.getExpiredLocks(10)).thenReturn(Arrays.asList(new LockExpiry(1L, "c1", expiry),
+            new LockExpiry(1L, "c2", expiry)));
+        when(billingAccountDAO.deleteExpiredLock(1L, "c1")).thenReturn(1);
+        when(billingAccountDAO.deleteExpiredLock(1L, "c2")).thenReturn(0);
+        when(billingAccountDAO.getBudgetTotal(1L)).thenReturn(new BudgetTotal(50000L, 10000L, 500L, 3L));
+        when(billingAccountDAO.getChallengeBudgets(anyLong(), anyObject())).thenReturn(new ArrayList<>(Arrays.asList(
+            new ChallengeBudget("c1", 10000L, 500L, 7L))));
+        when(billingAccountDAO.addBudgetTotal(1L, Cents.toAmount(-10000), BigDecimal.ZERO, 3L)).thenReturn(1);
+        when(billingAccountDAO.updateConsumedAmountsForChallengeids(anyLong(), anyObject(), anyObject(), anyObject(),
+            anyObject())).thenReturn(new int[] {1});
+
+        assertEquals(2, unit.releaseExpiredLocks(10));
+
+        verify(billingAccountDAO).createLedgerEntry(1L, "c1", "RELEASE", BigDecimal.ZERO, Cents.toAmount(500));
+        verify(billingAccountDAO).updateConsumedAmountsForChallengeids(1L, Arrays.asList("c1"), Arrays.asList(BigDecimal.ZERO),
+            Arrays.asList(Cents.toAmount(500)), Arrays.asList(7L));
+        verify(billingAccountDAO).addBudgetTotal(1L, Cents.toAmount(-10000), BigDecimal.ZERO, 3L);
+        verify(billingAccountDAO, times(1)).updateConsumedAmountsForChallengeids(anyLong(), anyObject(), anyObject(),
+            anyObject(), anyObject());
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmount when the billing account does not exist.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmount_NotExistBillingAccount() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.reserveLockedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(0);
+        when(billingAccountDAO.createBudgetTotal(1L)).thenReturn(0);
+
+        try {
+            unit.lockAmount(1L, "c1", 10000L, null, null);
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.getStatusCode());
+            assertTrue(e.getMessage().startsWith("Couldn't find billing account"));
+        }
+        verify(billingAccountDAO, times(0)).upsertChallengeBudget(anyLong(), anyString(), anyObject(), anyObject());
+    }
+
+    /**
+     * Test BillingAccountManager.getAvailableBudget, the second read is served from the cache.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testGetAvailableBudget() throws Exception {
+        when(billingAccountDAO.getLedgerBalance(1L)).thenReturn(new BudgetTotal(50000L, 30000L, 5000L));
+
+        AvailableBudget result = unit.getAvailableBudget(1L);
+        unit.getAvailableBudget(1L);
+
+        assertEquals(1L, result.getBillingAccountId().longValue());
+        assertEquals(50000L, result.getBudgetCents());
+        assertEquals(30000L, result.getLockedCents());
+        assertEquals(5000L, result.getConsumedCents());
+        assertEquals(15000L, result.getAvailableCents());
+        verify(billingAccountDAO, times(1)).getLedgerBalance(1L);
+    }
+
+    /**
+     * Test BillingAccountManager.getAvailableBudget after a lock of the billing account, the cached budget is removed.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testGetAvailableBudget_AfterLock() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.getLedgerBalance(1L)).thenReturn(new BudgetTotal(50000L, 30000L, 5000L),
+            new BudgetTotal(50000L, 40000L, 5000L));
+        when(billingAccountDAO.reserveLockedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(1);
+
+        unit.getAvailableBudget(1L);
+        unit.lockAmount(1L, "c1", 10000L, null, null);
+        AvailableBudget result = unit.getAvailableBudget(1L);
+
+        assertEquals(5000L, result.getAvailableCents());
+        verify(billingAccountDAO, times(2)).getLedgerBalance(1L);
+    }
+
+    /**
+     * Test BillingAccountManager.getAvailableBudget when the billing account does not exist.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testGetAvailableBudget_NotExistBillingAccount() throws Exception {
+        try {
+            unit.getAvailableBudget(1L);
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.getStatusCode());
+        }
+    }
+
+    /**
+     * Test BillingAccountManager.transferAmount moves the budget after locking both running totals in ascending
+     * billing account id order.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testTransferAmount() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.bumpBudgetVersion(anyLong())).thenReturn(1);
+        when(billingAccountDAO.getBillingAccountClient(anyLong())).thenReturn(new IdDTO(7L));
+        when(billingAccountDAO.addBudgetAmount(eq(2L), eq(Cents.toAmount(-10000)), anyString())).thenReturn(1);
+        when(billingAccountDAO.addBudgetAmount(eq(1L), eq(Cents.toAmount(10000)), anyString())).thenReturn(1);
+        when(billingAccountDAO.getBudgetTotal(2L)).thenReturn(new BudgetTotal(40000L, 5000L, 0L));
+        when(billingAccountDAO.getBudgetTotal(1L)).thenReturn(new BudgetTotal(60000L, 0L, 0L));
+
+        BudgetTransfer result = unit.transferAmount(createUser("3"), 2L, 1L, 10000L);
+
+        assertEquals(10000L, result.getAmountCents());
+        assertEquals(35000L, result.getFrom().getAvailableCents());
+        assertEquals(60000L, result.getTo().getBudgetCents());
+        InOrder inOrder = inOrder(billingAccountDAO);
+        inOrder.verify(billingAccountDAO).bumpBudgetVersion(1L);
+        inOrder.verify(billingAccountDAO).bumpBudgetVersion(2L);
+        inOrder.verify(billingAccountDAO).addBudgetAmount(eq(2L), eq(Cents.toAmount(-10000)), anyString());
+        inOrder.verify(billingAccountDAO).addBudgetAmount(eq(1L), eq(Cents.toAmount(10000)), anyString());
+    }
+
+    /**
+     * Test BillingAccountManager.transferAmount rolls back the transfer when the budget of the billing account
+     * receiving the amount is not updated.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testTransferAmount_DestinationNotUpdated() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.bumpBudgetVersion(anyLong())).thenReturn(1);
+        when(billingAccountDAO.getBillingAccountClient(anyLong())).thenReturn(new IdDTO(7L));
+        when(billingAccountDAO.addBudgetAmount(eq(2L), eq(Cents.toAmount(-10000)), anyString())).thenReturn(1);
+        when(billingAccountDAO.addBudgetAmount(eq(1L), eq(Cents.toAmount(10000)), anyString())).thenReturn(0);
+
+        try {
+            unit.transferAmount(createUser("3"), 2L, 1L, 10000L);
+            fail("The transfer should be rolled back");
+        } catch (SupplyException e) {
+            assertEquals(409, e.getStatusCode());
+        }
+        verify(billingAccountDAO, times(0)).getBudgetTotal(anyLong());
+    }
+
+    /**
+     * Test BillingAccountManager.transferAmount when the budget left would not cover the locked and consumed amounts.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testTransferAmount_InsufficientBudget() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.bumpBudgetVersion(anyLong())).thenReturn(1);
+        when(billingAccountDAO.getBillingAccountClient(anyLong())).thenReturn(new IdDTO(7L));
+        when(billingAccountDAO.getBudgetTotal(1L)).thenReturn(new BudgetTotal(50000L, 30000L, 15000L));
+
+        try {
+            unit.transferAmount(createUser("3"), 1L, 2L, 10000L);
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.getStatusCode());
+            assertTrue(e.getMessage().endsWith("Sum of all locked and consumed amount:450.00"));
+        }
+        verify(billingAccountDAO, times(0)).addBudgetAmount(eq(2L), anyObject(), anyString());
+    }
+
+    /**
+     * Test BillingAccountManager.transferAmount when the billing accounts belong to different clients.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testTransferAmount_DifferentClients() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.bumpBudgetVersion(anyLong())).thenReturn(1);
+        when(billingAccountDAO.getBillingAccountClient(1L)).thenReturn(new IdDTO(7L));
+        when(billingAccountDAO.getBillingAccountClient(2L)).thenReturn(new IdDTO(8L));
+
+        try {
+            unit.transferAmount(createUser("3"), 1L, 2L, 10000L);
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.getStatusCode());
+        }
+        verify(billingAccountDAO, times(0)).addBudgetAmount(anyLong(), anyObject(), anyString());
+    }
+
+    /**
+     * Test BillingAccountManager.transferAmount when the receiving billing account does not exist.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testTransferAmount_NotExistBillingAccount() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.bumpBudgetVersion(1L)).thenReturn(1);
+
+        try {
+            unit.transferAmount(createUser("3"), 1L, 2L, 10000L);
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.getStatusCode());
+        }
+        verify(billingAccountDAO, times(0)).addBudgetAmount(anyLong(), anyObject(), anyString());
+    }
+
+    /**
+     * Test BillingAccountManager.transferAmount with an invalid amount or the same billing account.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testTransferAmount_InvalidRequest() throws Exception {
+        try {
+            unit.transferAmount(createUser("3"), 1L, 2L, 0L);
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.getStatusCode());
+        }
+        try {
+            unit.transferAmount(createUser("3"), 1L, 1L, 10000L);
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.getStatusCode());
+        }
+        verify(billingAccountDAO, times(0)).inTransaction(any(Transaction.class));
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmount when the budget does not have enough headroom.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmount_InsufficientBudget() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.reserveLockedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(0);
+        when(billingAccountDAO.getBudgetHeadroom(1L)).thenReturn(new BudgetHeadroom(50000L, 30000L, 20000L, 5000L, 0L));
+        when(billingAccountDAO.getChallengeBudgets(anyLong(), anyObject())).thenReturn(new ArrayList<>(Arrays.asList(
+            new ChallengeBudget("c1", 5000L, 0L))));
+
+        try {
+            unit.lockAmount(1L, "c1", 10000L, null, null);
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.getStatusCode());
+            assertTrue(e.getMessage().startsWith("Insufficient Budget amount (500.00)"));
+            assertTrue(e.getMessage().endsWith("Sum of all locked and consumed amount:450.00"));
+        }
+        verify(billingAccountDAO, times(0)).upsertChallengeBudget(anyLong(), anyString(), anyObject(), anyObject());
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmount rejects the requests beyond the margin above the headroom cached by a
+     * rejection without database access, the requests below it or within the margin still take the check of the
+     * database.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmount_CachedHeadroom() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.reserveLockedTotal(eq(1L), anyString(), anyObject())).thenReturn(0);
+        when(billingAccountDAO.getBudgetHeadroom(1L)).thenReturn(new BudgetHeadroom(50000L, 30000L, 20000L, 5000L, 0L));
+        when(billingAccountDAO.getChallengeBudgets(anyLong(), anyObject())).thenReturn(new ArrayList<>());
+
+        // the cached headroom is 50.00, with a margin of 50.00
+        for (long lockCents : new long[] {10000L, 20000L, 5000L}) {
+            try {
+                unit.lockAmount(1L, "c2", lockCents, null, null);
+            } catch (SupplyException e) {
+                assertEquals(HttpServletResponse.SC_NOT_FOUND, e.getStatusCode());
+                assertTrue(e.getMessage().startsWith("Insufficient Budget amount (500.00)"));
+            }
+        }
+
+        verify(billingAccountDAO).reserveLockedTotal(1L, "c2", Cents.toAmount(10000));
+        verify(billingAccountDAO, times(0)).reserveLockedTotal(1L, "c2", Cents.toAmount(20000));
+        verify(billingAccountDAO).reserveLockedTotal(1L, "c2", Cents.toAmount(5000));
+        // the rejections of 100.00 and 50.00 only
+        verify(billingAccountDAO, times(2)).getBudgetHeadroom(1L);
+        verify(billingAccountDAO, times(2)).inTransaction(any(Transaction.class));
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmount updates the cached headroom from the running totals written by a
+     * successful lock, without reading the headroom from the database.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmount_HeadroomUpdated() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.reserveLockedTotal(1L, "c1", Cents.toAmount(40000))).thenReturn(0);
+        when(billingAccountDAO.reserveLockedTotal(1L, "c2", Cents.toAmount(5000))).thenReturn(1);
+        when(billingAccountDAO.reserveLockedTotal(1L, "c3", Cents.toAmount(30000))).thenReturn(1);
+        when(billingAccountDAO.getBudgetHeadroom(1L)).thenReturn(new BudgetHeadroom(50000L, 30000L, 0L, 10000L, 0L));
+        when(billingAccountDAO.getBudgetTotal(1L)).thenReturn(new BudgetTotal(50000L, 35000L, 0L));
+        when(billingAccountDAO.getChallengeBudgets(anyLong(), anyObject())).thenReturn(new ArrayList<>());
+
+        try {
+            unit.lockAmount(1L, "c1", 40000L, null, null);
+            fail("The lock above the headroom should be rejected");
+        } catch (SupplyException e) {
+            // expected, the cached headroom is 300.00
+        }
+        unit.lockAmount(1L, "c2", 5000L, null, null);
+
+        // the cached headroom is 250.00 now, with a margin of 50.00 for a budget raised by another node meanwhile
+        try {
+            unit.lockAmount(1L, "c3", 30001L, null, null);
+            fail("The lock beyond the margin should be rejected");
+        } catch (SupplyException e) {
+            assertTrue(e.getMessage().endsWith("Available amount at most:250.00"));
+        }
+        unit.lockAmount(1L, "c3", 30000L, null, null);
+
+        verify(billingAccountDAO, times(0)).reserveLockedTotal(1L, "c3", Cents.toAmount(30001));
+        verify(billingAccountDAO).reserveLockedTotal(1L, "c3", Cents.toAmount(30000));
+        verify(billingAccountDAO).getBudgetHeadroom(1L);
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmount when the challenge has multiple entries.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmount_MultipleEntries() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.reserveLockedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(0);
+        when(billingAccountDAO.getBudgetHeadroom(1L)).thenReturn(new BudgetHeadroom(50000L, 0L, 0L, 0L, 0L));
+        when(billingAccountDAO.getChallengeBudgets(anyLong(), anyObject())).thenReturn(new ArrayList<>(Arrays.asList(
+            new ChallengeBudget("c1", 0L, 0L), new ChallengeBudget("c1", 0L, 0L))));
+
+        try {
+            unit.lockAmount(1L, "c1", 10000L, null, null);
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.getStatusCode());
+            assertTrue(e.getMessage().startsWith("Multiple entries are found"));
+        }
+    }
+
+    /**
+     * Test BillingAccountManager.consumeAmount updates the running totals and writes the event to the outbox.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testConsumeAmount() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.reserveConsumedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(1);
+
+        BigDecimal result = unit.consumeAmount(1L, "c1", 10000L, 0.5f, null);
+
+        assertEquals(Cents.toAmount(10000), result);
+        verify(billingAccountDAO).upsertChallengeBudget(1L, "c1", BigDecimal.ZERO, Cents.toAmount(10000));
+        verify(billingAccountDAO).createLedgerEntry(1L, "c1", "CONSUME", BigDecimal.ZERO, Cents.toAmount(10000));
+        verify(billingAccountDAO).deleteLockExpiry(1L, "c1");
+        verify(billingAccountDAO).createOutboxEvent(eq(1L), anyString());
+    }
+
+    /**
+     * Test BillingAccountManager.consumeAmount when the budget does not have enough headroom.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testConsumeAmount_InsufficientBudget() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.reserveConsumedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(0);
+        when(billingAccountDAO.getBudgetHeadroom(1L)).thenReturn(new BudgetHeadroom(50000L, 30000L, 45000L, 30000L, 0L));
+        when(billingAccountDAO.getChallengeBudgets(anyLong(), anyObject())).thenReturn(new ArrayList<>());
+
+        try {
+            unit.consumeAmount(1L, "c1", 10000L, 0.5f, null);
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.getStatusCode());
+            assertTrue(e.getMessage().endsWith("Sum of all consumed amount:450.00"));
+        }
+        verify(billingAccountDAO, times(0)).createOutboxEvent(anyLong(), anyString());
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmount returns the stored result for a retry with the same Idempotency-Key.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmount_IdempotentRetry() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.reserveLockedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(1);
+
+        assertEquals(Cents.toAmount(10000), unit.lockAmount(1L, "c1", 10000L, null, "key1"));
+        assertEquals(Cents.toAmount(10000), unit.lockAmount(1L, "c1", 10000L, null, "key1"));
+
+        verify(billingAccountDAO, times(1)).reserveLockedTotal(1L, "c1", Cents.toAmount(10000));
+        verify(billingAccountDAO, times(1)).upsertChallengeBudget(1L, "c1", Cents.toAmount(10000), BigDecimal.ZERO);
+        verify(billingAccountDAO, times(0)).createIdempotencyRecord(anyString(), anyString(), anyObject());
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmount when the Idempotency-Key was used by a different request.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmount_IdempotencyKeyReused() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.reserveLockedTotal(anyLong(), anyString(), anyObject())).thenReturn(1);
+        unit.lockAmount(1L, "c1", 10000L, null, "key1");
+
+        try {
+            unit.lockAmount(1L, "c1", 20000L, null, "key1");
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_CONFLICT, e.getStatusCode());
+        }
+        verify(billingAccountDAO, times(1)).reserveLockedTotal(anyLong(), anyString(), anyObject());
+    }
+
+    /**
+     * Test BillingAccountManager.consumeAmount does not consume nor write the event again for a retry with the same
+     * Idempotency-Key.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testConsumeAmount_IdempotentRetry() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.reserveConsumedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(1);
+
+        assertEquals(Cents.toAmount(10000), unit.consumeAmount(1L, "c1", 10000L, 0.5f, "key1"));
+        assertEquals(Cents.toAmount(10000), unit.consumeAmount(1L, "c1", 10000L, 0.5f, "key1"));
+
+        verify(billingAccountDAO, times(1)).upsertChallengeBudget(1L, "c1", BigDecimal.ZERO, Cents.toAmount(10000));
+        verify(billingAccountDAO, times(1)).createOutboxEvent(eq(1L), anyString());
+    }
+
+    /**
+     * Test BillingAccountManager.consumeAmount saves the Idempotency-Key in the database and finds the requests
+     * completed by another node.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testConsumeAmount_PersistentIdempotency() throws Exception {
+        unit = new BillingAccountManager(billingAccountDAO, generator, generator, sequenceDAO,
+            new IdempotencyStore(10, 60, true));
+        mockTransaction();
+        when(billingAccountDAO.reserveConsumedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(1);
+
+        unit.consumeAmount(1L, "c1", 10000L, 0.5f, "key1");
+        verify(billingAccountDAO).createIdempotencyRecord("consume-amount:1:key1", "c1", Cents.toAmount(10000));
+
+        when(billingAccountDAO.getIdempotencyRecord("consume-amount:1:key2", 60)).thenReturn(
+            new IdempotencyRecord("c1", 10000L));
+        assertEquals(Cents.toAmount(10000), unit.consumeAmount(1L, "c1", 10000L, 0.5f, "key2"));
+
+        verify(billingAccountDAO, times(1)).reserveConsumedTotal(anyLong(), anyString(), anyObject());
+        verify(billingAccountDAO, times(1)).createOutboxEvent(eq(1L), anyString());
+    }
+
+    /**
+     * Test BillingAccountManager.populateChallengeBudgets uses the running totals for the available budget.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testPopulateChallengeBudgets() throws Exception {
+        BillingAccount billingAccount = getListQueryResult().getData().get(0);
+        when(billingAccountDAO.getProjectChallengeBudget(billingAccount.getId())).thenReturn(new ArrayList<>(
+            Arrays.asList(new ChallengeBudget("c1", 10000L, 5000L))));
+        when(billingAccountDAO.getBudgetTotal(billingAccount.getId())).thenReturn(new BudgetTotal(50000L, 10000L, 5000L));
+
+        BillingAccountBudget result = unit.populateChallengeBudgets(billingAccount);
+
+        assertEquals(35000L, (long) result.getAvailableCents());
+        assertEquals(1, result.getChallengeBudgets().size());
+    }
+
+    /**
+     * Test BillingAccountManager.populateChallengeBudgets with a page of challenge budgets.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testPopulateChallengeBudgets_Page() throws Exception {
+        BillingAccount billingAccount = getListQueryResult().getData().get(0);
+        when(billingAccountDAO.getProjectChallengeBudgetPage(billingAccount.getId(), "c1", 3)).thenReturn(
+            new ArrayList<>(Arrays.asList(new ChallengeBudget("c2", 10000L, 0L), new ChallengeBudget("c3", 0L, 5000L),
+                new ChallengeBudget("c4", 100L, 0L))));
+        when(billingAccountDAO.getBudgetTotal(billingAccount.getId())).thenReturn(new BudgetTotal(50000L, 10100L, 5000L));
+
+        BillingAccountBudget result = unit.populateChallengeBudgets(billingAccount, true, "c1", 2);
+
+        assertEquals(2, result.getChallengeBudgets().size());
+        assertEquals("c3", result.getNextChallengeId());
+        assertEquals(34900L, (long) result.getAvailableCents());
+        verify(billingAccountDAO, times(0)).getProjectChallengeBudget(anyLong());
+    }
+
+    /**
+     * Test BillingAccountManager.populateChallengeBudgets with only the aggregates.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testPopulateChallengeBudgets_AggregatesOnly() throws Exception {
+        BillingAccount billingAccount = getListQueryResult().getData().get(0);
+        when(billingAccountDAO.getBudgetTotal(billingAccount.getId())).thenReturn(null,
+            new BudgetTotal(50000L, 10000L, 5000L));
+        when(billingAccountDAO.createBudgetTotal(billingAccount.getId())).thenReturn(1);
+
+        BillingAccountBudget result = unit.populateChallengeBudgets(billingAccount, false, null, null);
+
+        assertEquals(null, result.getChallengeBudgets());
+        assertEquals(35000L, (long) result.getAvailableCents());
+        verify(billingAccountDAO, times(0)).getProjectChallengeBudget(anyLong());
+        verify(billingAccountDAO, times(0)).getProjectChallengeBudgetPage(anyLong(), anyString(), anyInt());
+    }
+
+    /**
+     * Test BillingAccountManager.populateChallengeBudgets with an invalid page size.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testPopulateChallengeBudgets_InvalidLimit() throws Exception {
+        BillingAccount billingAccount = getListQueryResult().getData().get(0);
+
+        try {
+            unit.populateChallengeBudgets(billingAccount, true, null, BillingAccountManager.MAX_CHALLENGE_BUDGETS_LIMIT + 1);
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.getStatusCode());
+        }
+    }
+
+    /**
+     * Test BillingAccountManager.writeChallengeBudgets streams the challenge budgets and closes the iterator.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testWriteChallengeBudgets() throws Exception {
+        ResultIterator<ChallengeBudget> iterator = mock(ResultIterator.class);
+        when(iterator.hasNext()).thenReturn(true, true, false);
+        when(iterator.next()).thenReturn(new ChallengeBudget("c1", 1999L, 0L), new ChallengeBudget("c2", 0L, 5L));
+        when(billingAccountDAO.iterateProjectChallengeBudget(1L)).thenReturn(iterator);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        unit.writeChallengeBudgets(1L, out);
+
+        assertEquals("[{\"challengeId\":\"c1\",\"lockedAmount\":19.99,\"consumedAmount\":0.00},"
+            + "{\"challengeId\":\"c2\",\"lockedAmount\":0.00,\"consumedAmount\":0.05}]", out.toString("UTF-8"));
+        verify(iterator).close();
+    }
+
+    /**
+     * Test BillingAccountManager.enqueueConsumeAmount queues the request without consuming it.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testEnqueueConsumeAmount() throws Exception {
+        when(billingAccountDAO.getBudgetTotal(1L)).thenReturn(new BudgetTotal(50000L, 0L, 0L));
+
+        BudgetOperation result = unit.enqueueConsumeAmount(1L, "c1", 10000L, 0.5f, null);
+
+        assertEquals(BudgetOperation.PENDING, result.getStatus());
+        assertEquals(10000L, result.getConsumeCents());
+        verify(billingAccountDAO).createOperation(result.getOperationId(), 1L, "c1", Cents.toAmount(10000), 0.5f, null);
+        verify(billingAccountDAO, times(0)).reserveConsumedTotal(anyLong(), anyString(), anyObject());
+    }
+
+    /**
+     * Test BillingAccountManager.enqueueConsumeAmount with the Idempotency-Key of a queued request.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testEnqueueConsumeAmount_IdempotentRetry() throws Exception {
+        BudgetOperation queued = new BudgetOperation();
+        queued.setOperationId("op1");
+        queued.setChallengeId("c1");
+        queued.setConsumeCents(10000L);
+        when(billingAccountDAO.getOperationByKey(1L, "key1")).thenReturn(queued);
+
+        assertEquals("op1", unit.enqueueConsumeAmount(1L, "c1", 10000L, 0.5f, "key1").getOperationId());
+        try {
+            unit.enqueueConsumeAmount(1L, "c1", 20000L, 0.5f, "key1");
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_CONFLICT, e.getStatusCode());
+        }
+        verify(billingAccountDAO, times(0)).createOperation(anyString(), anyLong(), anyString(), anyObject(),
+            anyFloat(), anyString());
+    }
+
+    /**
+     * Test BillingAccountManager.enqueueConsumeAmount when the billing account does not exist.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testEnqueueConsumeAmount_NotExistBillingAccount() throws Exception {
+        try {
+            unit.enqueueConsumeAmount(1L, "c1", 10000L, 0.5f, null);
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.getStatusCode());
+        }
+    }
+
+    /**
+     * Test BillingAccountManager.processOperation completes the operation in the transaction of its budget writes.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testProcessOperation() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.claimOperation("op1", "w1", 300)).thenReturn(1);
+        when(billingAccountDAO.reserveConsumedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(1);
+        when(billingAccountDAO.completeOperation("op1", "w1", BudgetOperation.COMPLETED, 200, null)).thenReturn(1);
+
+        assertTrue(unit.processOperation(createOperation(0), "w1", 300, 5));
+
+        InOrder order = inOrder(billingAccountDAO);
+        order.verify(billingAccountDAO).upsertChallengeBudget(1L, "c1", BigDecimal.ZERO, Cents.toAmount(10000));
+        order.verify(billingAccountDAO).completeOperation("op1", "w1", BudgetOperation.COMPLETED, 200, null);
+        verify(billingAccountDAO, times(0)).getBudgetHeadroom(1L);
+        verify(billingAccountDAO).createOutboxEvent(eq(1L), anyString());
+        verify(billingAccountDAO, times(0)).createIdempotencyRecord(anyString(), anyString(), anyObject());
+    }
+
+    /**
+     * Test BillingAccountManager.processOperation when the operation is claimed by another worker.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testProcessOperation_Claimed() throws Exception {
+        when(billingAccountDAO.claimOperation("op1", "w1", 300)).thenReturn(0);
+
+        assertFalse(unit.processOperation(createOperation(0), "w1", 300, 5));
+
+        verify(billingAccountDAO, times(0)).reserveConsumedTotal(anyLong(), anyString(), anyObject());
+    }
+
+    /**
+     * Test BillingAccountManager.processOperation when the lease was taken over during the transaction, the budget
+     * writes are rolled back and the operation is left to the new owner of the lease.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testProcessOperation_LeaseLost() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.claimOperation("op1", "w1", 300)).thenReturn(1);
+        when(billingAccountDAO.reserveConsumedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(1);
+        when(billingAccountDAO.completeOperation("op1", "w1", BudgetOperation.COMPLETED, 200, null)).thenReturn(0);
+
+        assertTrue(unit.processOperation(createOperation(0), "w1", 300, 5));
+
+        verify(billingAccountDAO, times(0)).getBudgetHeadroom(1L);
+        verify(billingAccountDAO, times(0)).retryOperation(anyString(), anyString());
+        verify(billingAccountDAO, times(0)).completeOperation(anyString(), anyString(), eq(BudgetOperation.FAILED),
+                anyInt(), anyString());
+    }
+
+    /**
+     * Test BillingAccountManager.processOperation when the budget is insufficient, the operation fails.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testProcessOperation_Rejected() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.claimOperation("op1", "w1", 300)).thenReturn(1);
+        when(billingAccountDAO.reserveConsumedTotal(1L, "c1", Cents.toAmount(10000))).thenReturn(0);
+        when(billingAccountDAO.getBudgetHeadroom(1L)).thenReturn(new BudgetHeadroom(5000L, 0L, 0L, 0L, 0L));
+        when(billingAccountDAO.getChallengeBudgets(anyLong(), anyObject())).thenReturn(new ArrayList<>());
+
+        unit.processOperation(createOperation(0), "w1", 300, 5);
+
+        verify(billingAccountDAO).completeOperation(eq("op1"), eq("w1"), eq(BudgetOperation.FAILED), eq(404),
+                anyString());
+    }
+
+    /**
+     * Test BillingAccountManager.processOperation on an unexpected error, the operation is queued again until its
+     * last attempt.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testProcessOperation_Retry() throws Exception {
+        when(billingAccountDAO.claimOperation("op1", "w1", 300)).thenReturn(1);
+        when(billingAccountDAO.inTransaction(any(Transaction.class))).thenThrow(new IllegalStateException("down"));
+
+        unit.processOperation(createOperation(0), "w1", 300, 2);
+        verify(billingAccountDAO).retryOperation("op1", "w1");
+
+        unit.processOperation(createOperation(1), "w1", 300, 2);
+        verify(billingAccountDAO).completeOperation("op1", "w1", BudgetOperation.FAILED, 500, "down");
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmounts locks all the amounts with batches.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmounts() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.getBudgetTotal(1L)).thenReturn(new BudgetTotal(50000L, 15000L, 15000L, 2L));
+        when(billingAccountDAO.getChallengeBudgets(anyLong(), anyObject())).thenReturn(new ArrayList<>(Arrays.asList(
+            new ChallengeBudget("c1", 5000L, 0L, 4L))));
+        when(billingAccountDAO.addBudgetTotal(1L, Cents.toAmount(20000), Cents.toAmount(0), 2L)).thenReturn(1);
+        when(billingAccountDAO.updateConsumedAmountsForChallengeids(anyLong(), anyObject(), anyObject(), anyObject(),
+            anyObject())).thenReturn(new int[] {1});
+
+        List<LockAmountDTO> result = unit.lockAmounts(1L,
+            Arrays.asList(new LockAmountDTO(10000L, "c1"), new LockAmountDTO(15000L, "c2")));
+
+        assertEquals(2, result.size());
+        assertEquals("c1", result.get(0).getChallengeId());
+        assertEquals(10000L, (long) result.get(0).getLockCents());
+        assertEquals("c2", result.get(1).getChallengeId());
+        verify(billingAccountDAO).createLockedAmounts(1L, Arrays.asList("c2"), Arrays.asList(Cents.toAmount(15000)),
+            Arrays.asList(BigDecimal.ZERO));
+        verify(billingAccountDAO).updateConsumedAmountsForChallengeids(1L, Arrays.asList("c1"), Arrays.asList(Cents.toAmount(10000)),
+            Arrays.asList(BigDecimal.ZERO), Arrays.asList(4L));
+        verify(billingAccountDAO).addBudgetTotal(1L, Cents.toAmount(20000), Cents.toAmount(0), 2L);
+        verify(billingAccountDAO).createLedgerEntries(1L, Arrays.asList("c1", "c2"), "LOCK",
+            Arrays.asList(Cents.toAmount(10000), Cents.toAmount(15000)), Arrays.asList(BigDecimal.ZERO, BigDecimal.ZERO));
+        verify(billingAccountDAO, times(0)).getProjectChallengeBudget(anyLong());
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmounts when the budget is insufficient for the whole request.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmounts_InsufficientBudget() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.getBudgetTotal(1L)).thenReturn(new BudgetTotal(50000L, 10000L, 15000L));
+        when(billingAccountDAO.getChallengeBudgets(anyLong(), anyObject())).thenReturn(new ArrayList<>());
+
+        try {
+            unit.lockAmounts(1L, Arrays.asList(new LockAmountDTO(10000L, "c1"), new LockAmountDTO(15001L, "c2")));
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.getStatusCode());
+            assertTrue(e.getMessage().startsWith("Insufficient Budget amount (500.00)"));
+        }
+        verify(billingAccountDAO, times(0)).createLockedAmounts(anyLong(), anyObject(), anyObject(), anyObject());
+        verify(billingAccountDAO, times(0)).updateConsumedAmountsForChallengeids(anyLong(), anyObject(), anyObject(),
+            anyObject(), anyObject());
+        verify(billingAccountDAO, times(0)).addBudgetTotal(anyLong(), anyObject(), anyObject(), anyLong());
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmounts when the billing account does not exist.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmounts_NotExistBillingAccount() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.getBudgetTotal(1L)).thenReturn(null);
+        when(billingAccountDAO.createBudgetTotal(1L)).thenReturn(0);
+
+        try {
+            unit.lockAmounts(1L, Arrays.asList(new LockAmountDTO(10000L, "c1")));
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.getStatusCode());
+        }
+        verify(billingAccountDAO, times(0)).createLockedAmounts(anyLong(), anyObject(), anyObject(), anyObject());
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmounts when the same challenge is requested twice.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmounts_DuplicateChallenge() throws Exception {
+        try {
+            unit.lockAmounts(1L, Arrays.asList(new LockAmountDTO(10000L, "c1"), new LockAmountDTO(15000L, "c1")));
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.getStatusCode());
+        }
+        verify(billingAccountDAO, times(0)).getBudgetTotal(anyLong());
+    }
+
+    /**
+     * Test BillingAccountManager.lockAmounts runs the transaction again when the totals were changed by a concurrent
+     * writer.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmounts_VersionConflict() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.getBudgetTotal(1L)).thenReturn(new BudgetTotal(50000L, 0L, 0L, 2L),
+            new BudgetTotal(50000L, 5000L, 0L, 3L));
+        when(billingAccountDAO.getChallengeBudgets(anyLong(), anyObject())).thenReturn(new ArrayList<>());
+        when(billingAccountDAO.addBudgetTotal(1L, Cents.toAmount(10000), Cents.toAmount(0), 2L)).thenReturn(0);
+        when(billingAccountDAO.addBudgetTotal(1L, Cents.toAmount(10000), Cents.toAmount(0), 3L)).thenReturn(1);
+
+        List<LockAmountDTO> result = unit.lockAmounts(1L, Arrays.asList(new LockAmountDTO(10000L, "c1")));
+
+        assertEquals(1, result.size());
+        verify(billingAccountDAO, times(2)).inTransaction(any(Transaction.class));
+        verify(billingAccountDAO, times(1)).createLockedAmounts(1L, Arrays.asList("c1"),
+            Arrays.asList(Cents.toAmount(10000)), Arrays.asList(BigDecimal.ZERO));
+        assertEquals(Long.valueOf(1L), unit.getContendedAccounts().get(1L));
+    }
+
+    /**
+     * Test BillingAccountManager.consumeAmounts when an entry is still changed by a concurrent writer after the last
+     * attempt.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testConsumeAmounts_VersionConflict() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.getBudgetTotal(1L)).thenReturn(new BudgetTotal(50000L, 0L, 0L, 2L));
+        when(billingAccountDAO.getChallengeBudgets(anyLong(), anyObject())).thenReturn(new ArrayList<>(Arrays.asList(
+            new ChallengeBudget("c1", 5000L, 0L, 4L))));
+        when(billingAccountDAO.addBudgetTotal(anyLong(), anyObject(), anyObject(), anyLong())).thenReturn(1);
+        when(billingAccountDAO.updateConsumedAmountsForChallengeids(anyLong(), anyObject(), anyObject(), anyObject(),
+            anyObject())).thenReturn(new int[] {0});
+
+        try {
+            unit.consumeAmounts(1L, Arrays.asList(new ConsumeAmountDTO(10000L, "c1", 0.5f)));
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_CONFLICT, e.getStatusCode());
+        }
+        verify(billingAccountDAO, times(5)).inTransaction(any(Transaction.class));
+        verify(billingAccountDAO, times(0)).createOutboxEvents(anyLong(), (List<String>) anyObject());
+        assertEquals(Long.valueOf(5L), unit.getContendedAccounts().get(1L));
+    }
+
+    /**
+     * Test BillingAccountManager.consumeAmounts consumes all the amounts with batches and writes the events to the outbox.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testConsumeAmounts() throws Exception {
+        mockTransaction();
+        // the locked amount of other challenges is not checked when consuming
+        when(billingAccountDAO.getBudgetTotal(1L)).thenReturn(new BudgetTotal(50000L, 45000L, 10000L, 2L));
+        when(billingAccountDAO.getChallengeBudgets(anyLong(), anyObject())).thenReturn(new ArrayList<>(Arrays.asList(
+            new ChallengeBudget("c1", 5000L, 0L, 4L))));
+        when(billingAccountDAO.addBudgetTotal(1L, Cents.toAmount(-5000), Cents.toAmount(40000), 2L)).thenReturn(1);
+        when(billingAccountDAO.updateConsumedAmountsForChallengeids(anyLong(), anyObject(), anyObject(), anyObject(),
+            anyObject())).thenReturn(new int[] {1});
+
+        List<ConsumeAmountDTO> result = unit.consumeAmounts(1L,
+            Arrays.asList(new ConsumeAmountDTO(10000L, "c1", 0.5f), new ConsumeAmountDTO(30000L, "c2", 0.5f)));
+
+        assertEquals(2, result.size());
+        assertEquals("c2", result.get(1).getChallengeId());
+        assertEquals(30000L, (long) result.get(1).getConsumeCents());
+        verify(billingAccountDAO).createLockedAmounts(1L, Arrays.asList("c2"), Arrays.asList(BigDecimal.ZERO),
+            Arrays.asList(Cents.toAmount(30000)));
+        verify(billingAccountDAO).updateConsumedAmountsForChallengeids(1L, Arrays.asList("c1"), Arrays.asList(BigDecimal.ZERO),
+            Arrays.asList(Cents.toAmount(10000)), Arrays.asList(4L));
+        verify(billingAccountDAO).addBudgetTotal(1L, Cents.toAmount(-5000), Cents.toAmount(40000), 2L);
+        verify(billingAccountDAO).createLedgerEntries(1L, Arrays.asList("c1", "c2"), "CONSUME",
+            Arrays.asList(BigDecimal.ZERO, BigDecimal.ZERO), Arrays.asList(Cents.toAmount(10000), Cents.toAmount(30000)));
+        verify(billingAccountDAO, times(0)).createOutboxEvent(anyLong(), anyString());
+        verify(billingAccountDAO).createOutboxEvents(eq(1L), (List<String>) anyObject());
+    }
+
+    /**
+     * Test BillingAccountManager.consumeAmounts when the budget is insufficient for the whole request.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testConsumeAmounts_InsufficientBudget() throws Exception {
+        mockTransaction();
+        when(billingAccountDAO.getBudgetTotal(1L)).thenReturn(new BudgetTotal(50000L, 0L, 20000L));
+        when(billingAccountDAO.getChallengeBudgets(anyLong(), anyObject())).thenReturn(new ArrayList<>());
+
+        try {
+            unit.consumeAmounts(1L,
+                Arrays.asList(new ConsumeAmountDTO(10000L, "c1", 0.5f), new ConsumeAmountDTO(20100L, "c2", 0.5f)));
+        } catch (SupplyException e) {
+            assertEquals(HttpServletResponse.SC_NOT_FOUND, e.getStatusCode());
+            assertTrue(e.getMessage().startsWith("Insufficient Budget amount (500.00)"));
+        }
+        verify(billingAccountDAO, times(0)).createLockedAmounts(anyLong(), anyObject(), anyObject(), anyObject());
+        verify(billingAccountDAO, times(0)).createOutboxEvents(anyLong(), (List<String>) anyObject());
+    }
+
+    /**
+     * Create a queued consume amount operation.
+     *
+     * @param attempts the number of failed attempts
+     * @return the operation
+     */
+    private static BudgetOperation createOperation(int attempts) {
+        BudgetOperation operation = new BudgetOperation();
+        operation.setOperationId("op1");
+        operation.setBillingAccountId(1L);
+        operation.setChallengeId("c1");
+        operation.setConsumeCents(10000L);
+        operation.setMarkup(0.5f);
+        operation.setStatus(BudgetOperation.PENDING);
+        operation.setAttempts(attempts);
+        return operation;
+    }
+
+    /**
+     * Make the mocked DAO run the transaction callbacks against itself.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @SuppressWarnings("unchecked")
+    private void mockTransaction() throws Exception {
+        when(billingAccountDAO.inTransaction(any(Transaction.class))).thenAnswer(invocation -> {
+            try {
+                return ((Transaction<Object, BillingAccountDAO>) invocation.getArguments()[0])
+                    .inTransaction(billingAccountDAO, null);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                // same as JDBI, checked exceptions of the callback are wrapped
+                throw new TransactionFailedException("Transaction failed", e);
+            }
+        });
+    }
+
     /**
      * Get QueryResult containing a list of billing accounts used for testing.
      *
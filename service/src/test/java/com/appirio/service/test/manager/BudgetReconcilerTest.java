@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.appirio.service.billingaccount.api.Cents;
+import com.appirio.service.billingaccount.api.ChallengeBudget;
+import com.appirio.service.billingaccount.api.ReconciliationBalance;
+import com.appirio.service.billingaccount.api.ReconciliationIssue;
+import com.appirio.service.billingaccount.dao.BillingAccountDAO;
+import com.appirio.service.billingaccount.manager.BudgetReconciler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.Transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Test BudgetReconciler.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class BudgetReconcilerTest {
+    /**
+     * The billing account dao used for testing
+     */
+    private final BillingAccountDAO billingAccountDAO = mock(BillingAccountDAO.class);
+
+    /**
+     * The reconciler being tested
+     */
+    private final BudgetReconciler unit = new BudgetReconciler(billingAccountDAO, 60, 3, 0);
+
+    /**
+     * Run the transactions on the mocked dao.
+     */
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        when(billingAccountDAO.inTransaction(any(Transaction.class))).thenAnswer(invocation ->
+            ((Transaction<Object, BillingAccountDAO>) invocation.getArguments()[0]).inTransaction(billingAccountDAO, null));
+    }
+
+    /**
+     * Test BudgetReconciler.reconcileChunk only checks again the billing accounts looking inconsistent, and a failed
+     * billing account doesn't stop the others.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testReconcileChunk() throws Exception {
+        ReconciliationBalance consistent = new ReconciliationBalance(1L, 50000L, 10000L, 5000L, 10000L, 5000L, 0,
+            10000L, 5000L);
+        ReconciliationBalance drifting = new ReconciliationBalance(2L, 50000L, 12000L, 5000L, 10000L, 5000L, 0,
+            10000L, 5000L);
+        ReconciliationBalance failing = new ReconciliationBalance(3L, 50000L, null, null, 10000L, 5000L, 0, 0L, 0L);
+        when(billingAccountDAO.getReconciliationBalances(0L, 3)).thenReturn(Arrays.asList(consistent, drifting, failing));
+        when(billingAccountDAO.getReconciliationBalances(1L, 1)).thenReturn(Collections.singletonList(drifting));
+        when(billingAccountDAO.getReconciliationBalances(2L, 1)).thenThrow(new IllegalStateException("failed"));
+
+        assertEquals(3L, unit.reconcileChunk(0L));
+
+        verify(billingAccountDAO).deleteReconciliationIssues(0L, 3L);
+        verify(billingAccountDAO, times(0)).lockBudgetTotal(1L);
+        verify(billingAccountDAO).lockBudgetTotal(2L);
+        verify(billingAccountDAO).createReconciliationIssue(2L, null, ReconciliationIssue.TOTAL_DRIFT,
+            Cents.toAmount(10000), Cents.toAmount(12000), "locked");
+    }
+
+    /**
+     * Test BudgetReconciler.reconcileChunk on the last chunk, the walk is complete.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testReconcileChunk_Last() throws Exception {
+        when(billingAccountDAO.getReconciliationBalances(3L, 3)).thenReturn(Collections.singletonList(
+            new ReconciliationBalance(4L, 50000L, 0L, 0L, 0L, 0L, 0, 0L, 0L)));
+
+        assertEquals(0L, unit.reconcileChunk(3L));
+        verify(billingAccountDAO).deleteReconciliationIssues(3L, 4L);
+
+        when(billingAccountDAO.getReconciliationBalances(4L, 3)).thenReturn(new ArrayList<>());
+        assertEquals(0L, unit.reconcileChunk(4L));
+        verify(billingAccountDAO, times(0)).deleteReconciliationIssues(eq(4L), anyLong());
+    }
+
+    /**
+     * Test BudgetReconciler.reconcile records the duplicate entries, the over-commit and the ledger drift.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testReconcile() throws Exception {
+        when(billingAccountDAO.getReconciliationBalances(0L, 1)).thenReturn(Collections.singletonList(
+            new ReconciliationBalance(1L, 20000L, 15000L, 10000L, 15000L, 10000L, 1, 15000L, 9000L)));
+        when(billingAccountDAO.getDuplicateChallengeEntries(1L)).thenReturn(Arrays.asList(
+            new ChallengeBudget("c1", 5000L, 0L), new ChallengeBudget("c1", 5000L, 1000L)));
+
+        List<ReconciliationIssue> issues = unit.reconcile(1L);
+
+        assertEquals(3, issues.size());
+        assertEquals(ReconciliationIssue.DUPLICATE_ENTRY, issues.get(0).getIssueType());
+        assertEquals("c1", issues.get(0).getChallengeId());
+        assertEquals(11000L, (long) issues.get(0).getActualCents());
+        assertEquals("2 entries", issues.get(0).getDetail());
+        assertEquals(ReconciliationIssue.OVER_COMMIT, issues.get(1).getIssueType());
+        assertEquals(25000L, (long) issues.get(1).getActualCents());
+        assertEquals(ReconciliationIssue.LEDGER_DRIFT, issues.get(2).getIssueType());
+        assertTrue(issues.get(2).getDetail().equals("consumed"));
+        verify(billingAccountDAO).lockBudgetTotal(1L);
+        verify(billingAccountDAO).createReconciliationIssue(1L, "c1", ReconciliationIssue.DUPLICATE_ENTRY, null,
+            Cents.toAmount(11000), "2 entries");
+        verify(billingAccountDAO).createReconciliationIssue(1L, null, ReconciliationIssue.OVER_COMMIT,
+            Cents.toAmount(20000), Cents.toAmount(25000), null);
+    }
+
+    /**
+     * Test BudgetReconciler rejects an invalid chunk size.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreate_InvalidChunkSize() {
+        new BudgetReconciler(billingAccountDAO, 60, 0, 0);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.appirio.service.billingaccount.api.IdDTO;
+import com.appirio.service.billingaccount.dao.BillingAccountDAO;
+import com.appirio.service.billingaccount.manager.BudgetSnapshotter;
+
+import org.junit.Test;
+import org.skife.jdbi.v2.Transaction;
+
+import java.util.Arrays;
+
+
+/**
+ * Test BudgetSnapshotter.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class BudgetSnapshotterTest {
+    /**
+     * The billing account dao used for testing
+     */
+    private final BillingAccountDAO billingAccountDAO = mock(BillingAccountDAO.class);
+
+    /**
+     * The snapshotter being tested
+     */
+    private final BudgetSnapshotter unit = new BudgetSnapshotter(billingAccountDAO, 60);
+
+    /**
+     * Test BudgetSnapshotter.snapshotAll snapshots each billing account under its budget row lock, and a failed
+     * billing account doesn't stop the others.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSnapshotAll() throws Exception {
+        when(billingAccountDAO.inTransaction(any(Transaction.class))).thenAnswer(invocation ->
+            ((Transaction<Object, BillingAccountDAO>) invocation.getArguments()[0]).inTransaction(billingAccountDAO, null));
+        when(billingAccountDAO.getProjectsToSnapshot()).thenReturn(Arrays.asList(new IdDTO(1L), new IdDTO(2L),
+            new IdDTO(3L)));
+        when(billingAccountDAO.createBudgetSnapshot(1L)).thenReturn(1);
+        when(billingAccountDAO.createBudgetSnapshot(2L)).thenThrow(new IllegalStateException("failed"));
+        when(billingAccountDAO.createBudgetSnapshot(3L)).thenReturn(1);
+
+        assertEquals(2, unit.snapshotAll());
+        verify(billingAccountDAO).lockBudgetTotal(1L);
+        verify(billingAccountDAO).lockBudgetTotal(3L);
+        verify(billingAccountDAO).createBudgetSnapshot(3L);
+    }
+
+    /**
+     * Test BudgetSnapshotter rejects a negative interval.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreate_InvalidInterval() {
+        new BudgetSnapshotter(billingAccountDAO, -1);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.appirio.service.billingaccount.manager.Cache;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Unit test of Cache.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class CacheTest {
+    /**
+     * Test Cache.put evicts the least recently used values over the maximum weight, and counts the statistics.
+     */
+    @Test
+    public void testPut_Weighted() {
+        Cache<String, String> cache = new Cache<String, String>(1, 10, (key, value) -> value.length());
+        cache.put("a", "aaaa", 0);
+        cache.put("b", "bbbb", 0);
+        assertEquals("aaaa", cache.get("a"));
+        cache.put("c", "cccc", 0);
+
+        assertEquals(8, cache.getWeight());
+        assertEquals("aaaa", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("cccc", cache.get("c"));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getEvictions());
+
+        // heavier than the cache, not cached
+        cache.put("a", "aaaaaaaaaaaa", 0);
+        assertNull(cache.get("a"));
+        assertEquals(4, cache.getWeight());
+    }
+
+    /**
+     * Test Cache.get drops an expired value, and Cache.sweep the ones not read.
+     *
+     * @throws Exception to junit
+     */
+    @Test
+    public void testGet_Expired() throws Exception {
+        Cache<String, String> cache = new Cache<String, String>(100);
+        cache.put("a", "a", 1);
+        cache.put("b", "b", 1);
+        cache.put("c", "c", 0);
+
+        Thread.sleep(1500L);
+        assertNull(cache.get("a"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.sweep());
+        assertEquals(1, cache.size());
+        assertEquals("c", cache.delete("c"));
+        assertEquals(0, cache.getWeight());
+    }
+
+    /**
+     * Test Cache.get with a loader runs a single load for the concurrent misses of a key.
+     *
+     * @throws Exception to junit
+     */
+    @Test
+    public void testGet_SingleFlight() throws Exception {
+        Cache<String, String> cache = new Cache<String, String>(100);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> cache.get("a", key -> {
+                    loads.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return "loaded";
+                }, 600)));
+            }
+            Thread.sleep(200L);
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("loaded", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+        assertEquals("loaded", cache.get("a"));
+    }
+
+    /**
+     * Test Cache.get with a loader returns the cached value close to its expiry, and reloads it in the background.
+     *
+     * @throws Exception to junit
+     */
+    @Test
+    public void testGet_RefreshAhead() throws Exception {
+        Cache<String, Integer> cache = new Cache<String, Integer>(1, 100, (key, value) -> 1, Runnable::run);
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals(Integer.valueOf(1), cache.get("a", key -> loads.incrementAndGet(), 1));
+        assertEquals(Integer.valueOf(1), cache.get("a", key -> loads.incrementAndGet(), 1));
+
+        Thread.sleep(900L);
+        // the read returns the cached value, the reload runs on the executor
+        assertEquals(Integer.valueOf(1), cache.get("a", key -> loads.incrementAndGet(), 1));
+        assertEquals(Integer.valueOf(2), cache.get("a"));
+        assertEquals(2, loads.get());
+    }
+
+    /**
+     * Test Cache.get with a failing loader throws its exception, and doesn't cache anything.
+     */
+    @Test
+    public void testGet_LoadFailed() {
+        Cache<String, String> cache = new Cache<String, String>(100);
+        try {
+            cache.get("a", key -> {
+                throw new IllegalStateException("failed");
+            }, 600);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertEquals(1, cache.getLoadFailures());
+        assertEquals("loaded", cache.get("a", key -> "loaded", 600));
+    }
+
+    /**
+     * Test Cache.registerMetrics registers the statistics.
+     */
+    @Test
+    public void testRegisterMetrics() {
+        Cache<String, String> cache = new Cache<String, String>(100);
+        MetricRegistry registry = new MetricRegistry();
+        cache.registerMetrics(registry, "cache");
+        cache.get("a");
+
+        Counter misses = registry.getCounters().get("cache.misses");
+        assertEquals(1, misses.getCount());
+        assertEquals(0, registry.getGauges().get("cache.size").getValue());
+    }
+
+    /**
+     * Test the Cache constructor with an invalid maximum weight.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreate_InvalidMaxWeight() {
+        new Cache<String, String>(16, 8, (key, value) -> 1);
+    }
+}
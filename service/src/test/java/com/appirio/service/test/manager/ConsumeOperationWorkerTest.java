@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.appirio.service.billingaccount.api.BudgetOperation;
+import com.appirio.service.billingaccount.manager.BillingAccountManager;
+import com.appirio.service.billingaccount.manager.ConsumeOperationWorker;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+
+/**
+ * Test ConsumeOperationWorker.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class ConsumeOperationWorkerTest {
+    /**
+     * The billing account manager used for testing
+     */
+    private final BillingAccountManager billingAccountManager = mock(BillingAccountManager.class);
+
+    /**
+     * Test ConsumeOperationWorker.poll hands each queued operation to a worker thread once.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testPoll() throws Exception {
+        // the scheduled polls don't run during the test
+        ConsumeOperationWorker unit = new ConsumeOperationWorker(billingAccountManager, 2, 60000, 300, 5);
+        BudgetOperation op1 = createOperation("op1", 1L);
+        BudgetOperation op2 = createOperation("op2", 2L);
+        when(billingAccountManager.getPendingOperations(100)).thenReturn(Arrays.asList(op1, op2));
+
+        unit.start();
+        assertEquals(2, unit.poll());
+        unit.stop();
+
+        verify(billingAccountManager).processOperation(eq(op1), anyString(), eq(300), eq(5));
+        verify(billingAccountManager).processOperation(eq(op2), anyString(), eq(300), eq(5));
+        verify(billingAccountManager, times(2)).processOperation((BudgetOperation) anyObject(), anyString(), eq(300),
+                eq(5));
+    }
+
+    /**
+     * Test ConsumeOperationWorker rejects a negative number of threads.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreate_InvalidThreads() {
+        new ConsumeOperationWorker(billingAccountManager, -1, 200, 300, 5);
+    }
+
+    /**
+     * Create a queued operation.
+     *
+     * @param operationId the operation id
+     * @param billingAccountId the billing account id
+     * @return the operation
+     */
+    private static BudgetOperation createOperation(String operationId, long billingAccountId) {
+        BudgetOperation operation = new BudgetOperation();
+        operation.setOperationId(operationId);
+        operation.setBillingAccountId(billingAccountId);
+        operation.setChallengeId("c1");
+        operation.setConsumeCents(10000L);
+        operation.setStatus(BudgetOperation.PENDING);
+        return operation;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.appirio.service.billingaccount.api.IdempotencyRecord;
+import com.appirio.service.billingaccount.manager.IdempotencyStore;
+
+import org.junit.Test;
+
+
+/**
+ * Test IdempotencyStore.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class IdempotencyStoreTest {
+    /**
+     * The store being tested
+     */
+    private final IdempotencyStore unit = new IdempotencyStore(2, 60, false);
+
+    /**
+     * Test IdempotencyStore.put and IdempotencyStore.get.
+     */
+    @Test
+    public void testPutGet() {
+        unit.put("k1", new IdempotencyRecord("c1", 100L));
+
+        assertEquals("c1", unit.get("k1").getChallengeId());
+        assertEquals(100L, unit.get("k1").getAmountCents());
+        assertNull(unit.get("k2"));
+        assertFalse(unit.isPersistent());
+    }
+
+    /**
+     * Test IdempotencyStore drops the least recently used records above its maximum size.
+     */
+    @Test
+    public void testMaxSize() {
+        unit.put("k1", new IdempotencyRecord("c1", 100L));
+        unit.put("k2", new IdempotencyRecord("c2", 200L));
+        unit.get("k1");
+        unit.put("k3", new IdempotencyRecord("c3", 300L));
+
+        assertEquals(2, unit.size());
+        assertNull(unit.get("k2"));
+        assertEquals("c1", unit.get("k1").getChallengeId());
+        assertEquals("c3", unit.get("k3").getChallengeId());
+    }
+
+    /**
+     * Test IdempotencyStore rejects a non positive maximum size.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreate_InvalidMaxSize() {
+        new IdempotencyStore(0, 60, false);
+    }
+}
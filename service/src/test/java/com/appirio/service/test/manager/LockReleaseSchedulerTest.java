@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.appirio.service.billingaccount.manager.BillingAccountManager;
+import com.appirio.service.billingaccount.manager.LockReleaseScheduler;
+
+import org.junit.Test;
+
+
+/**
+ * Test LockReleaseScheduler.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class LockReleaseSchedulerTest {
+    /**
+     * The billing account manager used for testing
+     */
+    private final BillingAccountManager billingAccountManager = mock(BillingAccountManager.class);
+
+    /**
+     * The scheduler being tested
+     */
+    private final LockReleaseScheduler unit = new LockReleaseScheduler(billingAccountManager, 60, 10);
+
+    /**
+     * Test LockReleaseScheduler.run runs the batches while they are full.
+     */
+    @Test
+    public void testRun() {
+        when(billingAccountManager.releaseExpiredLocks(10)).thenReturn(10, 10, 3);
+
+        assertEquals(3, unit.run());
+        verify(billingAccountManager, times(3)).releaseExpiredLocks(10);
+    }
+
+    /**
+     * Test LockReleaseScheduler.run stops after the maximum number of batches of a run.
+     */
+    @Test
+    public void testRun_MaxBatches() {
+        when(billingAccountManager.releaseExpiredLocks(10)).thenReturn(10);
+
+        assertEquals(10, unit.run());
+    }
+
+    /**
+     * Test LockReleaseScheduler rejects a batch size not positive.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreate_InvalidBatchSize() {
+        new LockReleaseScheduler(billingAccountManager, 60, 0);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2017 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.appirio.service.billingaccount.api.HarmonyPublisher;
+import com.appirio.service.billingaccount.api.IdDTO;
+import com.appirio.service.billingaccount.api.OutboxEvent;
+import com.appirio.service.billingaccount.dao.BillingAccountDAO;
+import com.appirio.service.billingaccount.manager.OutboxRelay;
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+
+/**
+ * Test OutboxRelay.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class OutboxRelayTest {
+    /**
+     * The billing account dao used for testing
+     */
+    private final BillingAccountDAO billingAccountDAO = mock(BillingAccountDAO.class);
+
+    /**
+     * The Harmony publisher used for testing
+     */
+    private final HarmonyPublisher publisher = mock(HarmonyPublisher.class);
+
+    /**
+     * The relay being tested
+     */
+    private final OutboxRelay unit = new OutboxRelay(billingAccountDAO, publisher, 1, 1000, 2, 60, 3, 72);
+
+    /**
+     * Let the relay claim all the events read, and the publisher send the batches.
+     */
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        when(billingAccountDAO.claimOutboxEvents((List<Long>) anyObject(), anyString(), eq(60))).thenAnswer(
+            invocation -> claimed(((List<Long>) invocation.getArguments()[0]).size()));
+        when(publisher.isCallPermitted()).thenReturn(true);
+        when(publisher.sendBatch((List<byte[]>) anyObject())).thenReturn(true);
+    }
+
+    /**
+     * Create the result of a claim of events which all succeed
+     *
+     * @param size the number of events
+     * @return one claimed event per event
+     */
+    private static int[] claimed(int size) {
+        int[] claimed = new int[size];
+        Arrays.fill(claimed, 1);
+        return claimed;
+    }
+
+    /**
+     * Create an unsent outbox event
+     *
+     * @param eventId the event id
+     * @return the event
+     */
+    private static OutboxEvent event(long eventId) {
+        return event(eventId, 0);
+    }
+
+    /**
+     * Create an unsent outbox event which failed already
+     *
+     * @param eventId the event id
+     * @param attempts the number of failed attempts
+     * @return the event
+     */
+    private static OutboxEvent event(long eventId, int attempts) {
+        return new OutboxEvent(eventId, 1L, "m" + eventId, attempts, new Date());
+    }
+
+    /**
+     * Decode the payloads sent to the publisher
+     *
+     * @param payloads the UTF-8 payloads
+     * @return the payloads
+     */
+    private static List<String> strings(List<byte[]> payloads) {
+        List<String> strings = new ArrayList<>();
+        for (byte[] payload : payloads) {
+            strings.add(new String(payload, StandardCharsets.UTF_8));
+        }
+        return strings;
+    }
+
+    /**
+     * Test OutboxRelay.run publishes the unsent events batch after batch and marks them sent, then purges the sent
+     * events once the outbox is empty.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRun() {
+        when(billingAccountDAO.getUnsentOutboxEvents(2)).thenReturn(Arrays.asList(event(1), event(2)),
+            Collections.singletonList(event(3)), Collections.emptyList());
+
+        assertEquals(3, unit.run());
+        ArgumentCaptor<List> payloads = ArgumentCaptor.forClass(List.class);
+        verify(publisher, times(2)).sendBatch(payloads.capture());
+        assertEquals(Arrays.asList("m1", "m2"), strings(payloads.getAllValues().get(0)));
+        assertEquals(Collections.singletonList("m3"), strings(payloads.getAllValues().get(1)));
+        verify(billingAccountDAO).markOutboxEventsSent(eq(Arrays.asList(1L, 2L)), anyString());
+        verify(billingAccountDAO).markOutboxEventsSent(eq(Collections.singletonList(3L)), anyString());
+        verify(billingAccountDAO, times(0)).purgeOutboxEvents(anyInt());
+
+        assertEquals(0, unit.run());
+        verify(billingAccountDAO).purgeOutboxEvents(72);
+    }
+
+    /**
+     * Test OutboxRelay.run only sends the events it claimed, the events claimed by another relay meanwhile are left to
+     * it.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRun_ClaimedElsewhere() {
+        when(billingAccountDAO.getUnsentOutboxEvents(2)).thenReturn(Arrays.asList(event(1), event(2)),
+            Arrays.asList(event(3), event(4)), Collections.emptyList());
+        when(billingAccountDAO.claimOutboxEvents(eq(Arrays.asList(1L, 2L)), anyString(), eq(60)))
+            .thenReturn(new int[] {0, 0});
+        when(billingAccountDAO.claimOutboxEvents(eq(Arrays.asList(3L, 4L)), anyString(), eq(60)))
+            .thenReturn(new int[] {1, 0});
+
+        assertEquals(1, unit.run());
+        ArgumentCaptor<List> payloads = ArgumentCaptor.forClass(List.class);
+        verify(publisher).sendBatch(payloads.capture());
+        assertEquals(Collections.singletonList("m3"), strings(payloads.getValue()));
+        ArgumentCaptor<String> leaseOwner = ArgumentCaptor.forClass(String.class);
+        verify(billingAccountDAO).claimOutboxEvents(eq(Arrays.asList(3L, 4L)), leaseOwner.capture(), eq(60));
+        verify(billingAccountDAO).markOutboxEventsSent(Collections.singletonList(3L), leaseOwner.getValue());
+    }
+
+    /**
+     * Test OutboxRelay.run sends the events of a failed batch one by one, and leaves the failed events unsent for the
+     * next run.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRun_Failed() {
+        when(billingAccountDAO.getUnsentOutboxEvents(2)).thenReturn(Arrays.asList(event(1), event(2)));
+        doThrow(new IllegalStateException("failed")).when(publisher).sendBatch((List<byte[]>) anyObject());
+
+        assertEquals(0, unit.run());
+        verify(publisher, times(3)).sendBatch((List<byte[]>) anyObject());
+        verify(billingAccountDAO).retryOutboxEvents(eq(Collections.singletonList(1L)), anyString());
+        verify(billingAccountDAO).retryOutboxEvents(eq(Collections.singletonList(2L)), anyString());
+        verify(billingAccountDAO, times(0)).markOutboxEventsSent((List<Long>) anyObject(), anyString());
+        verify(billingAccountDAO, times(0)).failOutboxEvents((List<Long>) anyObject(), anyString());
+    }
+
+    /**
+     * Test OutboxRelay.run moves an event failing its last attempt to the dead letters, the other events of its batch
+     * are sent.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRun_DeadLetter() {
+        when(billingAccountDAO.getUnsentOutboxEvents(2)).thenReturn(Arrays.asList(event(1), event(2, 2)),
+            Collections.emptyList());
+        when(publisher.sendBatch((List<byte[]>) anyObject())).thenAnswer(invocation -> {
+            if (strings((List<byte[]>) invocation.getArguments()[0]).contains("m2")) {
+                throw new IllegalStateException("rejected payload");
+            }
+            return true;
+        });
+
+        assertEquals(1, unit.run());
+        verify(billingAccountDAO).markOutboxEventsSent(eq(Collections.singletonList(1L)), anyString());
+        verify(billingAccountDAO).failOutboxEvents(eq(Collections.singletonList(2L)), anyString());
+        verify(billingAccountDAO, times(0)).retryOutboxEvents((List<Long>) anyObject(), anyString());
+    }
+
+    /**
+     * Test OutboxRelay.run skips the run without reading the outbox while the circuit of the publisher is open.
+     */
+    @Test
+    public void testRun_CircuitOpen() {
+        when(publisher.isCallPermitted()).thenReturn(false);
+
+        assertEquals(0, unit.run());
+        verify(billingAccountDAO, times(0)).getUnsentOutboxEvents(anyInt());
+    }
+
+    /**
+     * Test OutboxRelay.run leaves the batch unsent, without counting a failed attempt, when the circuit of the
+     * publisher opened meanwhile.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRun_Refused() {
+        when(billingAccountDAO.getUnsentOutboxEvents(2)).thenReturn(Arrays.asList(event(1), event(2)));
+        when(publisher.sendBatch((List<byte[]>) anyObject())).thenReturn(false);
+
+        assertEquals(0, unit.run());
+        verify(billingAccountDAO, times(0)).retryOutboxEvents((List<Long>) anyObject(), anyString());
+        verify(billingAccountDAO, times(0)).markOutboxEventsSent((List<Long>) anyObject(), anyString());
+    }
+
+    /**
+     * Test OutboxRelay.run counts the unsent events waiting while the circuit of the publisher is open.
+     */
+    @Test
+    public void testRun_Backlog() {
+        MetricRegistry registry = new MetricRegistry();
+        unit.registerMetrics(registry);
+        when(publisher.isCallPermitted()).thenReturn(false);
+        when(billingAccountDAO.countUnsentOutboxEvents()).thenReturn(new IdDTO(42L));
+
+        assertEquals(0, unit.run());
+        assertEquals(42L, registry.getGauges().get(MetricRegistry.name(OutboxRelay.class, "backlog")).getValue());
+    }
+
+    /**
+     * Test OutboxRelay.stop publishes the events left in the outbox before the relay stops.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testStop_Drain() throws Exception {
+        OutboxRelay relay = new OutboxRelay(billingAccountDAO, publisher, 2, 60000, 2, 60, 3, 72);
+        when(billingAccountDAO.getUnsentOutboxEvents(2)).thenReturn(Arrays.asList(event(1), event(2)),
+            Collections.singletonList(event(3)), Collections.emptyList());
+
+        relay.start();
+        relay.stop();
+
+        verify(billingAccountDAO).markOutboxEventsSent(eq(Arrays.asList(1L, 2L)), anyString());
+        verify(billingAccountDAO).markOutboxEventsSent(eq(Collections.singletonList(3L)), anyString());
+    }
+
+    /**
+     * Test OutboxRelay rejects a batch size that is not positive.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreate_InvalidBatchSize() {
+        new OutboxRelay(billingAccountDAO, publisher, 1, 1000, 0, 60, 3, 72);
+    }
+}
@@ -73,4 +73,42 @@ public class SimpleCacheServiceTest {
         Object deleted = cacheService.delete(KEY);
         assertEquals(VALUE, deleted);
     }
+
+    /**
+     * Test SimpleCacheService.sweep removes the expired values only, the map holding no other entries
+     *
+     * @throws Exception to junit
+     */
+    @Test
+    public void testSweep() throws Exception {
+        cacheService.put(KEY, VALUE, 1);
+        cacheService.put("other", VALUE, 0);
+        assertEquals(2, cacheService.size());
+
+        Thread.sleep(1500L);
+        // the expired value is kept until it's read or swept
+        assertEquals(2, cacheService.size());
+        assertEquals(1, cacheService.sweep());
+        assertEquals(1, cacheService.size());
+        assertNull(cacheService.get(KEY));
+        assertEquals(VALUE, cacheService.get("other"));
+    }
+
+    /**
+     * Test SimpleCacheService.put evicts the least recently used value over the maximum size
+     */
+    @Test
+    public void testPut_Evicted() {
+        SimpleCacheService bounded = new SimpleCacheService(2, SimpleCacheService.DEFAULT_SWEEP_INTERVAL_SECONDS);
+        bounded.put(KEY, VALUE, 0);
+        bounded.put("other", VALUE, 0);
+        // read KEY so "other" is the least recently used
+        assertEquals(VALUE, bounded.get(KEY));
+        bounded.put("third", VALUE, 0);
+
+        assertEquals(2, bounded.size());
+        assertEquals(VALUE, bounded.get(KEY));
+        assertNull(bounded.get("other"));
+        assertEquals(VALUE, bounded.get("third"));
+    }
 }
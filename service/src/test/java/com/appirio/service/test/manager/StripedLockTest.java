@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2018 TopCoder Inc., All Rights Reserved.
+ */
+package com.appirio.service.test.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.appirio.service.billingaccount.manager.StripedLock;
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Test StripedLock.
+ *
+ * @author TCSCODER
+ * @version 1.0
+ */
+public class StripedLockTest {
+    /**
+     * The lock being tested
+     */
+    private final StripedLock unit = new StripedLock(8);
+
+    /**
+     * Test StripedLock.execute serializes the actions of the same key.
+     *
+     * @throws Exception to junit
+     */
+    @Test
+    public void testExecute_SameKey() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] futures = new Future<?>[20];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = executor.submit(() -> unit.execute(1L, () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    LockSupport.parkNanos(2000000L);
+                    running.decrementAndGet();
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, maxRunning.get());
+    }
+
+    /**
+     * Test StripedLock.execute runs the actions of keys in other stripes in parallel.
+     *
+     * @throws Exception to junit
+     */
+    @Test
+    public void testExecute_OtherStripe() throws Exception {
+        long other = 2L;
+        while (unit.stripeOf(other) == unit.stripeOf(1L)) {
+            other++;
+        }
+        final long otherKey = other;
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> holder = executor.submit(() -> unit.execute(1L, () -> {
+                entered.countDown();
+                while (release.getCount() > 0) {
+                    LockSupport.parkNanos(1000000L);
+                }
+                return null;
+            }));
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+            // the other stripe is not blocked by the holder of the first stripe
+            assertEquals("done", unit.execute(otherKey, () -> "done"));
+
+            release.countDown();
+            holder.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test StripedLock.registerMetrics registers the wait time and queue depth of each stripe.
+     *
+     * @throws Exception to junit
+     */
+    @Test
+    public void testRegisterMetrics() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        unit.registerMetrics(registry, "locks");
+        unit.execute(1L, () -> null);
+
+        int stripe = unit.stripeOf(1L);
+        assertEquals(8, unit.getStripes());
+        assertEquals(1, registry.getTimers().get("locks.stripe-" + stripe + ".wait").getCount());
+        assertNotNull(registry.getGauges().get("locks.stripe-" + stripe + ".queue-depth"));
+        assertEquals(0, registry.getGauges().get("locks.stripe-" + stripe + ".queue-depth").getValue());
+    }
+}
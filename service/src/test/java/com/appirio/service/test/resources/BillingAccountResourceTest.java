@@ -4,20 +4,30 @@
 package com.appirio.service.test.resources;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyFloat;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.appirio.service.billingaccount.api.AvailableBudget;
 import com.appirio.service.billingaccount.api.BillingAccount;
 import com.appirio.service.billingaccount.api.BillingAccountFees;
+import com.appirio.service.billingaccount.api.BudgetOperation;
+import com.appirio.service.billingaccount.api.BudgetTransfer;
+import com.appirio.service.billingaccount.api.ConsumeAmountDTO;
+import com.appirio.service.billingaccount.api.LockAmountDTO;
 import com.appirio.service.billingaccount.api.PaymentTermsDTO;
+import com.appirio.service.billingaccount.api.ReconciliationIssue;
+import com.appirio.service.billingaccount.api.TransferAmountDTO;
 import com.appirio.service.billingaccount.api.UserIdDTO;
 import com.appirio.service.billingaccount.manager.BillingAccountManager;
 import com.appirio.service.billingaccount.resources.BillingAccountResource;
 import com.appirio.service.test.BaseTest;
+import com.appirio.supply.SupplyException;
 import com.appirio.supply.dataaccess.QueryResult;
 import com.appirio.tech.core.api.v3.exception.APIRuntimeException;
 import com.appirio.tech.core.api.v3.request.PostPutRequest;
@@ -28,10 +38,12 @@ import org.junit.Test;
 import org.mockito.Mockito;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
 import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.Response;
 
 
 /**
@@ -163,12 +175,96 @@ public class BillingAccountResourceTest extends BaseTest {
         when(mockBillingAccountManager.getBillingAccount(1L)).thenReturn(queryResult);
 
         // invoke method
-        unit.getBillingAccountsById(authUser, 1L);
+        unit.getBillingAccountsById(authUser, 1L, true, null, null);
 
         // verify
         verify(mockBillingAccountManager).getBillingAccount(anyLong());
     }
 
+    /**
+     * Test BillingAccountResource.streamChallengeBudgets when the billing account doesn't exist, 404 is returned.
+     */
+    @Test
+    public void testStreamChallengeBudgets_NotFound() {
+        AuthUser authUser = createUser("3");
+        authUser.getRoles().add("administrator");
+
+        QueryResult queryResult = mock(QueryResult.class);
+        when(queryResult.getData()).thenReturn(new ArrayList<BillingAccount>());
+        when(mockBillingAccountManager.getBillingAccount(1L)).thenReturn(queryResult);
+
+        Response response = unit.streamChallengeBudgets(authUser, 1L);
+
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, response.getStatus());
+    }
+
+    /**
+     * Test BillingAccountResource.getAvailableBudget
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testGetAvailableBudget() throws Exception {
+        AuthUser authUser = createUser("3");
+        authUser.getRoles().add("administrator");
+
+        AvailableBudget budget = new AvailableBudget(1L, 50000L, 30000L, 5000L, 15000L);
+        when(mockBillingAccountManager.getAvailableBudget(1L)).thenReturn(budget);
+
+        // invoke method
+        unit.getAvailableBudget(authUser, 1L);
+
+        // verify
+        verify(mockBillingAccountManager).getAvailableBudget(1L);
+    }
+
+    /**
+     * Test BillingAccountResource.transferAmountFromBillingAccount
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testTransferAmount() throws Exception {
+        AuthUser authUser = createUser("3");
+        authUser.getRoles().add("administrator");
+
+        PostPutRequest<TransferAmountDTO> request = mock(PostPutRequest.class);
+        when(request.getParam()).thenReturn(new TransferAmountDTO(2L, 10000L));
+        BudgetTransfer transfer = new BudgetTransfer(10000L, new AvailableBudget(1L, 40000L, 0L, 0L, 40000L),
+            new AvailableBudget(2L, 60000L, 0L, 0L, 60000L));
+        when(mockBillingAccountManager.transferAmount(authUser, 1L, 2L, 10000L)).thenReturn(transfer);
+
+        // invoke method
+        unit.transferAmountFromBillingAccount(authUser, 1L, request);
+
+        // verify
+        verify(mockBillingAccountManager).transferAmount(authUser, 1L, 2L, 10000L);
+    }
+
+    /**
+     * Test BillingAccountResource.getReconciliationIssues
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testGetReconciliationIssues() throws Exception {
+        AuthUser authUser = createUser("3");
+        authUser.getRoles().add("administrator");
+
+        when(mockBillingAccountManager.getReconciliationIssues(10L, 20)).thenReturn(Arrays.asList(
+            new ReconciliationIssue(1L, "c1", ReconciliationIssue.DUPLICATE_ENTRY, null, 10000L, "2 entries")));
+
+        // invoke method
+        unit.getReconciliationIssues(authUser, 10L, 20);
+
+        // verify
+        verify(mockBillingAccountManager).getReconciliationIssues(10L, 20);
+    }
+
     /**
      * Test BillingAccountResource.getBillingAccountsById when the user does not have administrator role.
      *
@@ -180,7 +276,7 @@ public class BillingAccountResourceTest extends BaseTest {
         AuthUser authUser = createUser("3");
 
         try {
-            unit.getBillingAccountsById(authUser, 1L);
+            unit.getBillingAccountsById(authUser, 1L, true, null, null);
         } catch (APIRuntimeException e) {
             assertEquals(HttpServletResponse.SC_FORBIDDEN, e.getHttpStatus());
         }
@@ -202,7 +298,7 @@ public class BillingAccountResourceTest extends BaseTest {
         when(mockBillingAccountManager.getBillingAccount(2L)).thenReturn(queryResult);
 
         try {
-            unit.getBillingAccountsById(authUser, 2L);
+            unit.getBillingAccountsById(authUser, 2L, true, null, null);
         } catch (APIRuntimeException e) {
             assertEquals(HttpServletResponse.SC_NOT_FOUND, e.getHttpStatus());
         }
@@ -460,6 +556,90 @@ public class BillingAccountResourceTest extends BaseTest {
         }
     }
 
+    /**
+     * Test BillingAccountResource.lockAmountsFromBillingAccount to verify that it delegates the process to the
+     * manager.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testLockAmountsFromBillingAccount() throws Exception {
+        AuthUser authUser = createUser("3");
+        authUser.getRoles().add("administrator");
+        List<LockAmountDTO> lockAmounts = Arrays.asList(new LockAmountDTO(10000L, "c1"));
+        PostPutRequest request = mock(PostPutRequest.class);
+        when(request.getParam()).thenReturn(lockAmounts);
+
+        unit.lockAmountsFromBillingAccount(authUser, 1L, request);
+
+        verify(mockBillingAccountManager).lockAmounts(1L, lockAmounts);
+    }
+
+    /**
+     * Test BillingAccountResource.consumeAmountFromBillingAccount with async, the request is queued and 202 returned.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testConsumeAmountFromBillingAccount_Async() throws Exception {
+        AuthUser authUser = createUser("3");
+        authUser.getRoles().add("administrator");
+        PostPutRequest request = mock(PostPutRequest.class);
+        when(request.getParam()).thenReturn(new ConsumeAmountDTO(10000L, "c1", 0.5f));
+        when(mockBillingAccountManager.enqueueConsumeAmount(1L, "c1", 10000L, 0.5f, "key1"))
+            .thenReturn(new BudgetOperation());
+
+        Response response = unit.consumeAmountFromBillingAccount(authUser, 1L, request, "key1", true);
+
+        assertEquals(HttpServletResponse.SC_ACCEPTED, response.getStatus());
+        verify(mockBillingAccountManager).enqueueConsumeAmount(1L, "c1", 10000L, 0.5f, "key1");
+        verify(mockBillingAccountManager, times(0)).consumeAmount(anyLong(), anyString(), anyLong(), anyFloat(),
+            anyString());
+    }
+
+    /**
+     * Test BillingAccountResource.consumeAmountFromBillingAccount when the manager rejects the request, the status of
+     * the error is returned.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testConsumeAmountFromBillingAccount_Rejected() throws Exception {
+        AuthUser authUser = createUser("3");
+        authUser.getRoles().add("administrator");
+        PostPutRequest request = mock(PostPutRequest.class);
+        when(request.getParam()).thenReturn(new ConsumeAmountDTO(10000L, "c1", 0.5f));
+        when(mockBillingAccountManager.consumeAmount(1L, "c1", 10000L, 0.5f, null))
+            .thenThrow(new SupplyException("The budget is not enough", HttpServletResponse.SC_BAD_REQUEST));
+
+        Response response = unit.consumeAmountFromBillingAccount(authUser, 1L, request, null, false);
+
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, response.getStatus());
+    }
+
+    /**
+     * Test BillingAccountResource.consumeAmountsFromBillingAccount to verify that it delegates the process to the
+     * manager.
+     *
+     * @throws Exception
+     *             to junit
+     */
+    @Test
+    public void testConsumeAmountsFromBillingAccount() throws Exception {
+        AuthUser authUser = createUser("3");
+        authUser.getRoles().add("administrator");
+        List<ConsumeAmountDTO> consumeAmounts = Arrays.asList(new ConsumeAmountDTO(10000L, "c1", 0.5f));
+        PostPutRequest request = mock(PostPutRequest.class);
+        when(request.getParam()).thenReturn(consumeAmounts);
+
+        unit.consumeAmountsFromBillingAccount(authUser, 1L, request);
+
+        verify(mockBillingAccountManager).consumeAmounts(1L, consumeAmounts);
+    }
+
     /**
      * Test BillingAccountResource.removeUserFromBillingAccount to verify that it delegates the process to the
      * manager.